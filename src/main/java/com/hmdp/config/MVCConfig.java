@@ -2,6 +2,9 @@ package com.hmdp.config;
 
 import com.hmdp.interceptor.LoginInterceptor;
 import com.hmdp.interceptor.RefreshTokenInterceptor;
+import com.hmdp.interceptor.SeckillLimitInterceptor;
+import com.hmdp.utils.SeckillLimiter;
+import com.hmdp.utils.UvCounter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
@@ -15,6 +18,12 @@ public class MVCConfig implements WebMvcConfigurer {
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
+    @Autowired
+    private SeckillLimiter seckillLimiter;
+
+    @Autowired
+    private UvCounter uvCounter;
+
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         registry.addInterceptor(new LoginInterceptor())
@@ -29,7 +38,11 @@ public class MVCConfig implements WebMvcConfigurer {
                 ).order(1);
 
         //默认请求拦截所有，并设置拦截先后顺序
-        registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate)).order(0);
+        registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate, uvCounter)).order(0);
+
+        //秒杀限流 在登录拦截之后、执行秒杀脚本之前
+        registry.addInterceptor(new SeckillLimitInterceptor(seckillLimiter))
+                .addPathPatterns("/voucher-order/seckill/**").order(2);
     }
 
 
@@ -8,6 +8,7 @@ import com.hmdp.entity.Blog;
 import com.hmdp.entity.User;
 import com.hmdp.service.IBlogService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.BlogFeed;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
 import jakarta.annotation.Resource;
@@ -31,6 +32,8 @@ public class BlogController {
     private IBlogService blogService;
     @Resource
     private IUserService userService;
+    @Resource
+    private BlogFeed blogFeed;
 
     @PostMapping
     public Result saveBlog(@RequestBody Blog blog) {
@@ -59,6 +62,13 @@ public class BlogController {
         return blogService.queryHotBlog(current);
     }
 
+    @GetMapping("/hot/scroll")
+    public Result queryHotBlogScroll(
+            @RequestParam(value = "lastLiked", defaultValue = Long.MAX_VALUE + "") Long max,
+            @RequestParam(value = "offset", defaultValue = "0") Integer offset) {
+        return blogService.queryHotBlogScroll(max, offset);
+    }
+
     @GetMapping("/{id}")
     public Result queryBlogById(@PathVariable("id") Long id) {
         return blogService.queryBlogById(id);
@@ -86,4 +96,13 @@ public class BlogController {
             @RequestParam("lastId") Long max, @RequestParam(value = "offset", defaultValue = "0") Integer offset){
         return blogService.queryBlogOfFollow(max, offset);
     }
+
+    /**
+     * 笔记流占用的Redis内存
+     * @return 收件箱、发件箱的个数和笔记数，按抽样估算的字节数
+     */
+    @GetMapping("/feed/stats")
+    public Result queryFeedStats() {
+        return Result.ok(blogFeed.stats());
+    }
 }
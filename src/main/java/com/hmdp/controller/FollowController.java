@@ -35,4 +35,24 @@ public class FollowController {
     public Result followCommons(@PathVariable("id") Long id){
         return followService.followCommons(id);
     }
+
+    /**
+     * 粉丝列表 按粉丝id翻页
+     * @param lastId 上一页最后一个粉丝的id，第一页为0
+     */
+    @GetMapping("/fans/{id}")
+    public Result queryFans(@PathVariable("id") Long id,
+                            @RequestParam(value = "lastId", defaultValue = "0") Long lastId) {
+        return followService.queryFans(id, lastId);
+    }
+
+    /**
+     * 关注列表 按关注的人的id翻页
+     * @param lastId 上一页最后一个用户的id，第一页为0
+     */
+    @GetMapping("/followees/{id}")
+    public Result queryFollowees(@PathVariable("id") Long id,
+                                 @RequestParam(value = "lastId", defaultValue = "0") Long lastId) {
+        return followService.queryFollowees(id, lastId);
+    }
 }
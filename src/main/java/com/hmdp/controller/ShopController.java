@@ -1,13 +1,18 @@
 package com.hmdp.controller;
 
 
-import cn.hutool.core.util.StrUtil;
-import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.IShopService;
-import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.IdBloomFilters;
+import com.hmdp.utils.ShopGeoIndex;
+import com.hmdp.utils.ShopNameIndex;
+import com.hmdp.utils.ShopSpatialIndex;
+import com.hmdp.utils.UserHolder;
+import com.hmdp.utils.UvCounter;
 import jakarta.annotation.Resource;
+import jakarta.servlet.http.HttpServletRequest;
 import org.springframework.web.bind.annotation.*;
 
 
@@ -26,18 +31,78 @@ public class ShopController {
     @Resource
     public IShopService shopService;
 
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private IdBloomFilters idBloomFilters;
+
+    @Resource
+    private ShopGeoIndex shopGeoIndex;
+
+    @Resource
+    private ShopSpatialIndex shopSpatialIndex;
+
+    @Resource
+    private ShopNameIndex shopNameIndex;
+
+    @Resource
+    private UvCounter uvCounter;
+
     /**
      * 根据id查询商铺信息
      * @param id 商铺id
      * @return 商铺详情数据
      */
     @GetMapping("/{id}")
-    public Result queryShopById(@PathVariable("id") Long id) {
-        return shopService.queryById(id);
+    public Result queryShopById(@PathVariable("id") Long id, HttpServletRequest request) {
+        Result result = shopService.queryById(id);
+        // 计入店铺UV 登录用户按id，未登录按ip
+        if (Boolean.TRUE.equals(result.getSuccess())) {
+            uvCounter.recordShop(id, UserHolder.getUser() != null
+                    ? UserHolder.getUser().getId().toString() : "ip:" + request.getRemoteAddr());
+        }
+        return result;
         //mp的
 //        return Result.ok(shopService.getById(id));
     }
 
+    /**
+     * 商铺缓存各级命中情况
+     * @return 本地缓存、Redis的命中数和查库次数
+     */
+    @GetMapping("/cache/stats")
+    public Result queryCacheStats() {
+        return Result.ok(cacheClient.stats());
+    }
+
+    /**
+     * 店铺、笔记、用户id的布隆过滤器情况
+     * @return 元素个数、内存和估算的误判率
+     */
+    @GetMapping("/bloom/stats")
+    public Result queryBloomStats() {
+        return Result.ok(idBloomFilters.stats());
+    }
+
+    /**
+     * 本地附近店铺索引的情况
+     * @return 店铺数、内存和重建耗时
+     */
+    @GetMapping("/geo/stats")
+    public Result queryGeoStats() {
+        return Result.ok(shopSpatialIndex.stats());
+    }
+
+    /**
+     * 本地店铺名称索引的情况
+     * @return 店铺数、内存和重建耗时
+     */
+    @GetMapping("/search/stats")
+    public Result querySearchStats() {
+        return Result.ok(shopNameIndex.stats());
+    }
+
     /**
      * 新增商铺信息
      * @param shop 商铺数据
@@ -47,6 +112,11 @@ public class ShopController {
     public Result saveShop(@RequestBody Shop shop) {
         // 写入数据库
         shopService.save(shop);
+        // 加入布隆过滤器、GEO和名称索引
+        idBloomFilters.add(IdBloomFilters.SHOP, shop.getId());
+        shopGeoIndex.update(null, shop);
+        shopSpatialIndex.update(shop);
+        shopNameIndex.update(shop);
         // 返回店铺id
         return Result.ok(shop.getId());
     }
@@ -66,37 +136,33 @@ public class ShopController {
      * 根据商铺类型分页查询商铺信息
      * @param typeId 商铺类型
      * @param current 页码
+     * @param x 经度 和y都传时按距离从近到远
+     * @param y 纬度
      * @return 商铺列表
      */
     @GetMapping("/of/type")
     public Result queryShopByType(
             @RequestParam("typeId") Integer typeId,
-            @RequestParam(value = "current", defaultValue = "1") Integer current
+            @RequestParam(value = "current", defaultValue = "1") Integer current,
+            @RequestParam(value = "x", required = false) Double x,
+            @RequestParam(value = "y", required = false) Double y
     ) {
-        // 根据类型分页查询
-        Page<Shop> page = shopService.query()
-                .eq("type_id", typeId)
-                .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE));
-        // 返回数据
-        return Result.ok(page.getRecords());
+        return shopService.queryShopByType(typeId, current, x, y);
     }
 
     /**
-     * 根据商铺名称关键字分页查询商铺信息
+     * 根据商铺名称关键字滚动分页查询商铺信息 完全匹配、前缀匹配的排在前面
      * @param name 商铺名称关键字
-     * @param current 页码
-     * @return 商铺列表
+     * @param lastScore 上一页返回的lastScore 第一页不传
+     * @param lastId 上一页返回的lastId 第一页不传
+     * @return 商铺列表和下一页的游标
      */
     @GetMapping("/of/name")
     public Result queryShopByName(
             @RequestParam(value = "name", required = false) String name,
-            @RequestParam(value = "current", defaultValue = "1") Integer current
+            @RequestParam(value = "lastScore", required = false) Integer lastScore,
+            @RequestParam(value = "lastId", required = false) Long lastId
     ) {
-        // 根据类型分页查询
-        Page<Shop> page = shopService.query()
-                .like(StrUtil.isNotBlank(name), "name", name)
-                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 返回数据
-        return Result.ok(page.getRecords());
+        return shopService.queryShopByName(name, lastScore, lastId);
     }
 }
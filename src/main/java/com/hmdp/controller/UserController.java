@@ -9,6 +9,7 @@ import com.hmdp.entity.User;
 import com.hmdp.entity.UserInfo;
 import com.hmdp.service.IUserInfoService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.IdBloomFilters;
 import com.hmdp.utils.UserHolder;
 import jakarta.annotation.Resource;
 import jakarta.servlet.http.HttpSession;
@@ -36,6 +37,9 @@ public class UserController {
     @Resource
     private IUserInfoService userInfoService;
 
+    @Resource
+    private IdBloomFilters idBloomFilters;
+
     /**
      * 发送手机验证码
      */
@@ -70,6 +74,34 @@ public class UserController {
         return Result.ok(user);
     }
 
+    /**
+     * 今天签到
+     * @return 无，今天已经签过时失败
+     */
+    @PostMapping("/sign")
+    public Result sign(){
+        return userService.sign();
+    }
+
+    /**
+     * 一个月的签到天数
+     * @param month yyyyMM 不传时为当月
+     * @return 签到天数
+     */
+    @GetMapping("/sign/count")
+    public Result signCount(@RequestParam(value = "month", required = false) String month){
+        return userService.signCount(month);
+    }
+
+    /**
+     * 到今天为止连续签到的天数
+     * @return 连续签到天数，今天没签时为0
+     */
+    @GetMapping("/sign/streak")
+    public Result signStreak(){
+        return userService.signStreak();
+    }
+
     @GetMapping("/info/{id}")
     public Result info(@PathVariable("id") Long userId){
         // 查询详情
@@ -86,6 +118,10 @@ public class UserController {
 
     @GetMapping("/{id}")
     public Result queryUserById(@PathVariable("id") Long userId){
+        // 布隆过滤器判断一定不存在的不用查库
+        if (!idBloomFilters.mightContain(IdBloomFilters.USER, userId)) {
+            return Result.ok();
+        }
         // 查询详情
         User user = userService.getById(userId);
         if (user == null) {
@@ -0,0 +1,98 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.utils.UvCounter;
+import jakarta.annotation.Resource;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * 日活、店铺UV统计 管理后台用
+ * </p>
+ */
+@RestController
+@RequestMapping("/uv")
+public class UvController {
+
+    @Resource
+    private UvCounter uvCounter;
+
+    /**
+     * 日活
+     * @param date yyyyMMdd 不传时为今天
+     * @param range day：当天；week：到date为止的7天；month：date所在月的1号到date
+     * @return 范围和去重用户数
+     */
+    @GetMapping("/dau")
+    public Result queryDau(
+            @RequestParam(value = "date", required = false) String date,
+            @RequestParam(value = "range", defaultValue = "day") String range) {
+        LocalDate[] days = range(date, range);
+        if (days == null) {
+            return Result.fail("日期或范围不正确");
+        }
+        return Result.ok(count(days, uvCounter.countUsers(days[0], days[1])));
+    }
+
+    /**
+     * 店铺UV
+     * @param id 店铺id
+     * @param date yyyyMMdd 不传时为今天
+     * @param range day：当天；week：到date为止的7天；month：date所在月的1号到date
+     * @return 范围和去重访客数
+     */
+    @GetMapping("/shop/{id}")
+    public Result queryShopUv(
+            @PathVariable("id") Long id,
+            @RequestParam(value = "date", required = false) String date,
+            @RequestParam(value = "range", defaultValue = "day") String range) {
+        LocalDate[] days = range(date, range);
+        if (days == null) {
+            return Result.fail("日期或范围不正确");
+        }
+        return Result.ok(count(days, uvCounter.countShop(id, days[0], days[1])));
+    }
+
+    /**
+     * 访问记录的写入情况
+     * @return 队列积压、丢弃数、写入次数和今天日活key的内存
+     */
+    @GetMapping("/stats")
+    public Result queryStats() {
+        return Result.ok(uvCounter.stats());
+    }
+
+    //[开始日期, 结束日期] 参数不正确时返回null
+    private static LocalDate[] range(String date, String range) {
+        LocalDate to;
+        try {
+            to = date == null ? LocalDate.now() : LocalDate.parse(date, UvCounter.DAY_FORMAT);
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+        return switch (range) {
+            case "day" -> new LocalDate[]{to, to};
+            case "week" -> new LocalDate[]{to.minusDays(6), to};
+            case "month" -> new LocalDate[]{to.withDayOfMonth(1), to};
+            default -> null;
+        };
+    }
+
+    private static Map<String, Object> count(LocalDate[] days, long count) {
+        Map<String, Object> r = new LinkedHashMap<>();
+        r.put("from", days[0].format(UvCounter.DAY_FORMAT));
+        r.put("to", days[1].format(UvCounter.DAY_FORMAT));
+        r.put("count", count);
+        return r;
+    }
+}
@@ -4,7 +4,9 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.SeckillLimiter;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -25,12 +27,31 @@ public class VoucherOrderController {
     @Autowired
     private IVoucherOrderService voucherOrderService;
 
+    @Autowired
+    private SeckillLimiter seckillLimiter;
+
     @PostMapping("seckill/{id}")
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
 
         return voucherOrderService.seckillVoucher(voucherId);
     }
 
+    /**
+     * 订单队列消费情况：吞吐量、积压长度、积压时长
+     */
+    @GetMapping("stream/stats")
+    public Result queryOrderStreamStats() {
+        return voucherOrderService.queryOrderStreamStats();
+    }
+
+    /**
+     * 秒杀限流情况：每张券放行、拒绝的请求数
+     */
+    @GetMapping("limit/stats")
+    public Result queryLimitStats() {
+        return Result.ok(seckillLimiter.stats());
+    }
+
 
 
 }
@@ -0,0 +1,33 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+@Data
+public class OrderStreamStats {
+    //消费者个数
+    private Integer consumers;
+    //每批读取条数
+    private Integer batchSize;
+    //已读取的消息数
+    private Long consumed;
+    //已落库的订单数
+    private Long persisted;
+    //已ACK的批次数
+    private Long batches;
+    //落库失败的批次数
+    private Long failedBatches;
+    //从空闲消费者回收的消息数
+    private Long reclaimed;
+    //转入死信队列的消息数
+    private Long deadLettered;
+    //平均每批耗时
+    private Double avgBatchMillis;
+    //落库吞吐量
+    private Double ordersPerSecond;
+    //stream.orders长度
+    private Long streamLength;
+    //已投递未ACK的消息数
+    private Long pendingCount;
+    //最早一条未投递消息的等待时长
+    private Long lagMillis;
+}
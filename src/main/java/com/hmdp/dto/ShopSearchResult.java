@@ -0,0 +1,14 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class ShopSearchResult {
+    private List<?> list;
+    //本页最后一家的score 索引没建好时为null，下一页只按lastId
+    private Integer lastScore;
+    //本页最后一家的id
+    private Long lastId;
+}
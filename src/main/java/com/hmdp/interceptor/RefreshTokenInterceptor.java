@@ -4,6 +4,7 @@ import cn.hutool.core.bean.BeanUtil;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.UserHolder;
+import com.hmdp.utils.UvCounter;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.data.redis.core.StringRedisTemplate;
@@ -20,8 +21,11 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
     //加了@Configuration说明是Spring创建的对象
     private StringRedisTemplate stringRedisTemplate;
 
-    public RefreshTokenInterceptor(StringRedisTemplate stringRedisTemplate) {
+    private UvCounter uvCounter;
+
+    public RefreshTokenInterceptor(StringRedisTemplate stringRedisTemplate, UvCounter uvCounter) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.uvCounter = uvCounter;
     }
 
     @Override
@@ -58,7 +62,9 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         UserHolder.saveUser(userDTO);
         //7.刷新token有效期
         stringRedisTemplate.expire(RedisConstants.LOGIN_TOKEN_KEY+token, 30, TimeUnit.MINUTES);
-        // 8.放行
+        //8.计入日活 只放进本地队列，不访问Redis
+        uvCounter.recordUser(userDTO.getId());
+        // 9.放行
         return true;
     }
 
@@ -0,0 +1,54 @@
+package com.hmdp.interceptor;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.utils.SeckillLimiter;
+import com.hmdp.utils.UserHolder;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+public class SeckillLimitInterceptor implements HandlerInterceptor {
+
+    //和RefreshTokenInterceptor一样是手动new出来的，只能用构造函数注入
+    private SeckillLimiter seckillLimiter;
+
+    public SeckillLimitInterceptor(SeckillLimiter seckillLimiter) {
+        this.seckillLimiter = seckillLimiter;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        //1.获取路径中的券id
+        Map<String, String> pathVariables = (Map<String, String>) request.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE);
+        if (pathVariables == null || pathVariables.get("id") == null) {
+            return true;
+        }
+        Long voucherId;
+        try {
+            voucherId = Long.valueOf(pathVariables.get("id"));
+        } catch (NumberFormatException e) {
+            return true;
+        }
+        //2.登录拦截器已经保证用户存在
+        UserDTO user = UserHolder.getUser();
+        if (user == null || seckillLimiter.tryAcquire(voucherId, user.getId())) {
+            //3.有令牌 放行
+            return true;
+        }
+        //4.没有令牌 返回429 不再执行秒杀脚本
+        response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        response.getWriter().write(JSONUtil.toJsonStr(Result.fail("抢购人数太多，请稍后再试")));
+        return false;
+    }
+}
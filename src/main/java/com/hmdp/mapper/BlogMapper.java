@@ -2,6 +2,10 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.Blog;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
 
 /**
  * <p>
@@ -13,4 +17,9 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface BlogMapper extends BaseMapper<Blog> {
 
+    int insertLikeFlush(@Param("batchId") long batchId);
+
+    int addLiked(@Param("ids") Collection<Long> ids, @Param("delta") int delta);
+
+    int deleteLikeFlushBefore(@Param("before") LocalDateTime before);
 }
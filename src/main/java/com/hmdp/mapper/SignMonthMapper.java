@@ -0,0 +1,19 @@
+package com.hmdp.mapper;
+
+import com.hmdp.entity.SignMonth;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
+
+/**
+ * <p>
+ *  Mapper 接口
+ * </p>
+ */
+public interface SignMonthMapper {
+
+    int upsert(@Param("rows") List<SignMonth> rows);
+
+    //没有归档过时返回null
+    Long selectBits(@Param("userId") Long userId, @Param("month") int month);
+}
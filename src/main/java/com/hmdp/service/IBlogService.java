@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Blog;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.Map;
+
 /**
  * <p>
  *  服务类
@@ -18,6 +20,8 @@ public interface IBlogService extends IService<Blog> {
 
     Result queryHotBlog(Integer current);
 
+    Result queryHotBlogScroll(Long max, Integer offset);
+
     Result likeBlog(Long id);
 
     Result queryBlogLikes(Long id);
@@ -25,4 +29,6 @@ public interface IBlogService extends IService<Blog> {
     Result saveBlog(Blog blog);
 
     Result queryBlogOfFollow(Long max, Integer offset);
+
+    boolean applyLikeDeltas(long batchId, Map<Long, Integer> deltas);
 }
@@ -19,4 +19,10 @@ public interface IFollowService extends IService<Follow> {
     Result isFollow(Long followUserId);
 
     Result followCommons(Long id);
+
+    Result queryFans(Long id, Long lastId);
+
+    Result queryFollowees(Long id, Long lastId);
+
+    String loadFollows(Long userId);
 }
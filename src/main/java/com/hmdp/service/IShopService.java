@@ -17,4 +17,8 @@ public interface IShopService extends IService<Shop> {
     Result queryById(Long id);
 
     Result update(Shop shop);
+
+    Result queryShopByType(Integer typeId, Integer current, Double x, Double y);
+
+    Result queryShopByName(String name, Integer lastScore, Long lastId);
 }
@@ -3,9 +3,13 @@ package com.hmdp.service;
 import com.baomidou.mybatisplus.extension.service.IService;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import jakarta.servlet.http.HttpSession;
 
+import java.util.Collection;
+import java.util.List;
+
 
 /**
  * <p>
@@ -20,4 +24,14 @@ public interface IUserService extends IService<User> {
     Result sendCode(String phone, HttpSession session);
 
     Result login(LoginFormDTO loginForm, HttpSession session);
+
+    //批量查询用户的公开信息 和ids顺序一致，不存在的为null
+    List<UserDTO> queryUserDTOs(Collection<Long> ids);
+
+    Result sign();
+
+    //month为yyyyMM 不传时为当月
+    Result signCount(String month);
+
+    Result signStreak();
 }
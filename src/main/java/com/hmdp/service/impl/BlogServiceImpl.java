@@ -9,27 +9,49 @@ import com.hmdp.dto.Result;
 import com.hmdp.dto.ScrollResult;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
-import com.hmdp.entity.Follow;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
-import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.BlogFeed;
+import com.hmdp.utils.BlogHotRank;
+import com.hmdp.utils.IdBloomFilters;
+import com.hmdp.utils.RedisIdWorker;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
-import java.util.concurrent.FutureTask;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
+import static com.hmdp.utils.RedisConstants.BLOG_LIKED_APPLIED_FIELD;
+import static com.hmdp.utils.RedisConstants.BLOG_LIKED_BATCH_FIELD;
+import static com.hmdp.utils.RedisConstants.BLOG_LIKED_DELTA_KEY;
+import static com.hmdp.utils.RedisConstants.BLOG_LIKED_FLUSHING_KEY;
 import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
 
 /**
@@ -40,6 +62,7 @@ import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IBlogService {
 
@@ -50,77 +73,270 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     private StringRedisTemplate stringRedisTemplate;
 
     @Autowired
-    private IFollowService followService;
+    private IdBloomFilters idBloomFilters;
+
+    @Autowired
+    private BlogHotRank blogHotRank;
+
+    @Autowired
+    private RedisIdWorker redisIdWorker;
+
+    @Autowired
+    private BlogFeed blogFeed;
+
+    //关注的人的笔记流每页条数
+    private static final int FEED_PAGE_SIZE = 3;
+
+    //代理对象 写回线程里调用事务方法
+    @Lazy
+    @Autowired
+    private IBlogService proxy;
+
+    //点赞数增量多久写回一次数据库
+    @Value("${hmdp.blog.like.flush-seconds:3}")
+    private long flushSeconds;
+
+    //点赞/取消点赞 同时记录点赞数增量
+    private static final DefaultRedisScript<Long> LIKE_TOGGLE_SCRIPT;
+    //把当前增量换成待写回的一批
+    private static final DefaultRedisScript<Long> LIKE_FLUSH_START_SCRIPT;
+    //写回后标记这一批已写入
+    private static final DefaultRedisScript<Long> LIKE_FLUSH_APPLIED_SCRIPT;
+    //写回后删除这一批
+    private static final DefaultRedisScript<Long> LIKE_FLUSH_END_SCRIPT;
+
+    static {
+        LIKE_TOGGLE_SCRIPT = new DefaultRedisScript<>();
+        LIKE_TOGGLE_SCRIPT.setLocation(new ClassPathResource("likeToggle.lua"));
+        LIKE_TOGGLE_SCRIPT.setResultType(Long.class);
+        LIKE_FLUSH_START_SCRIPT = new DefaultRedisScript<>();
+        LIKE_FLUSH_START_SCRIPT.setLocation(new ClassPathResource("likeFlushStart.lua"));
+        LIKE_FLUSH_START_SCRIPT.setResultType(Long.class);
+        LIKE_FLUSH_APPLIED_SCRIPT = new DefaultRedisScript<>();
+        LIKE_FLUSH_APPLIED_SCRIPT.setLocation(new ClassPathResource("likeFlushApplied.lua"));
+        LIKE_FLUSH_APPLIED_SCRIPT.setResultType(Long.class);
+        LIKE_FLUSH_END_SCRIPT = new DefaultRedisScript<>();
+        LIKE_FLUSH_END_SCRIPT.setLocation(new ClassPathResource("likeFlushEnd.lua"));
+        LIKE_FLUSH_END_SCRIPT.setResultType(Long.class);
+    }
+
+    //tb_blog_like_flush的批次记录保留1天 每小时清理一次
+    private static final long LIKE_FLUSH_RETENTION_HOURS = 24;
+    private static final long LIKE_FLUSH_PURGE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private volatile long lastLikeFlushPurge;
+
+    private final ScheduledExecutorService LIKE_FLUSH_EXECUTOR =
+            Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "blog-like-flusher"));
 
     @Override
     public Result queryHotBlog(Integer current) {
-        // 根据用户查询
-        Page<Blog> page = query()
-                .orderByDesc("liked")
-                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 获取当前页数据
-        List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(blog -> {
-            this.queryBlogUser(blog);
-            this.isBlogLiked(blog);
-        });
+        List<Blog> records;
+        // 从热门排行中取这一页的笔记id
+        List<Long> ids = blogHotRank.page(current, SystemConstants.MAX_PAGE_SIZE);
+        if (ids != null) {
+            records = listByIdsInOrder(ids);
+        } else {
+            // 排行还没建好 根据点赞数查询
+            Page<Blog> page = query()
+                    .orderByDesc("liked")
+                    .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
+            // 获取当前页数据
+            records = page.getRecords();
+        }
+        // 查询用户和是否点赞 各一次批量查询
+        queryBlogUsers(records);
+        fillLikes(records);
         return Result.ok(records);
     }
 
+    @Override
+    public Result queryHotBlogScroll(Long max, Integer offset) {
+        // 1.从热门排行中按点赞数往下取一页
+        ScrollResult r = blogHotRank.scroll(max, offset, SystemConstants.MAX_PAGE_SIZE);
+        if (r == null) {
+            return Result.fail("热门排行正在生成，请稍后再试");
+        }
+        // 2.批量查询笔记、用户和是否点赞
+        @SuppressWarnings("unchecked")
+        List<Blog> blogs = listByIdsInOrder((List<Long>) r.getList());
+        queryBlogUsers(blogs);
+        fillLikes(blogs);
+        r.setList(blogs);
+        return Result.ok(r);
+    }
+
+    //按ids的顺序返回笔记 已删除的跳过
+    private List<Blog> listByIdsInOrder(List<Long> ids) {
+        if (ids.isEmpty()) {
+            return new ArrayList<>();
+        }
+        Map<Long, Blog> blogs = listByIds(ids).stream().collect(Collectors.toMap(Blog::getId, blog -> blog));
+        return ids.stream().map(blogs::get).filter(Objects::nonNull).collect(Collectors.toList());
+    }
+
     @Override
     public Result queryBlogById(Long id) {
-        // 1.查询blog
+        // 1.查询blog 布隆过滤器判断一定不存在的不用查库
+        if (!idBloomFilters.mightContain(IdBloomFilters.BLOG, id)) {
+            return Result.fail("笔记不存在！");
+        }
         Blog blog = getById(id);
         if (blog == null) {
             return Result.fail("笔记不存在！");
         }
         // 2.查询blog有关的用户
-        queryBlogUser(blog);
+        queryBlogUsers(Collections.singletonList(blog));
         // 3.查询blog是否被点赞
-        isBlogLiked(blog);
+        fillLikes(Collections.singletonList(blog));
         return Result.ok(blog);
     }
 
-    private void isBlogLiked(Blog blog) {
-        // 1.获取登录用户
-        UserDTO user = UserHolder.getUser();
-        if (user == null) {
-            // 用户未登录，无需查询是否点赞
+    //补上还没写回数据库的点赞数，并查询当前用户是否点赞 都放在一个pipeline里
+    private void fillLikes(List<Blog> blogs) {
+        if (blogs.isEmpty()) {
             return;
         }
-        Long userId = user.getId();
-        // 2.判断当前登录用户是否已经点赞
-        String key = "blog:liked:" + blog.getId();
-        Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
-        blog.setIsLike(score != null);
+        // 1.获取登录用户 未登录无需查询是否点赞
+        UserDTO user = UserHolder.getUser();
+        byte[] userId = user == null ? null : user.getId().toString().getBytes(StandardCharsets.UTF_8);
+        byte[][] fields = blogs.stream()
+                .map(blog -> blog.getId().toString().getBytes(StandardCharsets.UTF_8)).toArray(byte[][]::new);
+        //flushing多取批次id和已写入的批次id
+        byte[][] flushingFields = Arrays.copyOf(fields, fields.length + 2);
+        flushingFields[fields.length] = BLOG_LIKED_BATCH_FIELD.getBytes(StandardCharsets.UTF_8);
+        flushingFields[fields.length + 1] = BLOG_LIKED_APPLIED_FIELD.getBytes(StandardCharsets.UTF_8);
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            // 2.未写回的增量 包括正在写回的一批
+            connection.hashCommands().hMGet(BLOG_LIKED_DELTA_KEY.getBytes(StandardCharsets.UTF_8), fields);
+            connection.hashCommands().hMGet(BLOG_LIKED_FLUSHING_KEY.getBytes(StandardCharsets.UTF_8), flushingFields);
+            // 3.判断当前登录用户是否已经点赞
+            if (userId != null) {
+                for (Blog blog : blogs) {
+                    connection.zSetCommands().zScore((BLOG_LIKED_KEY + blog.getId()).getBytes(StandardCharsets.UTF_8), userId);
+                }
+            }
+            return null;
+        });
+        @SuppressWarnings("unchecked")
+        List<Object> deltas = (List<Object>) results.get(0);
+        @SuppressWarnings("unchecked")
+        List<Object> flushing = (List<Object>) results.get(1);
+        //这一批已经写入数据库 数据库的点赞数里已经包含，不能再加一次
+        Object batch = flushing.get(blogs.size());
+        boolean flushed = batch != null && batch.equals(flushing.get(blogs.size() + 1));
+        for (int i = 0; i < blogs.size(); i++) {
+            Blog blog = blogs.get(i);
+            int liked = (blog.getLiked() == null ? 0 : blog.getLiked()) + parseDelta(deltas.get(i))
+                    + (flushed ? 0 : parseDelta(flushing.get(i)));
+            blog.setLiked(Math.max(liked, 0));
+            if (userId != null) {
+                blog.setIsLike(results.get(2 + i) != null);
+            }
+        }
+    }
+
+    private static int parseDelta(Object delta) {
+        return delta == null ? 0 : Integer.parseInt(delta.toString());
     }
 
     @Override
     public Result likeBlog(Long id) {
         // 1.获取登录用户
         Long userId = UserHolder.getUser().getId();
-        // 2.判断当前登录用户是否已经点赞
-        String key = BLOG_LIKED_KEY + id;
-        Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
-        if (score == null) {
-            // 3.如果未点赞，可以点赞
-            // 3.1.数据库点赞数 + 1
-            boolean isSuccess = update().setSql("liked = liked + 1").eq("id", id).update();
-            // 3.2.保存用户到Redis的set集合  zadd key value score
-            if (isSuccess) {
-                stringRedisTemplate.opsForZSet().add(key, userId.toString(), System.currentTimeMillis());
+        if (!idBloomFilters.mightContain(IdBloomFilters.BLOG, id)) {
+            return Result.fail("笔记不存在！");
+        }
+        // 2.lua脚本判断是否已经点赞，点赞或取消点赞，并记录点赞数增量
+        // 数据库的点赞数由后台定时批量写回
+        Long delta = stringRedisTemplate.execute(LIKE_TOGGLE_SCRIPT,
+                Arrays.asList(BLOG_LIKED_KEY + id, BLOG_LIKED_DELTA_KEY),
+                id.toString(), userId.toString(), String.valueOf(System.currentTimeMillis()));
+        // 3.更新热门排行
+        blogHotRank.incrementLiked(id, delta.intValue());
+        return Result.ok();
+    }
+
+    @PostConstruct
+    private void init() {
+        LIKE_FLUSH_EXECUTOR.scheduleWithFixedDelay(() -> {
+            try {
+                flushLikes();
+            } catch (Exception e) {
+                log.error("点赞数写回数据库失败", e);
             }
-        } else {
-            // 4.如果已点赞，取消点赞
-            // 4.1.数据库点赞数 -1
-            boolean isSuccess = update().setSql("liked = liked - 1").eq("id", id).update();
-            // 4.2.把用户从Redis的set集合移除
-            if (isSuccess) {
-                stringRedisTemplate.opsForZSet().remove(key, userId.toString());
+        }, flushSeconds, flushSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        LIKE_FLUSH_EXECUTOR.shutdown();
+        try {
+            //停机前把已有的增量写回
+            if (LIKE_FLUSH_EXECUTOR.awaitTermination(5, TimeUnit.SECONDS)) {
+                flushLikes();
             }
+        } catch (Exception e) {
+            log.error("点赞数写回数据库失败", e);
+        }
+    }
+
+    //把Redis里累计的点赞数增量批量写回数据库
+    //增量先整体换成带批次id的flushing，写回和批次记录在同一个事务里，写完再删flushing
+    //中途宕机重启后会重写同一批，已写过的批次由tb_blog_like_flush跳过，不会丢也不会重复
+    private void flushLikes() {
+        // 1.换出一批 上一批没写完时继续写上一批
+        long newBatchId = redisIdWorker.nextId("likeflush");
+        Long started = stringRedisTemplate.execute(LIKE_FLUSH_START_SCRIPT,
+                Arrays.asList(BLOG_LIKED_DELTA_KEY, BLOG_LIKED_FLUSHING_KEY), String.valueOf(newBatchId));
+        if (started == null || started < 0) {
+            return;
+        }
+        // 2.读取这一批的增量
+        Map<Object, Object> entries = stringRedisTemplate.opsForHash().entries(BLOG_LIKED_FLUSHING_KEY);
+        Object batch = entries.remove(BLOG_LIKED_BATCH_FIELD);
+        entries.remove(BLOG_LIKED_APPLIED_FIELD);
+        if (batch == null) {
+            return;
+        }
+        long batchId = Long.parseLong(batch.toString());
+        Map<Long, Integer> deltas = new HashMap<>(entries.size());
+        entries.forEach((blogId, delta) -> deltas.put(Long.valueOf(blogId.toString()), parseDelta(delta)));
+        // 3.写回数据库
+        boolean applied = proxy.applyLikeDeltas(batchId, deltas);
+        // 4.提交后标记这一批已写入（包括之前已写过的） 删除flushing之前读取点赞数不再加这一批的增量
+        // 每个节点都在写回，这一批可能已被其他节点删掉，只在flushing仍是这一批时标记
+        stringRedisTemplate.execute(LIKE_FLUSH_APPLIED_SCRIPT,
+                Collections.singletonList(BLOG_LIKED_FLUSHING_KEY), String.valueOf(batchId));
+        // 5.删除这一批 只删自己这一批
+        stringRedisTemplate.execute(LIKE_FLUSH_END_SCRIPT,
+                Collections.singletonList(BLOG_LIKED_FLUSHING_KEY), String.valueOf(batchId));
+        if (applied) {
+            log.debug("点赞数增量写回数据库，批次{}，{}篇笔记", batchId, deltas.size());
+        }
+        // 6.清理过期的批次记录 只用于防止同一批重复写回，flushing不会留存这么久
+        long now = System.currentTimeMillis();
+        if (now - lastLikeFlushPurge > LIKE_FLUSH_PURGE_MILLIS) {
+            lastLikeFlushPurge = now;
+            int purged = getBaseMapper().deleteLikeFlushBefore(LocalDateTime.now().minusHours(LIKE_FLUSH_RETENTION_HOURS));
+            log.debug("清理{}条点赞数写回批次记录", purged);
         }
-        return Result.ok();
+    }
+
+    @Override
+    @Transactional
+    public boolean applyLikeDeltas(long batchId, Map<Long, Integer> deltas) {
+        // 1.记录批次 已写过的批次直接跳过
+        if (getBaseMapper().insertLikeFlush(batchId) == 0) {
+            return false;
+        }
+        // 2.增量相同的笔记一条update
+        Map<Integer, List<Long>> byDelta = deltas.entrySet().stream()
+                .filter(e -> e.getValue() != 0)
+                .collect(Collectors.groupingBy(Map.Entry::getValue,
+                        Collectors.mapping(Map.Entry::getKey, Collectors.toList())));
+        byDelta.forEach((delta, ids) -> getBaseMapper().addLiked(ids, delta));
+        return true;
     }
 
     @Override
@@ -158,16 +374,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if (!isSuccess) {
             Result.fail("新增笔记失败");
         }
-        //3. 查询笔记作者的所有粉丝
-        List<Follow> followUserId = followService.query().eq("follow_user_id", user.getId()).list();
-        //4.推送笔记id给所有分析
-        for (Follow follow : followUserId) {
-            //4.1 获取粉丝id
-            Long userId = follow.getUserId();
-            //4.2 推送
-            String key = "feed:" + userId;
-            stringRedisTemplate.opsForZSet().add(key, blog.getId().toString(), System.currentTimeMillis());
-        }
+        idBloomFilters.add(IdBloomFilters.BLOG, blog.getId());
+        blogHotRank.add(blog.getId());
+        //3. 推送给粉丝 大V的笔记由粉丝读取时拉取
+        blogFeed.publish(user.getId(), blog.getId(), System.currentTimeMillis());
         return Result.ok(blog.getId());
     }
 
@@ -175,56 +385,34 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     public Result queryBlogOfFollow(Long max, Integer offset) {
         //1 获取当前用户
         Long userId = UserHolder.getUser().getId();
-        //2 查询收件箱 ZREVRABGEBTSCORE key Max Min LIMIT offset count
-        String key = RedisConstants.FEED_KEY + userId;
-        Set<ZSetOperations.TypedTuple<String>> typedTuples = stringRedisTemplate.opsForZSet()
-                .reverseRangeByScoreWithScores(key, 0, max, offset, 3);
+        //2 查询收件箱和关注的大V的发件箱 按时间倒序合并
+        ScrollResult r = blogFeed.scroll(userId, max, offset, FEED_PAGE_SIZE);
         //3 非空判断
-        if (typedTuples == null || typedTuples.isEmpty()) {
+        @SuppressWarnings("unchecked")
+        List<Long> blogIds = (List<Long>) r.getList();
+        if (blogIds.isEmpty()) {
             return Result.ok();
         }
-        //4 解析数据 blogId minTime offset(与上次查找值一样的元素)
-        List<Long> blogIds = new ArrayList<>(typedTuples.size());
-        long minTime = 0;
-        int count = 1;    //用于计数最小时间戳个数
-        for (ZSetOperations.TypedTuple<String> typedTuple : typedTuples) {
-            // 4.1 获取blogi=Id
-            String blogIdStr = typedTuple.getValue();
-            blogIds.add(Long.valueOf(blogIdStr));
-            // 4.2 获取分数时间戳
-            long time = typedTuple.getScore().longValue();
-            if (time == minTime) {
-                count++;
-            } else {
-                minTime = typedTuple.getScore().longValue();
-                count = 1;
-            }
-        }
-        //5 根据id查询blog
-        String join = StrUtil.join(",", blogIds);
-        LambdaQueryWrapper<Blog> lambdaQueryWrapper = new LambdaQueryWrapper<>();
-        lambdaQueryWrapper.in(Blog::getId, blogIds).last("order by field(id,"+join+")");
-        List<Blog> blogs = this.list(lambdaQueryWrapper);
+        //4 根据id查询blog
+        List<Blog> blogs = listByIdsInOrder(blogIds);
 
-        for (Blog blog : blogs) {
-            //查询blog有关用户
-            queryBlogUser(blog);
-            //查询blog是否被点赞
-            isBlogLiked(blog);
-        }
-        //6 封装并返回
-        ScrollResult r = new ScrollResult();
+        //查询blog有关用户 一次批量查询
+        queryBlogUsers(blogs);
+        //查询blog是否被点赞 一次pipeline
+        fillLikes(blogs);
+        //5 封装并返回
         r.setList(blogs);
-        r.setMinTime(minTime);
-        r.setOffset(count);
-
         return Result.ok(r);
     }
 
-    private void queryBlogUser(Blog blog) {
-        Long userId = blog.getUserId();
-        User user = userService.getById(userId);
-        blog.setName(user.getNickName());
-        blog.setIcon(user.getIcon());
+    private void queryBlogUsers(List<Blog> blogs) {
+        List<UserDTO> users = userService.queryUserDTOs(blogs.stream().map(Blog::getUserId).toList());
+        for (int i = 0; i < blogs.size(); i++) {
+            UserDTO user = users.get(i);
+            if (user != null) {
+                blogs.get(i).setName(user.getNickName());
+                blogs.get(i).setIcon(user.getIcon());
+            }
+        }
     }
 }
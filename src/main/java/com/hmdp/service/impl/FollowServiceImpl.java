@@ -1,6 +1,6 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.util.BooleanUtil;
 import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
@@ -9,16 +9,22 @@ import com.hmdp.mapper.FollowMapper;
 import com.hmdp.service.IFollowService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
 import java.util.stream.Collectors;
 
+import static com.hmdp.utils.RedisConstants.FOLLOWS_KEY;
+
 /**
  * <p>
  *  服务实现类
@@ -27,9 +33,12 @@ import java.util.stream.Collectors;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> implements IFollowService {
 
+    //关注集合里的占位成员 用户id从1开始，一个都没关注的用户也有集合，不会每次都查库
+    private static final String FOLLOWS_PLACEHOLDER = "0";
 
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
@@ -40,18 +49,21 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
     public Result follow(Long followUserId, Boolean isFollow) {
         // 1.获取登录用户
         Long userId = UserHolder.getUser().getId();
-        String key = "follows:" + userId;
+        // 先把关注集合加载好，否则只加进这一个会被当成完整的集合
+        String key = loadFollows(userId);
         // 1.判断到底是关注还是取关
         if (isFollow) {
-            // 2.关注，新增数据
+            // 2.关注，新增数据 已经关注过时唯一索引冲突，当作成功
             Follow follow = new Follow();
             follow.setUserId(userId);
             follow.setFollowUserId(followUserId);
-            boolean isSuccess = save(follow);
-            if (isSuccess) {
-                // 把关注用户的id，放入redis的set集合 sadd userId followerUserId
-                stringRedisTemplate.opsForSet().add(key, followUserId.toString());
+            try {
+                save(follow);
+            } catch (DuplicateKeyException e) {
+                log.debug("用户{}已关注{}", userId, followUserId);
             }
+            // 把关注用户的id，放入redis的set集合 sadd userId followerUserId
+            stringRedisTemplate.opsForSet().add(key, followUserId.toString());
         } else {
             // 3.取关，删除 delete from tb_follow where user_id = ? and follow_user_id = ?
             boolean isSuccess = remove(new QueryWrapper<Follow>()
@@ -68,31 +80,82 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
     public Result isFollow(Long followUserId) {
         // 1.获取登录用户
         Long userId = UserHolder.getUser().getId();
-        // 2.查询是否关注 select count(*) from tb_follow where user_id = ? and follow_user_id = ?
-        Long count = query().eq("user_id", userId).eq("follow_user_id", followUserId).count();
-        // 3.判断
-        return Result.ok(count > 0);
+        // 2.查询是否关注 从Redis的关注集合判断，集合不存在时先从数据库加载
+        String key = loadFollows(userId);
+        return Result.ok(BooleanUtil.isTrue(stringRedisTemplate.opsForSet().isMember(key, followUserId.toString())));
+    }
+
+    //关注集合follows:{userId}不存在时从数据库加载 集合里始终有占位成员，一个都没关注时也会创建
+    //占位成员和关注的人一个SADD写入，其他线程看到key存在时集合已经是完整的
+    @Override
+    public String loadFollows(Long userId) {
+        String key = FOLLOWS_KEY + userId;
+        if (BooleanUtil.isTrue(stringRedisTemplate.hasKey(key))) {
+            return key;
+        }
+        // select follow_user_id from tb_follow where user_id = ?  走uk_user_follow
+        List<String> ids = listObjs(new QueryWrapper<Follow>().select("follow_user_id").eq("user_id", userId),
+                Object::toString);
+        String[] members = new String[ids.size() + 1];
+        members[0] = FOLLOWS_PLACEHOLDER;
+        for (int i = 0; i < ids.size(); i++) {
+            members[i + 1] = ids.get(i);
+        }
+        stringRedisTemplate.opsForSet().add(key, members);
+        return key;
     }
 
     @Override
     public Result followCommons(Long id) {
         // 1.获取当前用户
         Long userId = UserHolder.getUser().getId();
-        String key = "follows:" + userId;
+        String key = loadFollows(userId);
         // 2.求交集
-        String key2 = "follows:" + id;
+        String key2 = loadFollows(id);
         Set<String> intersect = stringRedisTemplate.opsForSet().intersect(key, key2);
+        if (intersect != null) {
+            intersect.remove(FOLLOWS_PLACEHOLDER);
+        }
         if (intersect == null || intersect.isEmpty()) {
             // 无交集
             return Result.ok(Collections.emptyList());
         }
         // 3.解析id集合
         List<Long> ids = intersect.stream().map(Long::valueOf).collect(Collectors.toList());
-        // 4.查询用户
-        List<UserDTO> users = userService.listByIds(ids)
+        // 4.查询用户 先查缓存，未命中的一次查库
+        List<UserDTO> users = userService.queryUserDTOs(ids)
                 .stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
+                .filter(Objects::nonNull)
                 .collect(Collectors.toList());
         return Result.ok(users);
     }
+
+    @Override
+    public Result queryFans(Long id, Long lastId) {
+        // 按粉丝id翻页 where follow_user_id = ? and user_id > ? order by user_id，idx_follow_user覆盖
+        List<Long> ids = listObjs(new QueryWrapper<Follow>()
+                .select("user_id").eq("follow_user_id", id).gt("user_id", lastId)
+                .orderByAsc("user_id").last("limit " + SystemConstants.MAX_PAGE_SIZE), o -> ((Number) o).longValue());
+        return Result.ok(queryUsers(ids));
+    }
+
+    @Override
+    public Result queryFollowees(Long id, Long lastId) {
+        // 按关注的人的id翻页 where user_id = ? and follow_user_id > ? order by follow_user_id，uk_user_follow覆盖
+        List<Long> ids = listObjs(new QueryWrapper<Follow>()
+                .select("follow_user_id").eq("user_id", id).gt("follow_user_id", lastId)
+                .orderByAsc("follow_user_id").last("limit " + SystemConstants.MAX_PAGE_SIZE), o -> ((Number) o).longValue());
+        return Result.ok(queryUsers(ids));
+    }
+
+    //按ids的顺序查询用户 最后一个用户的id就是下一页的lastId
+    private List<UserDTO> queryUsers(List<Long> ids) {
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return userService.queryUserDTOs(ids)
+                .stream()
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+    }
 }
@@ -1,26 +1,36 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopSearchResult;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.IdBloomFilters;
+import com.hmdp.utils.NgramIndex;
 import com.hmdp.utils.RedisConstants;
-import com.hmdp.utils.RedisData;
+import com.hmdp.utils.ShopGeoIndex;
+import com.hmdp.utils.ShopNameIndex;
+import com.hmdp.utils.ShopSpatialIndex;
+import com.hmdp.utils.SystemConstants;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
-import org.springframework.util.StringUtils;
-
-import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -34,15 +44,28 @@ import java.util.concurrent.TimeUnit;
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
 
     @Autowired
-    private StringRedisTemplate stringRedisTemplate;
+    public CacheClient cacheClient;
 
     @Autowired
-    public CacheClient cacheClient;
+    private IdBloomFilters idBloomFilters;
+
+    @Autowired
+    private ShopGeoIndex shopGeoIndex;
+
+    @Autowired
+    private ShopSpatialIndex shopSpatialIndex;
+
+    @Autowired
+    private ShopNameIndex shopNameIndex;
+
+    //附近店铺用哪个索引 redis：Redis GEO；local：本地网格索引，没建好时退回Redis GEO
+    @Value("${hmdp.shop.geo.index:redis}")
+    private String geoIndex;
 
     @Override
     public Result queryById(Long id) {
-        //解决缓存穿透
-        Shop shop = cacheClient.queryWithPassThrough(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        //解决缓存穿透 布隆过滤器先拦下不存在的id
+        Shop shop = cacheClient.queryWithPassThrough(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES, idBloomFilters.guard(IdBloomFilters.SHOP));
         //解决缓存击穿 用互斥锁
 //        Shop shop = queryWithMutex(id);
         //再热点key背景下，逻辑过期解决缓存击穿问题
@@ -53,168 +76,85 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return Result.ok(shop);
     }
 
-    //避免缓存穿透
-    private Shop queryWithPassThrough(Long id) {
-        String key = RedisConstants.CACHE_SHOP_KEY + id;
-        //1.从redis中查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        //2.判断是否存在
-        if (StringUtils.hasText(shopJson)) {
-            Shop shop = JSONUtil.toBean(shopJson, Shop.class);
-            //3.存在直接返回
-            return shop;
-        }
-        //判断命中的是否是空值
-        if (shopJson != null) {
-            //返回一个错误信息
-            return null;
-        }
-
-        //4.实现缓存重建
-        //4.1 获取互斥锁
-        String lockKey = RedisConstants.LOCK_SHOP_KEY+id;
-        Shop shop = null;
-        try {
-            boolean isLock = tryLock(lockKey);
-            //4.2 判断是否获取成功
-            if (!isLock) {
-                //4.3 失败 则休眠并重试
-                Thread.sleep(50);
-                return queryWithPassThrough(id);
-            }
-
-            //根据id查数据库
-
-            shop = getById(id);
-            //若查到的为空值
-            if (shop == null) {
-                //将空值写入redis 防止缓存穿透
-                stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
-                //5.不存在 返回错误
-                return null;
-            }
-            //6.存在 写入redis
-            //shop转为Json
-            String jsonStr = JSONUtil.toJsonStr(shop);
-            stringRedisTemplate.opsForValue().set(key, jsonStr, 30, TimeUnit.MINUTES);
-
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            //释放互斥锁
-            unLock(lockKey);
-        }
-        return shop;
-    }
-
     //用互斥锁避免缓存击穿
+    //并发未命中时本节点只有一个线程查库，其他线程等它的结果；多节点之间用分布式锁，等待有超时
     private Shop queryWithMutex(Long id) {
-        String key = RedisConstants.CACHE_SHOP_KEY + id;
-        //1.从redis中查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        //2.判断是否存在
-        if (StringUtils.hasText(shopJson)) {
-            Shop shop = JSONUtil.toBean(shopJson, Shop.class);
-            //3.存在直接返回
-            return shop;
-        }
-        //判断命中的是否是空值
-        if (shopJson != null) {
-            //返回一个错误信息
-            return null;
-        }
-
-        //4.实现缓存重建
-        //4.1 获取互斥锁
-        String lockKey = RedisConstants.LOCK_SHOP_KEY+id;
-        Shop shop = null;
-        try {
-            boolean isLock = tryLock(lockKey);
-            //4.2 判断是否获取成功
-            if (!isLock) {
-                //4.3 失败 则休眠并重试
-                Thread.sleep(50);
-                return queryWithPassThrough(id);
-            }
-
-            //根据id查数据库
-
-            shop = getById(id);
-            //若查到的为空值
-            if (shop == null) {
-                //将空值写入redis 防止缓存穿透
-                stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
-                //5.不存在 返回错误
-                return null;
-            }
-            //6.存在 写入redis
-            //shop转为Json
-            String jsonStr = JSONUtil.toJsonStr(shop);
-            stringRedisTemplate.opsForValue().set(key, jsonStr, 30, TimeUnit.MINUTES);
-
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            //释放互斥锁
-            unLock(lockKey);
-        }
-        return shop;
+        return cacheClient.queryWithPassThrough(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
-    //创建线程池
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
     //使用逻辑过期避免缓存击穿
     //这里的背景是在热点key的情况下，事先把热点key存到了redis中。不需要考虑缓存穿透
     private Shop queryWithLogicalExpire(Long id) {
-        String key = RedisConstants.CACHE_SHOP_KEY + id;
-        //1.从redis中查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        //2.判断是否存在
-        if (!StringUtils.hasText(shopJson)) {
-            //3.不存在直接返回
-            return null;
+        return cacheClient.queryWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById, 30L, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public Result queryShopByType(Integer typeId, Integer current, Double x, Double y) {
+        //1.不需要按距离排序 按类型分页查询
+        if (x == null || y == null) {
+            Page<Shop> page = query()
+                    .eq("type_id", typeId)
+                    .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE));
+            return Result.ok(page.getRecords());
         }
-        //4.命中，先反序列化
-        //字符串shopJson转为RedisData，此时data实际为JSONObject对象
-        //data再转为Shop对象
-        RedisData redisData = JSONUtil.toBean(shopJson, RedisData.class);
-        JSONObject data = (JSONObject) redisData.getData();
-        Shop shop = JSONUtil.toBean(data, Shop.class);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        //5.判断是否过期
-        if (expireTime.isAfter(LocalDateTime.now())) {
-            //5.1未过期，返回店铺信息
-            return shop;
+        //2.从GEO中按距离取这一页的店铺id和距离
+        int from = (current - 1) * SystemConstants.DEFAULT_PAGE_SIZE;
+        Map<Long, Double> distances = "local".equals(geoIndex)
+                ? shopSpatialIndex.search(typeId.longValue(), x, y, from, SystemConstants.DEFAULT_PAGE_SIZE) : null;
+        if (distances == null) {
+            distances = shopGeoIndex.search(typeId.longValue(), x, y, from, SystemConstants.DEFAULT_PAGE_SIZE);
+        }
+        if (distances.isEmpty()) {
+            return Result.ok(Collections.emptyList());
+        }
+        //3.批量查询店铺 先查缓存，未命中的一次查库
+        List<Shop> shops = cacheClient.queryBatch(RedisConstants.CACHE_SHOP_KEY, distances.keySet(), Shop.class,
+                ids -> listByIds(ids).stream().collect(Collectors.toMap(Shop::getId, shop -> shop)),
+                RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        //4.按距离的顺序返回 已删除的跳过
+        //缓存返回的是本地缓存中共享的对象，复制一份再设置距离
+        List<Shop> result = new ArrayList<>(shops.size());
+        for (Shop shop : shops) {
+            if (shop != null) {
+                Shop copy = BeanUtil.copyProperties(shop, Shop.class);
+                copy.setDistance(distances.get(shop.getId()));
+                result.add(copy);
+            }
         }
-        //5.2过期，需要缓存重建
+        return Result.ok(result);
+    }
 
-        //6.缓存重建
-        //6.1获取互斥锁
-        String locakKey = RedisConstants.LOCK_SHOP_KEY+id;
-        boolean isLock = tryLock(locakKey);
-        //6.2判断是否获取成功
-        if (isLock) {
-            //6.3成功 开启独立线程，实现缓存重建
-            //这里要做双重检查double check
-            //这里获取到的锁可能是上一个线程刚刚做完缓存重建所释放的，这样的话目标数据已经缓存重建完毕了，因此有必要做双重检查
-            CACHE_REBUILD_EXECUTOR.submit(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        //重建缓存
-                        saveShop2Redis(id, 30L);
-                        Thread.sleep(200);  //模拟延迟
-                    } catch (Exception e) {
-                        throw new RuntimeException(e);
-                    } finally {
-                        //释放锁 要写到finally中
-                        unLock(locakKey);
-                    }
-                }
-            });
+    @Override
+    public Result queryShopByName(String name, Integer lastScore, Long lastId) {
+        ShopSearchResult r = new ShopSearchResult();
+        //1.从名称索引取这一页的店铺id 上一页来自数据库时接着查数据库
+        List<NgramIndex.Hit> hits = StrUtil.isBlank(name) || (lastScore == null && lastId != null)
+                ? null : shopNameIndex.search(name, lastScore, lastId, SystemConstants.MAX_PAGE_SIZE);
+        if (hits == null) {
+            //2.没有关键字或索引还没建好 按id分页查数据库
+            List<Shop> shops = query()
+                    .like(StrUtil.isNotBlank(name), "name", name)
+                    .gt(lastId != null, "id", lastId)
+                    .orderByAsc("id")
+                    .last("limit " + SystemConstants.MAX_PAGE_SIZE)
+                    .list();
+            r.setList(shops);
+            r.setLastId(shops.isEmpty() ? lastId : shops.get(shops.size() - 1).getId());
+            return Result.ok(r);
         }
-        //6.4返回过期的商铺信息
-        return shop;
+        r.setLastScore(hits.isEmpty() ? lastScore : hits.get(hits.size() - 1).score());
+        r.setLastId(hits.isEmpty() ? lastId : hits.get(hits.size() - 1).id());
+        if (hits.isEmpty()) {
+            r.setList(Collections.emptyList());
+            return Result.ok(r);
+        }
+        //3.批量查询店铺 按匹配程度的顺序返回，已删除的跳过
+        List<Long> ids = hits.stream().map(NgramIndex.Hit::id).toList();
+        List<Shop> shops = cacheClient.queryBatch(RedisConstants.CACHE_SHOP_KEY, ids, Shop.class,
+                missed -> listByIds(missed).stream().collect(Collectors.toMap(Shop::getId, shop -> shop)),
+                RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        r.setList(shops.stream().filter(Objects::nonNull).toList());
+        return Result.ok(r);
     }
 
     @Override
@@ -224,35 +164,48 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         if (id == null) {
             return Result.fail("店铺id不存在");
         }
+        //修改了类型或坐标时 GEO要跟着改，类型变了要从原来的类型中删掉
+        boolean moved = shop.getTypeId() != null || shop.getX() != null || shop.getY() != null;
+        Shop old = moved ? getById(id) : null;
         //1.先更新数据库
         updateById(shop);
-        //2.后删除缓存
+        if (moved) {
+            //提交后再改索引、通知其他节点 否则其他节点查到的还是修改前的店铺
+            Shop updated = getById(id);
+            afterCommit(() -> {
+                shopGeoIndex.update(old, updated);
+                shopSpatialIndex.update(updated);
+            });
+        }
+        //改了名称 名称索引跟着改 同样在提交后通知其他节点
+        if (shop.getName() != null) {
+            afterCommit(() -> shopNameIndex.update(shop));
+        }
+        //2.后删除缓存 包括各节点的本地缓存
         String key = RedisConstants.CACHE_SHOP_KEY+id;
-        stringRedisTemplate.delete(key);
+        cacheClient.delete(key);
         return Result.ok();
     }
 
-    //获取锁
-    private boolean tryLock(String key) {
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
-        //直接用装箱后的包装类返回flag，可能会导致空指针异常，这里处理一下
-        return BooleanUtil.isTrue(flag);
-    }
-
-    //释放锁
-    private void unLock(String key) {
-        stringRedisTemplate.delete(key);
+    //当前事务提交后执行 没有事务时直接执行
+    private static void afterCommit(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
     }
 
     //加上逻辑过期后的把数据存储到Redis
     public void saveShop2Redis(Long id, long expireTime) {
         //查询店铺数据
         Shop shop = getById(id);
-        //封装逻辑过期时间
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireTime));
-        //写入Redis
-        stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY+id, JSONUtil.toJsonStr(redisData));
+        //封装逻辑过期时间 写入Redis
+        cacheClient.setWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY + id, shop, expireTime, TimeUnit.SECONDS);
     }
 }
@@ -8,6 +8,7 @@ import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisConstants;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.redis.core.StringRedisTemplate;
@@ -30,13 +31,15 @@ public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> i
     @Autowired
     private StringRedisTemplate stringRedisTemplates;
 
+    @Autowired
+    private CacheClient cacheClient;
+
     @Override
     public Result queryShopType() {
         String key = RedisConstants.SHOP_TYPE_KEY+"types";
         //在缓存中找
-        String types = stringRedisTemplates.opsForValue().get(key);
-        if (StringUtils.hasText(types)) {
-            List<ShopType> list = JSONUtil.toList(types, ShopType.class);
+        List<ShopType> list = cacheClient.getList(key, ShopType.class);
+        if (list != null) {
             return Result.ok(list);
         }
         //在mysql中找
@@ -49,7 +52,7 @@ public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> i
         //缓存到redis中
 
         //用string存
-        stringRedisTemplates.opsForValue().set(key, JSONUtil.toJsonStr(shopTypes));
+        cacheClient.set(key, shopTypes);
         return Result.ok(shopTypes);
 
         //用list存
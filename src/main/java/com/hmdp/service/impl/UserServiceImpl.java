@@ -9,23 +9,38 @@ import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
+import com.hmdp.mapper.SignMonthMapper;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.IdBloomFilters;
 import com.hmdp.utils.RegexUtils;
+import com.hmdp.utils.SignArchiver;
+import com.hmdp.utils.UserHolder;
 import jakarta.servlet.http.HttpSession;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
 
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeParseException;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
+import static com.hmdp.utils.RedisConstants.CACHE_USER_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_USER_TTL;
 import static com.hmdp.utils.RedisConstants.LOGIN_CODE_KEY;
 import static com.hmdp.utils.RedisConstants.LOGIN_TOKEN_KEY;
 import static com.hmdp.utils.SystemConstants.USER_NICK_NAME_PREFIX;
@@ -45,6 +60,15 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     @Autowired
     public StringRedisTemplate stringRedisTemplate;
 
+    @Autowired
+    private IdBloomFilters idBloomFilters;
+
+    @Autowired
+    private CacheClient cacheClient;
+
+    @Autowired
+    private SignMonthMapper signMonthMapper;
+
     @Override
     public Result sendCode(String phone, HttpSession session) {
         // 1.校验手机号
@@ -107,6 +131,93 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         return Result.ok(token);
     }
 
+    @Override
+    public List<UserDTO> queryUserDTOs(Collection<Long> ids) {
+        //一次MGET 未命中的一次listByIds
+        return cacheClient.queryBatch(CACHE_USER_KEY, ids, UserDTO.class,
+                missIds -> listByIds(missIds).stream()
+                        .collect(Collectors.toMap(User::getId, user -> BeanUtil.copyProperties(user, UserDTO.class))),
+                CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
+
+    @Override
+    public Result sign() {
+        //1.今天是本月第几天 对应bit位从0开始
+        Long userId = UserHolder.getUser().getId();
+        LocalDate now = LocalDate.now();
+        String key = SignArchiver.key(userId, YearMonth.from(now));
+        //2.SETBIT 返回原来的值
+        Boolean signed = stringRedisTemplate.opsForValue().setBit(key, now.getDayOfMonth() - 1, true);
+        if (Boolean.TRUE.equals(signed)) {
+            return Result.fail("今天已经签到过了");
+        }
+        return Result.ok();
+    }
+
+    @Override
+    public Result signCount(String month) {
+        YearMonth ym;
+        try {
+            ym = month == null ? YearMonth.now() : YearMonth.parse(month, SignArchiver.MONTH_FORMAT);
+        } catch (DateTimeParseException e) {
+            return Result.fail("月份格式不正确");
+        }
+        //1.还没归档的月份 BITCOUNT
+        Long userId = UserHolder.getUser().getId();
+        byte[] key = SignArchiver.key(userId, ym).getBytes(StandardCharsets.UTF_8);
+        Long count = stringRedisTemplate.execute((RedisCallback<Long>) connection -> connection.stringCommands().bitCount(key));
+        //2.已结束的月份Redis里没有 可能已经归档
+        if ((count == null || count == 0) && ym.isBefore(YearMonth.now())) {
+            Long bits = signMonthMapper.selectBits(userId, Integer.parseInt(ym.format(SignArchiver.MONTH_FORMAT)));
+            count = bits == null ? 0L : Long.bitCount(bits);
+        }
+        return Result.ok(count == null ? 0 : count);
+    }
+
+    @Override
+    public Result signStreak() {
+        //1.本月到今天为止的签到 BITFIELD GET u{dayOfMonth} 0，最低位是今天
+        Long userId = UserHolder.getUser().getId();
+        LocalDate now = LocalDate.now();
+        YearMonth ym = YearMonth.from(now);
+        int days = now.getDayOfMonth();
+        List<Long> result = stringRedisTemplate.opsForValue()
+                .bitField(SignArchiver.key(userId, ym), SignArchiver.firstDays(days));
+        long bits = result == null || result.isEmpty() || result.get(0) == null ? 0 : result.get(0);
+        //2.从今天往前数连续为1的位 每天一次位运算
+        int streak = 0;
+        while ((bits & 1) == 1) {
+            streak++;
+            bits >>>= 1;
+        }
+        //3.本月到今天每天都签了 接着从上个月最后一天往前数
+        boolean full = streak == days;
+        while (full) {
+            ym = ym.minusMonths(1);
+            int d = ym.lengthOfMonth();
+            long month = monthBits(userId, ym);
+            while (d > 0 && (month >>> (d - 1) & 1) == 1) {
+                streak++;
+                d--;
+            }
+            full = d == 0;
+        }
+        return Result.ok(streak);
+    }
+
+    //一个月每天是否签到 第d天在第d-1位，Redis里没有时查归档
+    private long monthBits(Long userId, YearMonth ym) {
+        int days = ym.lengthOfMonth();
+        List<Long> result = stringRedisTemplate.opsForValue()
+                .bitField(SignArchiver.key(userId, ym), SignArchiver.firstDays(days));
+        long field = result == null || result.isEmpty() || result.get(0) == null ? 0 : result.get(0);
+        if (field != 0) {
+            return SignArchiver.dayBits(field, days);
+        }
+        Long bits = signMonthMapper.selectBits(userId, Integer.parseInt(ym.format(SignArchiver.MONTH_FORMAT)));
+        return bits == null ? 0 : bits;
+    }
+
     private User createUserWithPhone(String phone) {
         // 1.创建用户
         User user = new User();
@@ -114,6 +225,7 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         user.setNickName(USER_NICK_NAME_PREFIX + RandomUtil.randomString(10));
         // 2.保存用户
         save(user);
+        idBloomFilters.add(IdBloomFilters.USER, user.getId());
         return user;
     }
 }
@@ -3,6 +3,7 @@ package com.hmdp.service.impl;
 import cn.hutool.core.bean.BeanUtil;
 import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
 import com.baomidou.mybatisplus.core.conditions.update.LambdaUpdateWrapper;
+import com.hmdp.dto.OrderStreamStats;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
@@ -11,26 +12,39 @@ import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillGate;
+import com.hmdp.utils.SeckillStockShards;
 import com.hmdp.utils.UserHolder;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
-import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.Limit;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.lang.management.ManagementFactory;
 import java.time.Duration;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_DLQ_STREAM;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_ERROR_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_GROUP;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM;
 
 /**
  * <p>
@@ -56,33 +70,97 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Autowired
     private RedissonClient redissonClient;
 
+    @Autowired
+    private SeckillStockShards seckillStockShards;
+
+    @Autowired
+    private SeckillGate seckillGate;
+
+    //代理对象 消费线程里拿不到AopContext，这里直接注入自身的代理
+    @Lazy
+    @Autowired
+    private IVoucherOrderService proxy;
+
+    //消费者个数
+    @Value("${hmdp.seckill.order.consumers:4}")
+    private int consumerCount;
+
+    //每次XREADGROUP读取的条数
+    @Value("${hmdp.seckill.order.batch-size:50}")
+    private int batchSize;
+
+    //pending消息空闲超过这个时间才会被回收
+    @Value("${hmdp.seckill.order.reclaim-idle-ms:30000}")
+    private long reclaimIdleMillis;
+
+    //最大投递次数 超过后转入死信队列
+    @Value("${hmdp.seckill.order.max-deliveries:5}")
+    private int maxDeliveries;
+
+    //每次XPENDING扫描的条数
+    private static final long RECLAIM_SCAN_COUNT = 100;
+    //消费者空闲超过1小时且没有pending消息 视为已下线
+    private static final long DEAD_CONSUMER_IDLE_MILLIS = TimeUnit.HOURS.toMillis(1);
+    //处理失败的异常保留1天 ACK或转入死信队列时删除
+    private static final long ORDER_ERROR_TTL_HOURS = 24;
+
     //加载lua脚本
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    //裁剪已确认的消息
+    private static final DefaultRedisScript<Long> STREAM_TRIM_SCRIPT;
 
     static {
         SECKILL_SCRIPT = new DefaultRedisScript<>();
         SECKILL_SCRIPT.setLocation(new ClassPathResource("seckillWithStream.lua"));
 //        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
         SECKILL_SCRIPT.setResultType(Long.class);
+        STREAM_TRIM_SCRIPT = new DefaultRedisScript<>();
+        STREAM_TRIM_SCRIPT.setLocation(new ClassPathResource("streamTrim.lua"));
+        STREAM_TRIM_SCRIPT.setResultType(Long.class);
     }
 
-    //创建线程池
-    private final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    //消费者名称前缀 pid@host，保证多个节点、多次重启的消费者名称都不重复
+    private static final String CONSUMER_PREFIX = "c-" + ManagementFactory.getRuntimeMXBean().getName() + "-";
+
+    //线程池 每个消费者一个线程
+    private ExecutorService SECKILL_ORDER_EXECUTOR;
+
+    //pending list回收线程
+    private final ScheduledExecutorService PENDING_RECLAIM_EXECUTOR =
+            Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "seckill-order-reclaimer"));
+
+    private volatile boolean running = true;
+
+
+    //吞吐量统计
+    private final AtomicLong consumedCount = new AtomicLong();
+    private final AtomicLong persistedCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong failedBatchCount = new AtomicLong();
+    private final AtomicLong batchCostMillis = new AtomicLong();
+    private final AtomicLong reclaimedCount = new AtomicLong();
+    private final AtomicLong deadLetterCount = new AtomicLong();
+    private volatile long firstConsumeTime;
 
 
     //用Stream消息队列
-    //创建线程任务 用内部类的方式
+    //创建线程任务 用内部类的方式 每个线程是消费组g1中的一个消费者
     private class VoucherOrderHandler implements Runnable {
-        String queueName = "stream.orders";
+        String queueName = SECKILL_ORDER_STREAM;
+        private final String consumerName;
+
+        VoucherOrderHandler(String consumerName) {
+            this.consumerName = consumerName;
+        }
 
         @Override
         public void run() {
-            while (true) {
+            while (running) {
                 try {
-                    //1. 获取消息队列中订单信息 XREADGROUP GROUP g1 c1 count 1 BLOCK 2000 STREAMS stream.orders >
+                    //1. 批量获取消息队列中订单信息 XREADGROUP GROUP g1 cx COUNT N BLOCK 2000 STREAMS stream.orders >
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
+                            Consumer.from(SECKILL_ORDER_GROUP, consumerName),
+                            StreamReadOptions.empty().count(batchSize).block(Duration.ofSeconds(2)),
                             StreamOffset.create(queueName, ReadOffset.lastConsumed())
                     );
                     //2 判断消息获取是否成功
@@ -90,16 +168,12 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                         //2.1 失败 无消息 进入下一次循环
                         continue;
                     }
-                    //3 解析消息中的订单信息
-                    MapRecord<String, Object, Object> entries = list.get(0);
-                    Map<Object, Object> values = entries.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    //4. 获取成功创建订单
-                    handleVoucherOrder(voucherOrder);
-                    //5. ACK确认 SACK stream.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", entries.getId());
-
+                    //3. 一批消息一起落库并ACK
+                    handleVoucherOrderBatch(list);
                 } catch (Exception e) {
+                    if (!running) {
+                        break;
+                    }
                     log.error("处理订单异常", e);
                     handelPendingList();
                 }
@@ -107,91 +181,231 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         }
 
         private void handelPendingList() {
-            while (true) {
+            //从自己pending list的开头往后读，读过的id作为下次的起点，处理失败的消息留在pending list里交给回收线程
+            String lastId = "0";
+            while (running) {
                 try {
-                    //1. 获取Pending list中订单信息 XREADGROUP GROUP g1 c1 count 1 BLOCK 2000 STREAMS streams.order >
+                    //1. 获取Pending list中订单信息 XREADGROUP GROUP g1 cx COUNT N STREAMS stream.orders lastId
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create(queueName, ReadOffset.from("0"))
+                            Consumer.from(SECKILL_ORDER_GROUP, consumerName),
+                            StreamReadOptions.empty().count(batchSize),
+                            StreamOffset.create(queueName, ReadOffset.from(lastId))
                     );
                     //2 判断消息获取是否成功
                     if (list == null || list.isEmpty()) {
                         //2.1 失败 无消息 说明pending list无异常
                         break;
                     }
-                    //3 解析消息中的订单信息
-                    MapRecord<String, Object, Object> entries = list.get(0);
-                    Map<Object, Object> values = entries.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    //3. 获取成功创建订单
-                    handleVoucherOrder(voucherOrder);
-                    //5. ACK确认 SACK stream.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", entries.getId());
+                    lastId = list.get(list.size() - 1).getId().getValue();
+                    //3. 批量创建订单并ACK
+                    handleVoucherOrderBatch(list);
                 } catch (Exception e) {
                     log.error("处理pending list异常", e);
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
                 }
             }
         }
     }
 
 
+    //一批消息：解析 -> 一个事务批量落库 -> 一次XACK
+    private void handleVoucherOrderBatch(List<MapRecord<String, Object, Object>> list) {
+        long begin = System.currentTimeMillis();
+        if (firstConsumeTime == 0) {
+            firstConsumeTime = begin;
+        }
+        consumedCount.addAndGet(list.size());
+        RecordId[] recordIds = new RecordId[list.size()];
+        try {
+            //1. 解析消息中的订单信息
+            List<VoucherOrder> voucherOrders = new ArrayList<>(list.size());
+            for (int i = 0; i < list.size(); i++) {
+                MapRecord<String, Object, Object> entries = list.get(i);
+                voucherOrders.add(parseVoucherOrder(entries));
+                recordIds[i] = entries.getId();
+            }
+            //2. 一个事务内批量创建订单
+            int saved = proxy.createVoucherOrders(voucherOrders);
+            persistedCount.addAndGet(saved);
+        } catch (RuntimeException e) {
+            //整批失败 逐条处理，把有问题的消息挑出来留在pending list
+            failedBatchCount.incrementAndGet();
+            log.error("批量处理订单异常，改为逐条处理", e);
+            handleVoucherOrderOneByOne(list);
+            return;
+        }
+        //3. 整批ACK确认 XACK stream.orders g1 id1 id2 ...
+        stringRedisTemplate.opsForStream().acknowledge(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, recordIds);
+        batchCount.incrementAndGet();
+        batchCostMillis.addAndGet(System.currentTimeMillis() - begin);
+    }
+
+    //逐条落库并ACK，失败的消息不ACK，记录异常信息，超过投递次数后由回收线程转入死信队列
+    private void handleVoucherOrderOneByOne(List<MapRecord<String, Object, Object>> list) {
+        for (MapRecord<String, Object, Object> entries : list) {
+            String recordId = entries.getId().getValue();
+            try {
+                int saved = proxy.createVoucherOrders(Collections.singletonList(parseVoucherOrder(entries)));
+                persistedCount.addAndGet(saved);
+                stringRedisTemplate.opsForStream().acknowledge(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, entries.getId());
+                stringRedisTemplate.delete(SECKILL_ORDER_ERROR_KEY + recordId);
+            } catch (RuntimeException e) {
+                log.error("处理订单消息{}异常", recordId, e);
+                //异常存在Redis里 其他节点的回收线程转入死信队列时也能带上
+                stringRedisTemplate.opsForValue().set(SECKILL_ORDER_ERROR_KEY + recordId, e.toString(),
+                        ORDER_ERROR_TTL_HOURS, TimeUnit.HOURS);
+            }
+        }
+    }
+
+    private VoucherOrder parseVoucherOrder(MapRecord<String, Object, Object> entries) {
+        VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(entries.getValue(), new VoucherOrder(), true);
+        if (voucherOrder.getId() == null || voucherOrder.getUserId() == null || voucherOrder.getVoucherId() == null) {
+            throw new IllegalArgumentException("订单消息字段缺失：" + entries.getValue());
+        }
+        return voucherOrder;
+    }
+
+
+    //回收线程：XPENDING找出空闲太久的消息（消费者挂了或者一直处理失败），XCLAIM到自己名下重新处理，
+    //投递次数超过上限的转入死信队列；最后按已ACK的位置XTRIM MINID裁剪stream.orders
+    private class PendingOrderReclaimer implements Runnable {
+        private final String consumerName = CONSUMER_PREFIX + "reclaimer";
+
+        @Override
+        public void run() {
+            try {
+                reclaim();
+                removeDeadConsumers();
+                trimAcknowledged();
+            } catch (Exception e) {
+                log.error("回收pending list异常", e);
+            }
+        }
+
+        private void reclaim() {
+            //1. XPENDING stream.orders g1 - + count
+            PendingMessages pendingMessages = stringRedisTemplate.opsForStream()
+                    .pending(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, Range.unbounded(), RECLAIM_SCAN_COUNT);
+            List<RecordId> toClaim = new ArrayList<>();
+            for (PendingMessage pendingMessage : pendingMessages) {
+                if (pendingMessage.getElapsedTimeSinceLastDelivery().toMillis() < reclaimIdleMillis) {
+                    continue;
+                }
+                //2. 投递次数超过上限 转入死信队列
+                if (pendingMessage.getTotalDeliveryCount() >= maxDeliveries) {
+                    deadLetter(pendingMessage);
+                } else {
+                    toClaim.add(pendingMessage.getId());
+                }
+            }
+            if (toClaim.isEmpty()) {
+                return;
+            }
+            //3. XCLAIM 空闲时间再校验一次，避免和原消费者抢同一条消息
+            List<MapRecord<String, Object, Object>> claimed = stringRedisTemplate.opsForStream().claim(
+                    SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, consumerName,
+                    Duration.ofMillis(reclaimIdleMillis), toClaim.toArray(new RecordId[0]));
+            if (claimed == null || claimed.isEmpty()) {
+                return;
+            }
+            reclaimedCount.addAndGet(claimed.size());
+            log.warn("回收{}条空闲超过{}ms的订单消息", claimed.size(), reclaimIdleMillis);
+            handleVoucherOrderOneByOne(claimed);
+        }
+
+        private void deadLetter(PendingMessage pendingMessage) {
+            String recordId = pendingMessage.getIdAsString();
+            List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                    .range(SECKILL_ORDER_STREAM, Range.closed(recordId, recordId));
+            Map<String, String> fields = new HashMap<>();
+            if (records != null && !records.isEmpty()) {
+                records.get(0).getValue().forEach((k, v) -> fields.put(k.toString(), v.toString()));
+            }
+            fields.put("sourceId", recordId);
+            fields.put("consumer", pendingMessage.getConsumerName());
+            fields.put("deliveries", String.valueOf(pendingMessage.getTotalDeliveryCount()));
+            String error = stringRedisTemplate.opsForValue().get(SECKILL_ORDER_ERROR_KEY + recordId);
+            fields.put("error", error != null ? error : "超过最大投递次数" + maxDeliveries);
+            //XADD stream.orders.dlq * ... 之后再ACK，保证消息不会丢
+            stringRedisTemplate.opsForStream().add(SECKILL_ORDER_DLQ_STREAM, fields);
+            stringRedisTemplate.opsForStream().acknowledge(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, pendingMessage.getId());
+            stringRedisTemplate.delete(SECKILL_ORDER_ERROR_KEY + recordId);
+            deadLetterCount.incrementAndGet();
+            log.error("订单消息{}投递{}次仍失败，已转入{}", recordId, pendingMessage.getTotalDeliveryCount(), SECKILL_ORDER_DLQ_STREAM);
+        }
+
+        //删除没有pending消息、长时间没有读取的消费者（已下线节点或重启前的消费者）
+        private void removeDeadConsumers() {
+            StreamInfo.XInfoConsumers consumers = stringRedisTemplate.opsForStream()
+                    .consumers(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP);
+            consumers.forEach(c -> {
+                if (c.pendingCount() == 0 && c.idleTimeMs() > DEAD_CONSUMER_IDLE_MILLIS
+                        && !c.consumerName().startsWith(CONSUMER_PREFIX)) {
+                    stringRedisTemplate.opsForStream().deleteConsumer(
+                            SECKILL_ORDER_STREAM, Consumer.from(SECKILL_ORDER_GROUP, c.consumerName()));
+                }
+            });
+        }
+
+        //XTRIM stream.orders MINID ~ id  最小的未ACK消息之前的都已经处理完
+        //查pending、最后投递的id和裁剪在一个脚本里完成，避免查完之后消费者又读走一批，把还没ACK的消息裁掉
+        private void trimAcknowledged() {
+            Long trimmed = stringRedisTemplate.execute(STREAM_TRIM_SCRIPT,
+                    Collections.singletonList(SECKILL_ORDER_STREAM), SECKILL_ORDER_GROUP);
+            if (trimmed != null && trimmed > 0) {
+                log.debug("裁剪{} {}条已确认的消息", SECKILL_ORDER_STREAM, trimmed);
+            }
+        }
+    }
+
 
     //用Stream队列
     @Override
     public Result seckillVoucher(Long voucherId) {
         //获取用户
         Long userId = UserHolder.getUser().getId();
+        //0. 本地判断秒杀状态 未开始、已结束、已卖完直接返回，不访问Redis
+        SeckillGate.State state = seckillGate.state(voucherId);
+        if (state != SeckillGate.State.OPEN) {
+            return Result.fail(state.getMessage());
+        }
         //获取订单id
         long orderId = redisIdWorker.nextId("order");
-        //1执行lua脚本
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(),
-                userId.toString(),
-                String.valueOf(orderId));
+        //1执行lua脚本 分片的券按分片扣库存，分片之前创建的券还是单个key
+        int r;
+        if (seckillStockShards.shardCount(voucherId) > 0) {
+            r = seckillStockShards.tryAcquire(voucherId, userId, orderId, SECKILL_ORDER_STREAM);
+        } else {
+            Long result = stringRedisTemplate.execute(
+                    SECKILL_SCRIPT,
+                    Collections.emptyList(),
+                    voucherId.toString(),
+                    userId.toString(),
+                    String.valueOf(orderId));
+            r = result.intValue();
+        }
         //2判断结果是否为0
-        int r = result.intValue();
         if (r != 0) {
-            //2.1 不为0 没有购买资格
+            //2.1 不为0 没有购买资格 库存不足时本地标记卖完
+            if (r == 1) {
+                seckillGate.markSoldOut(voucherId);
+            }
             return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
         }
-        //2.2 为0 有购买资格
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
+        seckillGate.markOpen(voucherId);
+        //2.2 为0 有购买资格 订单已经由lua脚本写入stream.orders
 
         //3返回订单id
         return Result.ok(orderId);
     }
 
 
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        //不是主线程，不能从UserHolder中取userId
-//        Long userId = UserHolder.getUser().getId();
-        //1. 只能从voucherOrder中取
-        Long userId = voucherOrder.getUserId();
-
-
-        //2. 创建锁对象
-        //Reddison锁
-        RLock simpleRedisLock = redissonClient.getLock("order:" + userId);
-        //3. 获取锁  这里不加锁也可以
-//        boolean isLock = simpleRedisLock.tryLock(1200);
-        boolean isLock = simpleRedisLock.tryLock();  //默认 失败不等待
-        //4. 判断是否获取锁成功
-        if (!isLock) {
-            //获取锁失败，返回错误或重试
-            log.error("不允许重复下单");
-        }
-        try {
-            //获取代理对象(spring中事务的机制)  这里也是拿不到
-            proxy.createVoucherOrder(voucherOrder);
-        } finally {
-            //释放锁
-            simpleRedisLock.unlock();
-        }
-    }
-
     @Transactional
     public void createVoucherOrder(VoucherOrder voucherOrder) {
         Long userId = voucherOrder.getUserId();
@@ -235,15 +449,126 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         save(voucherOrder);
     }
 
+    //批量创建订单 一人一单和库存已经在lua脚本中校验过，这里只做幂等过滤
+    @Override
+    @Transactional
+    public int createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        //1. 查出这批用户在这批券上已有的订单，过滤掉重复投递的消息
+        Set<Long> userIds = voucherOrders.stream().map(VoucherOrder::getUserId).collect(Collectors.toSet());
+        Set<Long> voucherIds = voucherOrders.stream().map(VoucherOrder::getVoucherId).collect(Collectors.toSet());
+        Set<String> existed = lambdaQuery()
+                .select(VoucherOrder::getUserId, VoucherOrder::getVoucherId)
+                .in(VoucherOrder::getUserId, userIds)
+                .in(VoucherOrder::getVoucherId, voucherIds)
+                .list()
+                .stream()
+                .map(o -> o.getUserId() + ":" + o.getVoucherId())
+                .collect(Collectors.toSet());
+        //2. 按券分组 同一批内同一用户也只保留一单
+        Map<Long, List<VoucherOrder>> ordersOfVoucher = new HashMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            if (!existed.add(voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId())) {
+                log.error("用户已经购买过一次！userId={}, voucherId={}", voucherOrder.getUserId(), voucherOrder.getVoucherId());
+                continue;
+            }
+            ordersOfVoucher.computeIfAbsent(voucherOrder.getVoucherId(), k -> new ArrayList<>()).add(voucherOrder);
+        }
+        //3. 每张券只扣一次库存 update tb_seckill_voucher set stock = stock - n where voucher_id = ? and stock >= n
+        List<VoucherOrder> toSave = new ArrayList<>(voucherOrders.size());
+        ordersOfVoucher.forEach((voucherId, orders) -> {
+            int n = orders.size();
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + n)
+                    .eq("voucher_id", voucherId)
+                    .ge("stock", n)
+                    .update();
+            if (!success) {
+                // 扣减失败 redis与数据库库存不一致
+                log.error("库存不足！voucherId={}, count={}", voucherId, n);
+                return;
+            }
+            toSave.addAll(orders);
+        });
+        //4. 一条多值insert写入所有订单
+        if (!toSave.isEmpty()) {
+            getBaseMapper().insertBatch(toSave);
+        }
+        return toSave.size();
+    }
+
+    @Override
+    public Result queryOrderStreamStats() {
+        OrderStreamStats stats = new OrderStreamStats();
+        stats.setConsumers(consumerCount);
+        stats.setBatchSize(batchSize);
+        long consumed = consumedCount.get();
+        long persisted = persistedCount.get();
+        long batches = batchCount.get();
+        stats.setConsumed(consumed);
+        stats.setPersisted(persisted);
+        stats.setBatches(batches);
+        stats.setFailedBatches(failedBatchCount.get());
+        stats.setReclaimed(reclaimedCount.get());
+        stats.setDeadLettered(deadLetterCount.get());
+        stats.setAvgBatchMillis(batches == 0 ? 0 : (double) batchCostMillis.get() / batches);
+        long elapsed = System.currentTimeMillis() - firstConsumeTime;
+        stats.setOrdersPerSecond(firstConsumeTime == 0 || elapsed <= 0 ? 0 : persisted * 1000.0 / elapsed);
+        //1. 队列长度 XLEN
+        stats.setStreamLength(stringRedisTemplate.opsForStream().size(SECKILL_ORDER_STREAM));
+        //2. 消费组的pending数量和最后投递的id XINFO GROUPS
+        StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(SECKILL_ORDER_STREAM);
+        groups.stream()
+                .filter(g -> SECKILL_ORDER_GROUP.equals(g.groupName()))
+                .findFirst()
+                .ifPresent(g -> {
+                    stats.setPendingCount(g.pendingCount());
+                    //3. 最早一条还没投递的消息，其id中的时间戳就是积压的时长
+                    List<MapRecord<String, Object, Object>> next = stringRedisTemplate.opsForStream().range(
+                            SECKILL_ORDER_STREAM,
+                            Range.rightUnbounded(Range.Bound.exclusive(g.lastDeliveredId())),
+                            Limit.limit().count(1));
+                    if (next != null && !next.isEmpty()) {
+                        stats.setLagMillis(Math.max(0, System.currentTimeMillis() - next.get(0).getId().getTimestamp()));
+                    } else {
+                        stats.setLagMillis(0L);
+                    }
+                });
+        return Result.ok(stats);
+    }
+
+    //创建消费组 XGROUP CREATE stream.orders g1 0 MKSTREAM
+    private void createGroupIfAbsent() {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands().xGroupCreate(
+                    RedisSerializer.string().serialize(SECKILL_ORDER_STREAM), SECKILL_ORDER_GROUP, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            //BUSYGROUP 消费组已经存在
+            log.debug("消费组{}已存在", SECKILL_ORDER_GROUP);
+        }
+    }
+
     //注解表示在spring初始化后，就开始执行。
     //目的是为了在项目启动后立即开始执行阻塞队列处理功能
     @PostConstruct
     private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        createGroupIfAbsent();
+        AtomicInteger threadIndex = new AtomicInteger();
+        SECKILL_ORDER_EXECUTOR = Executors.newFixedThreadPool(consumerCount,
+                r -> new Thread(r, "seckill-order-" + threadIndex.getAndIncrement()));
+        for (int i = 0; i < consumerCount; i++) {
+            SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler(CONSUMER_PREFIX + i));
+        }
+        PENDING_RECLAIM_EXECUTOR.scheduleWithFixedDelay(new PendingOrderReclaimer(), 5, 5, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        running = false;
+        PENDING_RECLAIM_EXECUTOR.shutdown();
+        SECKILL_ORDER_EXECUTOR.shutdown();
+        SECKILL_ORDER_EXECUTOR.awaitTermination(5, TimeUnit.SECONDS);
     }
 
-    //代理对象
-    private IVoucherOrderService proxy;
 
 
 
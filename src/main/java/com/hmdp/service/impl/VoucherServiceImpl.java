@@ -7,10 +7,10 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
-import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillGate;
+import com.hmdp.utils.SeckillStockShards;
 import jakarta.annotation.Resource;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -32,7 +32,10 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     private ISeckillVoucherService seckillVoucherService;
 
     @Autowired
-    private StringRedisTemplate stringRedisTemplate;
+    private SeckillStockShards seckillStockShards;
+
+    @Autowired
+    private SeckillGate seckillGate;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -54,7 +57,9 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
-        //保存秒杀券信息到Redis中
-        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY+voucher.getId(), voucher.getStock().toString());
+        //保存秒杀券库存到Redis中 按分片保存
+        seckillStockShards.init(voucher.getId(), voucher.getStock());
+        //通知各节点重新加载秒杀时间
+        seckillGate.reset(voucher.getId());
     }
 }
@@ -0,0 +1,404 @@
+package com.hmdp.utils;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 二进制缓存格式
+ * 按类的字段生成schema，只写字段值不写字段名：头部 | 空值位图 | 各字段值，整数用变长编码。
+ * 头部带schema的hash，实体类改了字段后旧缓存解码失败，由调用方当作未命中重新加载。
+ * 超过压缩阈值的数据用Deflater压缩。字段类型不支持的类退回JSON，不是本格式的数据也按JSON解码。
+ */
+public class BinaryCacheCodec implements CacheCodec {
+
+    //JSON只会以 { [ " 或数字开头，不会和这个字节冲突
+    private static final byte MAGIC = (byte) 0xB7;
+    private static final int FLAG_COMPRESSED = 1;
+    private static final int FLAG_LIST = 1 << 1;
+    //magic + flags + schemaId
+    private static final int HEADER_LENGTH = 6;
+
+    private enum Kind { LONG, INT, DOUBLE, BOOLEAN, STRING, LOCAL_DATE_TIME, LOCAL_DATE }
+
+    private static final Map<Class<?>, Kind> KINDS = Map.ofEntries(
+            Map.entry(Long.class, Kind.LONG), Map.entry(long.class, Kind.LONG),
+            Map.entry(Integer.class, Kind.INT), Map.entry(int.class, Kind.INT),
+            Map.entry(Double.class, Kind.DOUBLE), Map.entry(double.class, Kind.DOUBLE),
+            Map.entry(Boolean.class, Kind.BOOLEAN), Map.entry(boolean.class, Kind.BOOLEAN),
+            Map.entry(String.class, Kind.STRING),
+            Map.entry(LocalDateTime.class, Kind.LOCAL_DATE_TIME),
+            Map.entry(LocalDate.class, Kind.LOCAL_DATE));
+
+    //类 -> schema 不支持的类为UNSUPPORTED
+    private static final Map<Class<?>, Schema> SCHEMAS = new ConcurrentHashMap<>();
+    private static final Schema UNSUPPORTED = new Schema(null, null, null, 0);
+
+    private final JsonCacheCodec jsonCodec = new JsonCacheCodec();
+    //编码后超过这个字节数才压缩
+    private final int compressThreshold;
+
+    public BinaryCacheCodec(int compressThreshold) {
+        this.compressThreshold = compressThreshold;
+    }
+
+    public static boolean isBinary(byte[] bytes) {
+        return bytes.length >= HEADER_LENGTH && bytes[0] == MAGIC;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        boolean list = value instanceof List;
+        List<?> values = list ? (List<?>) value : Collections.singletonList(value);
+        Class<?> type = values.isEmpty() || values.get(0) == null ? null : values.get(0).getClass();
+        Schema schema = type == null ? null : schemaOf(type);
+        if (type == null || schema == UNSUPPORTED
+                || values.stream().anyMatch(v -> v == null || v.getClass() != type)) {
+            //空List、有null、类型不一致或者字段不支持 用JSON
+            return jsonCodec.encode(value);
+        }
+        //1.写字段值
+        Output body = new Output(64 * values.size());
+        if (list) {
+            body.writeVarLong(values.size());
+        }
+        for (Object v : values) {
+            schema.write(v, body);
+        }
+        //2.超过阈值压缩
+        int flags = list ? FLAG_LIST : 0;
+        byte[] payload = body.toByteArray();
+        if (payload.length >= compressThreshold) {
+            byte[] compressed = deflate(payload);
+            if (compressed != null) {
+                payload = compressed;
+                flags |= FLAG_COMPRESSED;
+            }
+        }
+        //3.拼上头部
+        byte[] bytes = new byte[HEADER_LENGTH + payload.length];
+        bytes[0] = MAGIC;
+        bytes[1] = (byte) flags;
+        writeInt(bytes, 2, schema.id);
+        System.arraycopy(payload, 0, bytes, HEADER_LENGTH, payload.length);
+        return bytes;
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, Class<R> type) {
+        if (!isBinary(bytes)) {
+            return jsonCodec.decode(bytes, type);
+        }
+        Input in = open(bytes, type, false);
+        return type.cast(schemaOf(type).read(in));
+    }
+
+    @Override
+    public <R> List<R> decodeList(byte[] bytes, Class<R> type) {
+        if (!isBinary(bytes)) {
+            return jsonCodec.decodeList(bytes, type);
+        }
+        Input in = open(bytes, type, true);
+        Schema schema = schemaOf(type);
+        int size = (int) in.readVarLong();
+        List<R> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(type.cast(schema.read(in)));
+        }
+        return list;
+    }
+
+    //校验头部 返回指向字段值的输入
+    private Input open(byte[] bytes, Class<?> type, boolean list) {
+        int flags = bytes[1];
+        Schema schema = schemaOf(type);
+        if (schema == UNSUPPORTED || schema.id != readInt(bytes, 2) || ((flags & FLAG_LIST) != 0) != list) {
+            throw new IllegalStateException("缓存数据和" + type.getSimpleName() + "的schema不一致");
+        }
+        if ((flags & FLAG_COMPRESSED) == 0) {
+            return new Input(bytes, HEADER_LENGTH);
+        }
+        return new Input(inflate(bytes, HEADER_LENGTH), 0);
+    }
+
+    private static Schema schemaOf(Class<?> type) {
+        return SCHEMAS.computeIfAbsent(type, Schema::build);
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            Output out = new Output(raw.length / 2 + 8);
+            out.writeVarLong(raw.length);
+            byte[] buf = new byte[raw.length];
+            int n = deflater.deflate(buf);
+            if (!deflater.finished() || out.size + n >= raw.length) {
+                //压缩后没有变小
+                return null;
+            }
+            out.write(buf, 0, n);
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] bytes, int offset) {
+        Input in = new Input(bytes, offset);
+        byte[] raw = new byte[(int) in.readVarLong()];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes, in.pos, bytes.length - in.pos);
+            int n = inflater.inflate(raw);
+            if (n != raw.length) {
+                throw new IllegalStateException("缓存数据解压失败");
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("缓存数据解压失败", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int v) {
+        bytes[offset] = (byte) (v >>> 24);
+        bytes[offset + 1] = (byte) (v >>> 16);
+        bytes[offset + 2] = (byte) (v >>> 8);
+        bytes[offset + 3] = (byte) v;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16
+                | (bytes[offset + 2] & 0xFF) << 8 | bytes[offset + 3] & 0xFF;
+    }
+
+    //一个类的字段布局 字段按名字排序，id是字段名和类型的hash
+    private static class Schema {
+        final Constructor<?> constructor;
+        final Field[] fields;
+        final Kind[] kinds;
+        final int id;
+
+        Schema(Constructor<?> constructor, Field[] fields, Kind[] kinds, int id) {
+            this.constructor = constructor;
+            this.fields = fields;
+            this.kinds = kinds;
+            this.id = id;
+        }
+
+        static Schema build(Class<?> type) {
+            List<Field> fields = new ArrayList<>();
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field f : c.getDeclaredFields()) {
+                    if (!Modifier.isStatic(f.getModifiers()) && !Modifier.isTransient(f.getModifiers())) {
+                        fields.add(f);
+                    }
+                }
+            }
+            fields.sort(Comparator.comparing(Field::getName));
+            Kind[] kinds = new Kind[fields.size()];
+            StringBuilder layout = new StringBuilder();
+            for (int i = 0; i < kinds.length; i++) {
+                Field f = fields.get(i);
+                kinds[i] = KINDS.get(f.getType());
+                if (kinds[i] == null) {
+                    return UNSUPPORTED;
+                }
+                layout.append(f.getName()).append(':').append(kinds[i]).append(';');
+            }
+            try {
+                //java.base等模块里的类(Long、LocalDate…)不允许反射访问 抛InaccessibleObjectException，退回JSON
+                for (Field f : fields) {
+                    f.setAccessible(true);
+                }
+                Constructor<?> constructor = type.getDeclaredConstructor();
+                constructor.setAccessible(true);
+                return new Schema(constructor, fields.toArray(new Field[0]), kinds, layout.toString().hashCode());
+            } catch (NoSuchMethodException | RuntimeException e) {
+                return UNSUPPORTED;
+            }
+        }
+
+        void write(Object obj, Output out) {
+            try {
+                //1.空值位图
+                Object[] values = new Object[fields.length];
+                byte[] nulls = new byte[(fields.length + 7) >>> 3];
+                for (int i = 0; i < fields.length; i++) {
+                    values[i] = fields[i].get(obj);
+                    if (values[i] == null) {
+                        nulls[i >>> 3] |= (byte) (1 << (i & 7));
+                    }
+                }
+                out.write(nulls, 0, nulls.length);
+                //2.非空字段的值
+                for (int i = 0; i < fields.length; i++) {
+                    if (values[i] != null) {
+                        writeValue(kinds[i], values[i], out);
+                    }
+                }
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        Object read(Input in) {
+            try {
+                Object obj = constructor.newInstance();
+                int nullsAt = in.pos;
+                in.pos += (fields.length + 7) >>> 3;
+                for (int i = 0; i < fields.length; i++) {
+                    if ((in.bytes[nullsAt + (i >>> 3)] & (1 << (i & 7))) == 0) {
+                        fields[i].set(obj, readValue(kinds[i], in));
+                    }
+                }
+                return obj;
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static void writeValue(Kind kind, Object v, Output out) {
+            switch (kind) {
+                case LONG -> out.writeZigZag((Long) v);
+                case INT -> out.writeZigZag((Integer) v);
+                case DOUBLE -> out.writeLong(Double.doubleToRawLongBits((Double) v));
+                case BOOLEAN -> out.writeByte((Boolean) v ? 1 : 0);
+                case STRING -> {
+                    byte[] b = ((String) v).getBytes(StandardCharsets.UTF_8);
+                    out.writeVarLong(b.length);
+                    out.write(b, 0, b.length);
+                }
+                case LOCAL_DATE_TIME -> {
+                    LocalDateTime t = (LocalDateTime) v;
+                    out.writeZigZag(t.toEpochSecond(ZoneOffset.UTC));
+                    out.writeVarLong(t.getNano());
+                }
+                case LOCAL_DATE -> out.writeZigZag(((LocalDate) v).toEpochDay());
+            }
+        }
+
+        private static Object readValue(Kind kind, Input in) {
+            return switch (kind) {
+                case LONG -> in.readZigZag();
+                case INT -> (int) in.readZigZag();
+                case DOUBLE -> Double.longBitsToDouble(in.readLong());
+                case BOOLEAN -> in.bytes[in.pos++] != 0;
+                case STRING -> {
+                    int length = (int) in.readVarLong();
+                    String s = new String(in.bytes, in.pos, length, StandardCharsets.UTF_8);
+                    in.pos += length;
+                    yield s;
+                }
+                case LOCAL_DATE_TIME -> {
+                    long second = in.readZigZag();
+                    yield LocalDateTime.ofEpochSecond(second, (int) in.readVarLong(), ZoneOffset.UTC);
+                }
+                case LOCAL_DATE -> LocalDate.ofEpochDay(in.readZigZag());
+            };
+        }
+    }
+
+    //不加锁的字节缓冲 比ByteArrayOutputStream少一层同步
+    private static class Output {
+        byte[] bytes;
+        int size;
+
+        Output(int capacity) {
+            bytes = new byte[Math.max(capacity, 16)];
+        }
+
+        void ensure(int n) {
+            if (size + n > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + n));
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            bytes[size++] = (byte) b;
+        }
+
+        void write(byte[] b, int off, int len) {
+            ensure(len);
+            System.arraycopy(b, off, bytes, size, len);
+            size += len;
+        }
+
+        void writeLong(long v) {
+            ensure(8);
+            for (int i = 7; i >= 0; i--) {
+                bytes[size++] = (byte) (v >>> (i * 8));
+            }
+        }
+
+        void writeVarLong(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                bytes[size++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            bytes[size++] = (byte) v;
+        }
+
+        //负数也编码得短
+        void writeZigZag(long v) {
+            writeVarLong((v << 1) ^ (v >> 63));
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+    }
+
+    private static class Input {
+        final byte[] bytes;
+        int pos;
+
+        Input(byte[] bytes, int pos) {
+            this.bytes = bytes;
+            this.pos = pos;
+        }
+
+        long readLong() {
+            long v = 0;
+            for (int i = 0; i < 8; i++) {
+                v = v << 8 | (bytes[pos++] & 0xFF);
+            }
+            return v;
+        }
+
+        long readVarLong() {
+            long v = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = bytes[pos++];
+                v |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return v;
+                }
+            }
+        }
+
+        long readZigZag() {
+            long v = readVarLong();
+            return (v >>> 1) ^ -(v & 1);
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.BooleanUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.dto.ScrollResult;
+import com.hmdp.entity.Follow;
+import com.hmdp.mapper.FollowMapper;
+import com.hmdp.service.IFollowService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.FEED_CELEBRITY_KEY;
+import static com.hmdp.utils.RedisConstants.FEED_KEY;
+import static com.hmdp.utils.RedisConstants.FEED_OUTBOX_KEY;
+
+/**
+ * 关注的人的笔记流 推拉结合
+ * 普通作者发笔记时由FeedFanoutWorker异步推送到每个粉丝的收件箱feed:{userId}；
+ * 粉丝数超过阈值的大V只写自己的发件箱feed:out:{userId}，粉丝读取时再拉取，和收件箱按时间合并。
+ * 收件箱和发件箱都只保留最新的若干篇；收件箱长期不读会过期，过期后不再推送，下次读取时从关注的人的发件箱重建。
+ */
+@Slf4j
+@Component
+public class BlogFeed {
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private FollowMapper followMapper;
+
+    @Autowired
+    private FeedFanoutWorker feedFanoutWorker;
+
+    @Autowired
+    private IFollowService followService;
+
+    //粉丝数达到这个值的作者只写发件箱
+    @Value("${hmdp.feed.celebrity-followers:10000}")
+    private long celebrityFollowers;
+
+    //收件箱最多保留的笔记数
+    @Value("${hmdp.feed.inbox.max-size:1000}")
+    private int inboxMaxSize;
+
+    //收件箱多少天不读就过期
+    @Value("${hmdp.feed.inbox.inactive-days:7}")
+    private long inboxInactiveDays;
+
+    //发件箱最多保留的笔记数
+    @Value("${hmdp.feed.outbox.max-size:1000}")
+    private int outboxMaxSize;
+
+    //统计内存时最多抽样的key数
+    private static final int MEMORY_SAMPLE_SIZE = 1000;
+
+    //空收件箱的占位 分数-1不会被读到，只为保留key和过期时间
+    private static final String EMPTY_MEMBER = "-";
+
+    //读取时收件箱存在的次数和重建的次数
+    private final LongAdder inboxHits = new LongAdder();
+    private final LongAdder inboxRebuilds = new LongAdder();
+
+    //发布笔记 大V只写发件箱，普通作者异步推送给粉丝
+    public void publish(Long authorId, Long blogId, long timestamp) {
+        // 1.所有作者都写发件箱 只保留最新的outboxMaxSize篇
+        String outboxKey = FEED_OUTBOX_KEY + authorId;
+        stringRedisTemplate.opsForZSet().add(outboxKey, blogId.toString(), timestamp);
+        stringRedisTemplate.opsForZSet().removeRange(outboxKey, 0, -outboxMaxSize - 1L);
+        // 2.判断是否大V 成为大V后不再改回推送，否则以前的笔记会从粉丝的笔记流里消失
+        if (isCelebrity(authorId)) {
+            return;
+        }
+        // 3.普通作者 写入stream.feed，异步推送到粉丝收件箱
+        feedFanoutWorker.submit(authorId, blogId, timestamp);
+    }
+
+    private boolean isCelebrity(Long authorId) {
+        if (BooleanUtil.isTrue(stringRedisTemplate.opsForSet().isMember(FEED_CELEBRITY_KEY, authorId.toString()))) {
+            return true;
+        }
+        Long fans = followMapper.selectCount(new QueryWrapper<Follow>().eq("follow_user_id", authorId));
+        if (fans < celebrityFollowers) {
+            return false;
+        }
+        stringRedisTemplate.opsForSet().add(FEED_CELEBRITY_KEY, authorId.toString());
+        return true;
+    }
+
+    //滚动分页 收件箱和关注的大V的发件箱按时间倒序合并
+    //从时间戳max往下取，跳过时间戳等于max的前offset篇
+    public ScrollResult scroll(Long userId, long max, int offset, int pageSize) {
+        // 1.收件箱过期了先重建 没过期就续期
+        String inboxKey = FEED_KEY + userId;
+        if (BooleanUtil.isTrue(stringRedisTemplate.expire(inboxKey, inboxInactiveDays, TimeUnit.DAYS))) {
+            inboxHits.increment();
+        } else {
+            rebuildInbox(userId);
+        }
+        // 2.关注的大V 关注集合不存在时先从数据库加载，否则关注的大V的笔记都会漏掉
+        Set<String> celebrities = stringRedisTemplate.opsForSet().intersect(followService.loadFollows(userId), FEED_CELEBRITY_KEY);
+        List<String> keys = new ArrayList<>();
+        keys.add(inboxKey);
+        if (celebrities != null) {
+            celebrities.forEach(id -> keys.add(FEED_OUTBOX_KEY + id));
+        }
+        // 3.每个来源都取前offset + pageSize篇 一个pipeline
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                connection.zSetCommands().zRevRangeByScoreWithScores(
+                        key.getBytes(StandardCharsets.UTF_8), 0, max, 0, offset + pageSize);
+            }
+            return null;
+        });
+        // 4.按时间倒序合并 跳过上一页已经返回的offset篇
+        // 作者成为大V之前推送的笔记在收件箱和发件箱里都有，按笔记id去重
+        Map<String, ZSetOperations.TypedTuple<String>> unique = new HashMap<>();
+        for (Object result : results) {
+            @SuppressWarnings("unchecked")
+            Set<ZSetOperations.TypedTuple<String>> tuples = (Set<ZSetOperations.TypedTuple<String>>) result;
+            if (tuples != null) {
+                tuples.forEach(tuple -> unique.putIfAbsent(tuple.getValue(), tuple));
+            }
+        }
+        //时间相同的按id排 每次翻页顺序一致
+        List<ZSetOperations.TypedTuple<String>> merged = new ArrayList<>(unique.values());
+        merged.sort(Comparator.comparing(ZSetOperations.TypedTuple<String>::getScore)
+                .thenComparing(ZSetOperations.TypedTuple::getValue).reversed());
+        List<ZSetOperations.TypedTuple<String>> page =
+                merged.subList(Math.min(offset, merged.size()), Math.min(offset + pageSize, merged.size()));
+        // 5.解析出笔记id、最小时间戳和下一页的offset
+        List<Long> ids = new ArrayList<>(page.size());
+        long minTime = max;
+        int count = 0;
+        for (ZSetOperations.TypedTuple<String> tuple : page) {
+            ids.add(Long.valueOf(tuple.getValue()));
+            long time = tuple.getScore().longValue();
+            if (time == minTime) {
+                count++;
+            } else {
+                minTime = time;
+                count = 1;
+            }
+        }
+        ScrollResult r = new ScrollResult();
+        r.setList(ids);
+        r.setMinTime(minTime);
+        //整页都和上一页最后一篇时间相同 偏移要累加
+        r.setOffset(minTime == max ? offset + count : count);
+        return r;
+    }
+
+    //从关注的普通作者的发件箱重建收件箱 大V的笔记读取时拉取，不放进收件箱
+    private void rebuildInbox(Long userId) {
+        inboxRebuilds.increment();
+        // 1.关注的人
+        List<Object> followees = followMapper.selectObjs(new QueryWrapper<Follow>()
+                .select("follow_user_id").eq("user_id", userId));
+        Set<String> celebrities = stringRedisTemplate.opsForSet().members(FEED_CELEBRITY_KEY);
+        List<String> outboxKeys = new ArrayList<>();
+        for (Object followee : followees) {
+            String id = followee.toString();
+            if (celebrities == null || !celebrities.contains(id)) {
+                outboxKeys.add(FEED_OUTBOX_KEY + id);
+            }
+        }
+        // 2.每个发件箱取最新的inboxMaxSize篇 一个pipeline
+        List<Object> results = outboxKeys.isEmpty() ? List.of()
+                : stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : outboxKeys) {
+                connection.zSetCommands().zRevRangeWithScores(key.getBytes(StandardCharsets.UTF_8), 0, inboxMaxSize - 1);
+            }
+            return null;
+        });
+        Set<ZSetOperations.TypedTuple<String>> tuples = new HashSet<>();
+        tuples.add(new DefaultTypedTuple<>(EMPTY_MEMBER, -1D));
+        for (Object result : results) {
+            @SuppressWarnings("unchecked")
+            Set<ZSetOperations.TypedTuple<String>> outbox = (Set<ZSetOperations.TypedTuple<String>>) result;
+            if (outbox != null) {
+                tuples.addAll(outbox);
+            }
+        }
+        // 3.写入收件箱 只保留最新的inboxMaxSize篇
+        String inboxKey = FEED_KEY + userId;
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            byte[] key = inboxKey.getBytes(StandardCharsets.UTF_8);
+            for (ZSetOperations.TypedTuple<String> tuple : tuples) {
+                connection.zSetCommands().zAdd(key, tuple.getScore(), tuple.getValue().getBytes(StandardCharsets.UTF_8));
+            }
+            connection.zSetCommands().zRemRange(key, 0, -inboxMaxSize - 1L);
+            connection.keyCommands().expire(key, TimeUnit.DAYS.toSeconds(inboxInactiveDays));
+            return null;
+        });
+    }
+
+    //笔记流占用的内存 遍历feed:*，按抽样的key估算
+    public Map<String, Object> stats() {
+        long inboxes = 0, outboxes = 0, inboxEntries = 0, outboxEntries = 0;
+        long sampledKeys = 0, sampledBytes = 0;
+        ScanOptions options = ScanOptions.scanOptions().match(FEED_KEY + "*").count(1000).build();
+        List<String> batch = new ArrayList<>();
+        try (Cursor<String> cursor = stringRedisTemplate.scan(options)) {
+            while (cursor.hasNext()) {
+                String key = cursor.next();
+                if (!key.equals(FEED_CELEBRITY_KEY)) {
+                    batch.add(key);
+                }
+                if (batch.size() < 1000 && cursor.hasNext()) {
+                    continue;
+                }
+                // 一批key的ZCARD一个pipeline 抽样的key查MEMORY USAGE
+                List<Object> sizes = zCards(batch);
+                for (int i = 0; i < batch.size(); i++) {
+                    String k = batch.get(i);
+                    long size = sizes.get(i) == null ? 0 : (Long) sizes.get(i);
+                    if (k.startsWith(FEED_OUTBOX_KEY)) {
+                        outboxes++;
+                        outboxEntries += size;
+                    } else {
+                        inboxes++;
+                        inboxEntries += size;
+                    }
+                    if (sampledKeys < MEMORY_SAMPLE_SIZE) {
+                        Long bytes = stringRedisTemplate.execute((RedisCallback<Long>) connection ->
+                                (Long) connection.execute("MEMORY", "USAGE".getBytes(StandardCharsets.UTF_8),
+                                        k.getBytes(StandardCharsets.UTF_8)));
+                        if (bytes != null) {
+                            sampledKeys++;
+                            sampledBytes += bytes;
+                        }
+                    }
+                }
+                batch.clear();
+            }
+        }
+        long keys = inboxes + outboxes;
+        Map<String, Object> s = new LinkedHashMap<>();
+        s.put("inboxes", inboxes);
+        s.put("inboxEntries", inboxEntries);
+        s.put("outboxes", outboxes);
+        s.put("outboxEntries", outboxEntries);
+        s.put("celebrities", stringRedisTemplate.opsForSet().size(FEED_CELEBRITY_KEY));
+        s.put("sampledKeys", sampledKeys);
+        s.put("estimatedBytes", sampledKeys == 0 ? 0 : sampledBytes * keys / sampledKeys);
+        s.put("inboxHits", inboxHits.sum());
+        s.put("inboxRebuilds", inboxRebuilds.sum());
+        s.put("fanout", feedFanoutWorker.stats());
+        return s;
+    }
+
+    private List<Object> zCards(List<String> keys) {
+        if (keys.isEmpty()) {
+            return List.of();
+        }
+        return stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                connection.zSetCommands().zCard(key.getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+    }
+}
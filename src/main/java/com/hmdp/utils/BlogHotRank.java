@@ -0,0 +1,213 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.BooleanUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.dto.ScrollResult;
+import com.hmdp.entity.Blog;
+import com.hmdp.mapper.BlogMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.BLOG_HOT_KEY;
+import static com.hmdp.utils.RedisConstants.BLOG_LIKED_APPLIED_FIELD;
+import static com.hmdp.utils.RedisConstants.BLOG_LIKED_BATCH_FIELD;
+import static com.hmdp.utils.RedisConstants.BLOG_LIKED_DELTA_KEY;
+import static com.hmdp.utils.RedisConstants.BLOG_LIKED_FLUSHING_KEY;
+import static com.hmdp.utils.RedisConstants.LOCK_BLOG_HOT_KEY;
+
+/**
+ * 热门笔记排行 zset blog:hot，member为笔记id，score为点赞数
+ * 点赞、发布笔记时增量更新，后台定时按数据库的liked加上还没写回的增量校准，并只保留前size篇。
+ * 排行还没建好时返回null，由调用方退回数据库查询。
+ */
+@Slf4j
+@Component
+public class BlogHotRank {
+
+    //每次从数据库取的笔记数
+    private static final int RECONCILE_BATCH = 1000;
+
+    //在排行里时才增加分数
+    private static final DefaultRedisScript<Long> HOT_INCREMENT_SCRIPT;
+
+    static {
+        HOT_INCREMENT_SCRIPT = new DefaultRedisScript<>();
+        HOT_INCREMENT_SCRIPT.setLocation(new ClassPathResource("hotIncrement.lua"));
+        HOT_INCREMENT_SCRIPT.setResultType(Long.class);
+    }
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private BlogMapper blogMapper;
+
+    //排行保留的笔记数
+    @Value("${hmdp.blog.hot.size:10000}")
+    private int size;
+
+    //多久按数据库校准一次
+    @Value("${hmdp.blog.hot.reconcile-minutes:10}")
+    private long reconcileMinutes;
+
+    private final ScheduledExecutorService RECONCILE_EXECUTOR =
+            Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "blog-hot-reconciler"));
+
+    //点赞或取消点赞
+    public void incrementLiked(Long blogId, int delta) {
+        //只更新已在排行里的笔记 不在排行里的由校准任务按数据库补上
+        stringRedisTemplate.execute(HOT_INCREMENT_SCRIPT, Collections.singletonList(BLOG_HOT_KEY),
+                blogId.toString(), String.valueOf(delta));
+    }
+
+    //新发布的笔记
+    public void add(Long blogId) {
+        stringRedisTemplate.opsForZSet().addIfAbsent(BLOG_HOT_KEY, blogId.toString(), 0);
+    }
+
+    //第current页的笔记id 从1开始 排行还没建好时返回null
+    public List<Long> page(int current, int pageSize) {
+        long start = (long) (current - 1) * pageSize;
+        Set<String> ids = stringRedisTemplate.opsForZSet().reverseRange(BLOG_HOT_KEY, start, start + pageSize - 1);
+        if (ids == null || (ids.isEmpty() && !ready())) {
+            return null;
+        }
+        return ids.stream().map(Long::valueOf).toList();
+    }
+
+    //滚动分页 从点赞数max往下取，跳过点赞数等于max的前offset篇
+    //翻页期间排行变化也不会重复或漏掉同分的笔记 排行还没建好时返回null
+    public ScrollResult scroll(long max, int offset, int pageSize) {
+        Set<ZSetOperations.TypedTuple<String>> tuples = stringRedisTemplate.opsForZSet()
+                .reverseRangeByScoreWithScores(BLOG_HOT_KEY, Double.NEGATIVE_INFINITY, max, offset, pageSize);
+        if (tuples == null || (tuples.isEmpty() && !ready())) {
+            return null;
+        }
+        List<Long> ids = new ArrayList<>(tuples.size());
+        long minScore = max;
+        int count = 0;
+        for (ZSetOperations.TypedTuple<String> tuple : tuples) {
+            ids.add(Long.valueOf(tuple.getValue()));
+            long score = tuple.getScore().longValue();
+            if (score == minScore) {
+                count++;
+            } else {
+                minScore = score;
+                count = 1;
+            }
+        }
+        ScrollResult r = new ScrollResult();
+        r.setList(ids);
+        r.setMinTime(minScore);
+        //整页都和上一页最后一篇同分 偏移要累加
+        r.setOffset(minScore == max ? offset + count : count);
+        return r;
+    }
+
+    public boolean ready() {
+        return BooleanUtil.isTrue(stringRedisTemplate.hasKey(BLOG_HOT_KEY));
+    }
+
+    //按数据库的liked加上还没写回的增量覆盖排行中的分数，再只保留前size篇
+    //只用数据库的liked会把排行回退到上次写回时，每次校准热门笔记都会掉下去
+    public void reconcile() {
+        //多个节点只需要一个校准 锁不主动释放，到期前其他节点都跳过
+        Boolean locked = stringRedisTemplate.opsForValue().setIfAbsent(
+                LOCK_BLOG_HOT_KEY, "1", Math.max(1, reconcileMinutes * 60 - 10), TimeUnit.SECONDS);
+        if (!BooleanUtil.isTrue(locked)) {
+            return;
+        }
+        long begin = System.currentTimeMillis();
+        long lastId = 0;
+        int total = 0;
+        while (true) {
+            List<Blog> blogs = blogMapper.selectList(new QueryWrapper<Blog>()
+                    .select("id", "liked").gt("id", lastId).orderByAsc("id").last("limit " + RECONCILE_BATCH));
+            if (blogs.isEmpty()) {
+                break;
+            }
+            int[] pending = pendingDeltas(blogs);
+            Set<ZSetOperations.TypedTuple<String>> tuples = new HashSet<>(blogs.size());
+            for (int i = 0; i < blogs.size(); i++) {
+                Blog blog = blogs.get(i);
+                int liked = (blog.getLiked() == null ? 0 : blog.getLiked()) + pending[i];
+                tuples.add(new DefaultTypedTuple<>(blog.getId().toString(), (double) Math.max(liked, 0)));
+            }
+            //一批一个ZADD 每批之后只保留前size篇
+            stringRedisTemplate.opsForZSet().add(BLOG_HOT_KEY, tuples);
+            stringRedisTemplate.opsForZSet().removeRange(BLOG_HOT_KEY, 0, -size - 1L);
+            total += blogs.size();
+            lastId = blogs.get(blogs.size() - 1).getId();
+        }
+        log.info("热门笔记排行校准完成，{}篇，耗时{}ms", total, System.currentTimeMillis() - begin);
+    }
+
+    //还没写回数据库的点赞数增量 blog:liked:delta加上正在写回的一批，这一批已写入数据库时不再加
+    private int[] pendingDeltas(List<Blog> blogs) {
+        byte[][] fields = new byte[blogs.size() + 2][];
+        for (int i = 0; i < blogs.size(); i++) {
+            fields[i] = blogs.get(i).getId().toString().getBytes(StandardCharsets.UTF_8);
+        }
+        fields[blogs.size()] = BLOG_LIKED_BATCH_FIELD.getBytes(StandardCharsets.UTF_8);
+        fields[blogs.size() + 1] = BLOG_LIKED_APPLIED_FIELD.getBytes(StandardCharsets.UTF_8);
+        byte[][] blogFields = Arrays.copyOf(fields, blogs.size());
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.hashCommands().hMGet(BLOG_LIKED_DELTA_KEY.getBytes(StandardCharsets.UTF_8), blogFields);
+            connection.hashCommands().hMGet(BLOG_LIKED_FLUSHING_KEY.getBytes(StandardCharsets.UTF_8), fields);
+            return null;
+        });
+        @SuppressWarnings("unchecked")
+        List<Object> deltas = (List<Object>) results.get(0);
+        @SuppressWarnings("unchecked")
+        List<Object> flushing = (List<Object>) results.get(1);
+        Object batch = flushing.get(blogs.size());
+        boolean flushed = batch != null && batch.equals(flushing.get(blogs.size() + 1));
+        int[] pending = new int[blogs.size()];
+        for (int i = 0; i < blogs.size(); i++) {
+            pending[i] = parseDelta(deltas.get(i)) + (flushed ? 0 : parseDelta(flushing.get(i)));
+        }
+        return pending;
+    }
+
+    private static int parseDelta(Object delta) {
+        return delta == null ? 0 : Integer.parseInt(delta.toString());
+    }
+
+    @PostConstruct
+    private void init() {
+        //启动时先校准一次 排行不存在时相当于重建
+        RECONCILE_EXECUTOR.scheduleWithFixedDelay(() -> {
+            try {
+                reconcile();
+            } catch (Exception e) {
+                log.error("热门笔记排行校准失败", e);
+            }
+        }, 0, reconcileMinutes, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        RECONCILE_EXECUTOR.shutdown();
+    }
+}
@@ -0,0 +1,89 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 本地布隆过滤器 只放long型的id
+ * 按预计元素个数和误判率算出位数m和哈希次数k，k个位置由两个哈希值组合得到：h1 + i * h2。
+ * 只能添加不能删除，判断不存在时一定不存在。
+ */
+public class BloomFilter {
+
+    private final AtomicLongArray bits;
+    private final long bitSize;
+    private final int hashCount;
+    //添加过的次数 重复添加也会计数，只用于估算误判率
+    private final LongAdder insertions = new LongAdder();
+
+    public BloomFilter(long expectedInsertions, double fpp) {
+        if (expectedInsertions <= 0 || fpp <= 0 || fpp >= 1) {
+            throw new IllegalArgumentException("布隆过滤器参数错误");
+        }
+        //m = -n * ln(p) / (ln2)^2  k = m / n * ln2
+        long m = (long) Math.ceil(-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        int words = (int) Math.min(Integer.MAX_VALUE - 8, (m + 63) >>> 6);
+        this.bits = new AtomicLongArray(words);
+        this.bitSize = (long) words << 6;
+        this.hashCount = Math.max(1, (int) Math.round((double) bitSize / expectedInsertions * Math.log(2)));
+    }
+
+    public void put(long id) {
+        long h1 = mix(id);
+        long h2 = mix(h1);
+        for (int i = 1; i <= hashCount; i++) {
+            long index = index(h1 + i * h2);
+            long mask = 1L << index;
+            int word = (int) (index >>> 6);
+            long old = bits.get(word);
+            while ((old & mask) == 0 && !bits.compareAndSet(word, old, old | mask)) {
+                old = bits.get(word);
+            }
+        }
+        insertions.increment();
+    }
+
+    public boolean mightContain(long id) {
+        long h1 = mix(id);
+        long h2 = mix(h1);
+        for (int i = 1; i <= hashCount; i++) {
+            long index = index(h1 + i * h2);
+            if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long bitSize() {
+        return bitSize;
+    }
+
+    public int hashCount() {
+        return hashCount;
+    }
+
+    public long insertions() {
+        return insertions.sum();
+    }
+
+    //按当前已添加的个数估算的误判率 (1 - e^(-kn/m))^k
+    public double expectedFpp() {
+        return Math.pow(1 - Math.exp(-hashCount * (double) insertions() / bitSize), hashCount);
+    }
+
+    private long index(long combined) {
+        //去掉符号位 保证落在[0, bitSize)
+        return (combined & Long.MAX_VALUE) % bitSize;
+    }
+
+    //murmur3的fmix64 让连续的id也分散开
+    private static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb93fe53a87ebL;
+        k ^= k >>> 33;
+        return k;
+    }
+}
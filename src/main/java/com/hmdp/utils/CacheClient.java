@@ -3,18 +3,50 @@ package com.hmdp.utils;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
-import org.springframework.util.StringUtils;
 
-import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.function.Predicate;
+
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
 
 
 @Slf4j
@@ -24,22 +56,206 @@ public class CacheClient {
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
+    //缓存值按codec编码后以字节存储
+    @Autowired
+    private RedisTemplate<String, byte[]> byteRedisTemplate;
+
+    @Autowired
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    //binary：按schema的二进制格式  json：原来的Hutool JSON
+    @Value("${hmdp.cache.codec.format:binary}")
+    private String codecFormat;
+
+    //编码后超过这个字节数才压缩
+    @Value("${hmdp.cache.codec.compress-threshold:1024}")
+    private int compressThreshold;
+
+    private CacheCodec codec;
+
+    //本地缓存最多占用的字节数（按编码后的长度估算）
+    @Value("${hmdp.cache.local.max-weight:50000000}")
+    private long localMaxWeight;
+
+    //本地缓存过期时间 要比Redis的短，其他节点的失效通知丢了也只会旧这么久
+    @Value("${hmdp.cache.local.ttl-seconds:60}")
+    private long localTtlSeconds;
+
+    //一级缓存 进程内，值是反序列化好的对象，调用方不要修改返回的对象
+    private Cache<String, LocalValue> localCache;
+
+    //二级缓存（Redis）命中、未命中，以及查数据库的次数
+    private final LongAdder redisHits = new LongAdder();
+    private final LongAdder redisMisses = new LongAdder();
+    private final LongAdder dbLoads = new LongAdder();
+    //等待本节点其他线程加载、等待其他节点加载的次数
+    private final LongAdder singleFlightWaits = new LongAdder();
+    private final LongAdder lockWaits = new LongAdder();
+    //Redis中的值解码失败（实体类字段改了）当作未命中的次数
+    private final LongAdder decodeErrors = new LongAdder();
+    //被布隆过滤器拦下的不存在的id
+    private final LongAdder bloomRejected = new LongAdder();
+
+    //正在加载的key 并发未命中时共用一个future
+    private final Map<String, CompletableFuture<Object>> inFlightLoads = new ConcurrentHashMap<>();
+
+    //未命中时等待其他线程、其他节点加载的最长时间
+    @Value("${hmdp.cache.load-timeout-millis:3000}")
+    private long loadTimeoutMillis;
+
+    //没拿到分布式锁时多久看一次Redis
+    private static final long LOCK_RETRY_MILLIS = 50;
+
+    //逻辑过期的值的头部：版本 | 过期时间 | 加载耗时
+    private static final byte LOGICAL_VERSION = 1;
+    private static final int LOGICAL_HEADER_LENGTH = 1 + Long.BYTES + Integer.BYTES;
+
+    //提前重建的力度 越大越早重建
+    @Value("${hmdp.cache.rebuild.xfetch-beta:1.0}")
+    private double xfetchBeta;
+
+    @Value("${hmdp.cache.rebuild.threads:4}")
+    private int rebuildThreads;
+
+    //等待重建的任务数上限 满了就先返回旧值
+    @Value("${hmdp.cache.rebuild.queue-capacity:1000}")
+    private int rebuildQueueCapacity;
+
+    //在查询时，为了避免缓存击穿，用逻辑删除 重建放到这个线程池里
+    private ThreadPoolExecutor CACHE_REBUILD_EXECUTOR;
+    //本节点正在重建的key
+    private final Set<String> rebuildingKeys = ConcurrentHashMap.newKeySet();
+    private final LongAdder rebuilds = new LongAdder();
+    private final LongAdder rebuildNanos = new LongAdder();
+    private final LongAdder rebuildErrors = new LongAdder();
+    private final LongAdder rebuildRejected = new LongAdder();
+    //还没过期就提前重建的次数
+    private final LongAdder earlyRefreshes = new LongAdder();
+
+    //本地缓存的值 value为null表示空值
+    private record LocalValue(Object value, int weight, long ttlNanos) {
+    }
+
+    @PostConstruct
+    private void init() {
+        codec = "json".equals(codecFormat) ? new JsonCacheCodec() : new BinaryCacheCodec(compressThreshold);
+        AtomicInteger threadIndex = new AtomicInteger();
+        CACHE_REBUILD_EXECUTOR = new ThreadPoolExecutor(rebuildThreads, rebuildThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(rebuildQueueCapacity), r -> {
+                    Thread t = new Thread(r, "cache-rebuild-" + threadIndex.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                });
+        localCache = Caffeine.newBuilder()
+                .maximumWeight(localMaxWeight)
+                .weigher((String key, LocalValue v) -> v.weight())
+                .expireAfter(new Expiry<String, LocalValue>() {
+                    @Override
+                    public long expireAfterCreate(String key, LocalValue v, long currentTime) {
+                        return v.ttlNanos();
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String key, LocalValue v, long currentTime, long currentDuration) {
+                        return v.ttlNanos();
+                    }
+
+                    @Override
+                    public long expireAfterRead(String key, LocalValue v, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .recordStats()
+                .build();
+        //其他节点删除缓存时 清掉本地的
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> localCache.invalidate(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+    }
+
+    @PreDestroy
+    private void destroy() {
+        CACHE_REBUILD_EXECUTOR.shutdown();
+    }
+
+    private LocalValue putLocal(String key, Object value, int weight, long ttlNanos) {
+        LocalValue v = new LocalValue(value, Math.max(weight, 1), ttlNanos);
+        localCache.put(key, v);
+        return v;
+    }
+
+    //删除缓存 数据库更新后调用，同时通知所有节点删除本地缓存
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        localCache.invalidate(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    //各级缓存的命中情况
+    public Map<String, Object> stats() {
+        CacheStats local = localCache.stats();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("localSize", localCache.estimatedSize());
+        stats.put("localHits", local.hitCount());
+        stats.put("localMisses", local.missCount());
+        stats.put("localEvictions", local.evictionCount());
+        stats.put("redisHits", redisHits.sum());
+        stats.put("redisMisses", redisMisses.sum());
+        stats.put("dbLoads", dbLoads.sum());
+        stats.put("singleFlightWaits", singleFlightWaits.sum());
+        stats.put("lockWaits", lockWaits.sum());
+        stats.put("decodeErrors", decodeErrors.sum());
+        stats.put("bloomRejected", bloomRejected.sum());
+        long rebuildCount = rebuilds.sum();
+        stats.put("rebuilds", rebuildCount);
+        stats.put("earlyRefreshes", earlyRefreshes.sum());
+        stats.put("rebuildErrors", rebuildErrors.sum());
+        stats.put("rebuildRejected", rebuildRejected.sum());
+        stats.put("rebuildAvgMillis", rebuildCount == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(rebuildNanos.sum() / rebuildCount));
+        stats.put("rebuildActive", CACHE_REBUILD_EXECUTOR.getActiveCount());
+        stats.put("rebuildQueued", CACHE_REBUILD_EXECUTOR.getQueue().size());
+        return stats;
+    }
+
     //带过期时间的存储
     public void set(String key, Object value, long time, TimeUnit unit) {
-        String jsonValue = JSONUtil.toJsonStr(value);
-        stringRedisTemplate.opsForValue().set(key, jsonValue, time, unit);
+        byteRedisTemplate.opsForValue().set(key, codec.encode(value), time, unit);
+    }
+
+    //不过期的存储
+    public void set(String key, Object value) {
+        byteRedisTemplate.opsForValue().set(key, codec.encode(value));
+    }
+
+    //读取set存的List 不存在或者解码失败返回null
+    public <R> List<R> getList(String key, Class<R> type) {
+        byte[] bytes = byteRedisTemplate.opsForValue().get(key);
+        if (bytes == null || bytes.length == 0) {
+            return null;
+        }
+        try {
+            return codec.decodeList(bytes, type);
+        } catch (RuntimeException e) {
+            decodeErrors.increment();
+            log.debug("缓存{}解码失败", key, e);
+            return null;
+        }
     }
 
     //带逻辑过期的存储
     public void setWithLogicalExpire(String key, Object value, long time, TimeUnit unit) {
+        setWithLogicalExpire(key, value, time, unit, 0);
+    }
+
+    //格式：版本 | 逻辑过期时间的毫秒数 | 上次加载耗时的毫秒数 | 编码后的数据，读取时不用再经过RedisData和JSONObject转两次
+    private void setWithLogicalExpire(String key, Object value, long time, TimeUnit unit, int loadMillis) {
         //设置逻辑过期
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(time));
+        long expireAt = System.currentTimeMillis() + unit.toMillis(time);
+        byte[] data = value == null ? new byte[0] : codec.encode(value);
         //写入Reis
-        String jsonValue = JSONUtil.toJsonStr(redisData);
-        stringRedisTemplate.opsForValue().set(key, jsonValue);
-
+        byte[] bytes = ByteBuffer.allocate(LOGICAL_HEADER_LENGTH + data.length)
+                .put(LOGICAL_VERSION).putLong(expireAt).putInt(loadMillis).put(data).array();
+        byteRedisTemplate.opsForValue().set(key, bytes);
     }
 
 
@@ -48,94 +264,358 @@ public class CacheClient {
     public <R, ID> R queryWithPassThrough(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback,
             long time, TimeUnit unit) {
-        String key = RedisConstants.CACHE_SHOP_KEY + id;
-        //1.从redis中查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
-        //2.判断是否存在
-        if (StringUtils.hasText(json)) {
-            //3.存在直接返回
-            return JSONUtil.toBean(json, type);
-        }
-        //判断命中的是否为空值
-        if (json != null) {
-            //此时json为""
+        return queryWithPassThrough(keyPrefix, id, type, dbFallback, time, unit, null);
+    }
+
+    //mightExist为布隆过滤器 判断id一定不存在时直接返回null，不查Redis和数据库，也不写空值
+    public <R, ID> R queryWithPassThrough(
+            String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback,
+            long time, TimeUnit unit, Predicate<ID> mightExist) {
+        if (mightExist != null && !mightExist.test(id)) {
+            bloomRejected.increment();
             return null;
         }
-        //4.不存在，根据id查数据库。
+        String key = keyPrefix + id;
+        //0.先查本地缓存
+        LocalValue local = localCache.getIfPresent(key);
+        if (local != null) {
+            return type.cast(local.value());
+        }
+        //1.从redis中查询商铺缓存
+        byte[] bytes = byteRedisTemplate.opsForValue().get(key);
+        //2.判断是否存在 命中空值时bytes长度为0
+        if (bytes != null) {
+            LocalValue cached = fromRedis(key, bytes, type, time, unit);
+            if (cached != null) {
+                //3.存在 放入本地缓存后返回
+                redisHits.increment();
+                return type.cast(cached.value());
+            }
+        }
+        redisMisses.increment();
+        //4.不存在，根据id查数据库。同一个key并发未命中时只查一次
         //此时不知道要在什么数据库上查，需要调用者自己写这段方法
-        //T为参数，R为返回值
-        R r = dbFallback.apply(id);
-        //5.不存在，返回空值
-        if (r == null) {
-            //将空值写入redis
-            stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.SECONDS);
+        return loadSingleFlight(key, id, type, dbFallback, time, unit);
+    }
+
+    //Redis中读到的值 解码后放入本地缓存
+    //实体类改了字段导致解码失败时返回null，当作未命中重新加载
+    private <R> LocalValue fromRedis(String key, byte[] bytes, Class<R> type, long time, TimeUnit unit) {
+        if (bytes.length == 0) {
+            return putLocal(key, null, 1, TimeUnit.SECONDS.toNanos(RedisConstants.CACHE_NULL_TTL));
+        }
+        R r;
+        try {
+            r = codec.decode(bytes, type);
+        } catch (RuntimeException e) {
+            decodeErrors.increment();
+            log.debug("缓存{}解码失败，重新加载", key, e);
             return null;
         }
-        //6.存在,写入redis
-//        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(r), time, unit);
-        this.set(key, JSONUtil.toJsonStr(r), time, unit);
+        return putLocal(key, r, bytes.length, localTtlNanos(time, unit));
+    }
 
-        return r;
+    //本节点内同一个key同时只有一个线程去加载，其他线程等它的结果
+    private <R, ID> R loadSingleFlight(
+            String key, ID id, Class<R> type, Function<ID, R> dbFallback,
+            long time, TimeUnit unit) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> inFlight = inFlightLoads.putIfAbsent(key, future);
+        if (inFlight != null) {
+            //已经有线程在加载 最多等loadTimeoutMillis
+            singleFlightWaits.increment();
+            try {
+                return type.cast(inFlight.get(loadTimeoutMillis, TimeUnit.MILLISECONDS));
+            } catch (TimeoutException e) {
+                throw new RuntimeException("加载缓存超时：" + key, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        try {
+            R r = loadWithLock(key, id, type, dbFallback, time, unit);
+            future.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightLoads.remove(key, future);
+        }
+    }
+
+    //用分布式锁保证多个节点也只有一个去查数据库
+    private <R, ID> R loadWithLock(
+            String key, ID id, Class<R> type, Function<ID, R> dbFallback,
+            long time, TimeUnit unit) {
+        String lockKey = RedisConstants.LOCK_CACHE_KEY + key;
+        long deadline = System.currentTimeMillis() + loadTimeoutMillis;
+        boolean isLock = tryLock(lockKey);
+        while (!isLock) {
+            //1.其他节点在查 等它写入Redis
+            lockWaits.increment();
+            try {
+                Thread.sleep(LOCK_RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            LocalValue cached = getFromRedis(key, type, time, unit);
+            if (cached != null) {
+                return type.cast(cached.value());
+            }
+            if (System.currentTimeMillis() > deadline) {
+                //2.等太久了 持锁的节点可能已经挂了，不再等锁直接查
+                break;
+            }
+            isLock = tryLock(lockKey);
+        }
+        try {
+            //3.双重检查 锁可能是刚重建完缓存的节点释放的
+            if (isLock) {
+                LocalValue cached = getFromRedis(key, type, time, unit);
+                if (cached != null) {
+                    return type.cast(cached.value());
+                }
+            }
+            //T为参数，R为返回值
+            dbLoads.increment();
+            R r = dbFallback.apply(id);
+            //4.不存在，返回空值
+            if (r == null) {
+                //将空值写入redis
+                byteRedisTemplate.opsForValue().set(key, new byte[0], RedisConstants.CACHE_NULL_TTL, TimeUnit.SECONDS);
+                putLocal(key, null, 1, TimeUnit.SECONDS.toNanos(RedisConstants.CACHE_NULL_TTL));
+                return null;
+            }
+            //5.存在,写入redis和本地缓存
+            byte[] bytes = codec.encode(r);
+            byteRedisTemplate.opsForValue().set(key, bytes, time, unit);
+            putLocal(key, r, bytes.length, localTtlNanos(time, unit));
+            return r;
+        } finally {
+            if (isLock) {
+                unLock(lockKey);
+            }
+        }
+    }
+
+    private <R> LocalValue getFromRedis(String key, Class<R> type, long time, TimeUnit unit) {
+        byte[] bytes = byteRedisTemplate.opsForValue().get(key);
+        return bytes == null ? null : fromRedis(key, bytes, type, time, unit);
+    }
+
+    //批量查询 返回的List和ids顺序一致，不存在的为null
+    //本地缓存 -> 一次MGET -> 未命中的一次交给dbFallback批量查库 -> 一次pipeline写回
+    public <R, ID> List<R> queryBatch(
+            String keyPrefix, Collection<ID> ids, Class<R> type, Function<Collection<ID>, Map<ID, R>> dbFallback,
+            long time, TimeUnit unit) {
+        List<ID> idList = new ArrayList<>(ids);
+        List<R> result = new ArrayList<>(Collections.nCopies(idList.size(), null));
+        //1.先查本地缓存
+        List<Integer> redisIndexes = new ArrayList<>();
+        List<String> redisKeys = new ArrayList<>();
+        for (int i = 0; i < idList.size(); i++) {
+            String key = keyPrefix + idList.get(i);
+            LocalValue local = localCache.getIfPresent(key);
+            if (local != null) {
+                result.set(i, type.cast(local.value()));
+            } else {
+                redisIndexes.add(i);
+                redisKeys.add(key);
+            }
+        }
+        if (redisKeys.isEmpty()) {
+            return result;
+        }
+        //2.一次MGET查redis
+        List<byte[]> values = byteRedisTemplate.opsForValue().multiGet(redisKeys);
+        //未命中的id -> 在结果中的位置 ids可能有重复
+        Map<ID, List<Integer>> misses = new LinkedHashMap<>();
+        for (int j = 0; j < redisKeys.size(); j++) {
+            int i = redisIndexes.get(j);
+            byte[] bytes = values == null ? null : values.get(j);
+            LocalValue cached = bytes == null ? null : fromRedis(redisKeys.get(j), bytes, type, time, unit);
+            if (cached != null) {
+                redisHits.increment();
+                result.set(i, type.cast(cached.value()));
+            } else {
+                redisMisses.increment();
+                misses.computeIfAbsent(idList.get(i), k -> new ArrayList<>()).add(i);
+            }
+        }
+        if (misses.isEmpty()) {
+            return result;
+        }
+        //3.未命中的一次查库
+        dbLoads.increment();
+        Map<ID, R> loaded = dbFallback.apply(misses.keySet());
+        //4.一次pipeline写回redis 数据库中没有的写空值，TTL加上随机值避免同时过期
+        byteRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Map.Entry<ID, List<Integer>> e : misses.entrySet()) {
+                R r = loaded == null ? null : loaded.get(e.getKey());
+                String key = keyPrefix + e.getKey();
+                byte[] bytes;
+                long ttlMillis;
+                if (r == null) {
+                    bytes = new byte[0];
+                    ttlMillis = TimeUnit.SECONDS.toMillis(RedisConstants.CACHE_NULL_TTL);
+                    putLocal(key, null, 1, TimeUnit.MILLISECONDS.toNanos(ttlMillis));
+                } else {
+                    bytes = codec.encode(r);
+                    ttlMillis = jitter(unit.toMillis(time));
+                    putLocal(key, r, bytes.length, localTtlNanos(time, unit));
+                }
+                connection.stringCommands().set(key.getBytes(StandardCharsets.UTF_8), bytes,
+                        Expiration.milliseconds(ttlMillis), RedisStringCommands.SetOption.upsert());
+                for (int i : e.getValue()) {
+                    result.set(i, r);
+                }
+            }
+            return null;
+        });
+        return result;
+    }
+
+    //过期时间加上0~10%的随机值 同一批写入的key不会在同一时刻过期
+    private static long jitter(long ttlMillis) {
+        return ttlMillis + ThreadLocalRandom.current().nextLong(ttlMillis / 10 + 1);
+    }
+
+    //本地缓存的过期时间 不超过Redis的过期时间
+    private long localTtlNanos(long time, TimeUnit unit) {
+        return Math.min(TimeUnit.SECONDS.toNanos(localTtlSeconds), unit.toNanos(time));
     }
 
 
     //在查询时，为了避免缓存击穿，用逻辑删除
-    //创建线程池
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
     //使用逻辑过期避免缓存击穿
     //这里的背景是在热点key的情况下，事先把热点key存到了redis中。不需要考虑缓存穿透
+    //快过期时按XFetch的概率提前重建：now - 加载耗时 * beta * ln(random) >= 过期时间，
+    //越接近过期、加载越慢越容易触发，热点key不会真的过期，各个key的重建也不会集中在同一时刻
     public  <R, T> R queryWithLogicalExpire(
             String keyPrefix, T id, Class<R> type, Function<T, R> dbFallback,
             long time, TimeUnit unit) {
         String key = keyPrefix + id;
         //1.从redis中查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = byteRedisTemplate.opsForValue().get(key);
         //2.判断是否存在
-        if (!StringUtils.hasText(json)) {
+        if (bytes == null || bytes.length == 0) {
             //3.不存在直接返回
             return null;
         }
         //4.命中，先反序列化
-        //字符串shopJson转为RedisData，此时data实际为JSONObject对象
-        //data再转为Shop对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        JSONObject data = (JSONObject) redisData.getData();
-        R r = JSONUtil.toBean(data, type);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        //5.判断是否过期
-        if (expireTime.isAfter(LocalDateTime.now())) {
-            //5.1未过期，返回店铺信息
-            return r;
+        R r = null;
+        long expireAt = 0;
+        int loadMillis = 0;
+        boolean decodeFailed = false;
+        try {
+            if (bytes[0] == '{') {
+                //以前写入的JSON格式 字符串转为RedisData，此时data实际为JSONObject对象，data再转为Shop对象
+                RedisData redisData = JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), RedisData.class);
+                r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
+                expireAt = redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            } else if (bytes[0] == LOGICAL_VERSION) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, 1, LOGICAL_HEADER_LENGTH - 1);
+                expireAt = buffer.getLong();
+                loadMillis = buffer.getInt();
+                if (bytes.length > LOGICAL_HEADER_LENGTH) {
+                    r = codec.decode(Arrays.copyOfRange(bytes, LOGICAL_HEADER_LENGTH, bytes.length), type);
+                }
+            } else {
+                //既不是JSON也不是带版本头的格式 按解码失败处理
+                throw new IllegalStateException("未知的逻辑过期缓存格式 " + bytes[0]);
+            }
+        } catch (RuntimeException e) {
+            //解码失败 当作已过期重建
+            decodeErrors.increment();
+            log.debug("缓存{}解码失败，重新加载", key, e);
+            expireAt = 0;
+            decodeFailed = true;
+        }
+        //5.判断是否过期 或者是否要提前重建
+        long now = System.currentTimeMillis();
+        if (expireAt > now) {
+            double random = 1 - ThreadLocalRandom.current().nextDouble();
+            if (now - loadMillis * xfetchBeta * Math.log(random) < expireAt) {
+                //5.1未过期，返回店铺信息
+                return r;
+            }
+            earlyRefreshes.increment();
         }
         //5.2过期，需要缓存重建
+        rebuildAsync(key, decodeFailed ? Long.MAX_VALUE : expireAt, id, dbFallback, time, unit);
+        //6.4返回过期的商铺信息
+        return r;
+    }
 
-        //6.缓存重建
+    //6.缓存重建 seenExpireAt是读到的过期时间，解码失败时为Long.MAX_VALUE表示一定要重建
+    private <R, T> void rebuildAsync(String key, long seenExpireAt, T id, Function<T, R> dbFallback,
+                                     long time, TimeUnit unit) {
+        //本节点已经在重建这个key 不用再去抢锁
+        if (!rebuildingKeys.add(key)) {
+            return;
+        }
         //6.1获取互斥锁
-        String lockKey = RedisConstants.LOCK_SHOP_KEY+id;
-        boolean isLock = tryLock(lockKey);
-        //6.2判断是否获取成功
-        if (isLock) {
+        String lockKey = RedisConstants.LOCK_CACHE_KEY + key;
+        boolean isLock = false;
+        try {
+            isLock = tryLock(lockKey);
+            //6.2判断是否获取成功
+            if (!isLock) {
+                rebuildingKeys.remove(key);
+                return;
+            }
             //6.3成功 开启独立线程，实现缓存重建
-            //这里要做双重检查double check
-            //这里获取到的锁可能是上一个线程刚刚做完缓存重建所释放的，这样的话目标数据已经缓存重建完毕了，因此有必要做双重检查
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
+            CACHE_REBUILD_EXECUTOR.execute(() -> {
                 try {
+                    //这里要做双重检查double check
+                    //这里获取到的锁可能是上一个节点刚刚做完缓存重建所释放的，这样的话目标数据已经缓存重建完毕了
+                    if (seenExpireAt != Long.MAX_VALUE && logicalExpireAt(key) > seenExpireAt) {
+                        return;
+                    }
                     //重建缓存
-                    //查数据库 需要用户传入函数
+                    //查数据库 需要用户传入函数 记录耗时用于下次提前重建
+                    long begin = System.nanoTime();
                     R r1 = dbFallback.apply(id);
+                    long cost = System.nanoTime() - begin;
                     //写入redis
-                    this.setWithLogicalExpire(key, r1, time, unit);
-                    Thread.sleep(200);  //模拟延迟
+                    this.setWithLogicalExpire(key, r1, time, unit, (int) TimeUnit.NANOSECONDS.toMillis(cost));
+                    rebuilds.increment();
+                    rebuildNanos.add(cost);
                 } catch (Exception e) {
-                    throw new RuntimeException(e);
+                    rebuildErrors.increment();
+                    log.error("缓存{}重建失败", key, e);
                 } finally {
                     //释放锁 要写到finally中
                     unLock(lockKey);
+                    rebuildingKeys.remove(key);
                 }
             });
+        } catch (RejectedExecutionException e) {
+            //队列满了 这次不重建，返回旧值，下个请求再试
+            rebuildRejected.increment();
+            unLock(lockKey);
+            rebuildingKeys.remove(key);
+        } catch (RuntimeException e) {
+            if (isLock) {
+                unLock(lockKey);
+            }
+            rebuildingKeys.remove(key);
+            throw e;
         }
-        //6.4返回过期的商铺信息
-        return r;
+    }
+
+    //当前Redis中的逻辑过期时间 读不到返回0
+    private long logicalExpireAt(String key) {
+        byte[] bytes = byteRedisTemplate.opsForValue().get(key);
+        if (bytes == null || bytes.length < LOGICAL_HEADER_LENGTH || bytes[0] != LOGICAL_VERSION) {
+            return 0;
+        }
+        return ByteBuffer.wrap(bytes, 1, Long.BYTES).getLong();
     }
 
 
@@ -0,0 +1,17 @@
+package com.hmdp.utils;
+
+import java.util.List;
+
+/**
+ * 缓存值的编解码
+ * CacheClient用它把对象转成Redis中存的字节，换实现不影响调用方。
+ */
+public interface CacheCodec {
+
+    //value可以是一个对象，也可以是同一种对象的List
+    byte[] encode(Object value);
+
+    <R> R decode(byte[] bytes, Class<R> type);
+
+    <R> List<R> decodeList(byte[] bytes, Class<R> type);
+}
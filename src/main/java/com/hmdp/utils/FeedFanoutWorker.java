@@ -0,0 +1,410 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Follow;
+import com.hmdp.mapper.FollowMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.Limit;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.FEED_FANOUT_DLQ_STREAM;
+import static com.hmdp.utils.RedisConstants.FEED_FANOUT_GROUP;
+import static com.hmdp.utils.RedisConstants.FEED_FANOUT_PROGRESS_KEY;
+import static com.hmdp.utils.RedisConstants.FEED_FANOUT_STREAM;
+import static com.hmdp.utils.RedisConstants.FEED_KEY;
+
+/**
+ * 笔记推送 发布笔记时只往stream.feed写一条消息，由推送线程消费
+ * 每条消息按粉丝的用户id分页，一页粉丝的收件箱一个pipeline写入，每页写完把进度记到stream.feed:progress，
+ * 中途宕机后消息由回收线程XCLAIM过来，交回推送线程从记录的进度继续推送；投递次数超过上限的转入stream.feed.dlq。
+ * 每个推送线程一次只处理一条消息，写完一页才查下一页，推送对Redis和数据库的压力不随发笔记的速度上涨，积压留在stream里。
+ */
+@Slf4j
+@Component
+public class FeedFanoutWorker {
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private FollowMapper followMapper;
+
+    //推送线程数
+    @Value("${hmdp.feed.fanout.workers:2}")
+    private int workerCount;
+
+    //每次从数据库取的粉丝数，也是一个pipeline写入的收件箱数
+    @Value("${hmdp.feed.fanout.batch-size:1000}")
+    private int batchSize;
+
+    //推送消息的最大投递次数 超过后转入stream.feed.dlq
+    @Value("${hmdp.feed.fanout.max-retries:3}")
+    private int maxRetries;
+
+    //pending消息空闲超过这个时间才会被回收
+    @Value("${hmdp.feed.fanout.reclaim-idle-ms:60000}")
+    private long reclaimIdleMillis;
+
+    //积压超过这个数打印告警
+    @Value("${hmdp.feed.fanout.max-backlog:10000}")
+    private long maxBacklog;
+
+    //收件箱最多保留的笔记数
+    @Value("${hmdp.feed.inbox.max-size:1000}")
+    private int inboxMaxSize;
+
+    //每次XPENDING扫描的条数
+    private static final long RECLAIM_SCAN_COUNT = 100;
+
+    //收件箱存在时才推送
+    private static final DefaultRedisScript<Long> FEED_PUSH_SCRIPT;
+    //裁剪已确认的消息
+    private static final DefaultRedisScript<Long> STREAM_TRIM_SCRIPT;
+
+    static {
+        FEED_PUSH_SCRIPT = new DefaultRedisScript<>();
+        FEED_PUSH_SCRIPT.setLocation(new ClassPathResource("feedPush.lua"));
+        FEED_PUSH_SCRIPT.setResultType(Long.class);
+        STREAM_TRIM_SCRIPT = new DefaultRedisScript<>();
+        STREAM_TRIM_SCRIPT.setLocation(new ClassPathResource("streamTrim.lua"));
+        STREAM_TRIM_SCRIPT.setResultType(Long.class);
+    }
+
+    //消费者名称前缀 pid@host，保证多个节点、多次重启的消费者名称都不重复
+    private static final String CONSUMER_PREFIX = "c-" + ManagementFactory.getRuntimeMXBean().getName() + "-";
+
+    private ExecutorService FANOUT_EXECUTOR;
+
+    //pending list回收线程
+    private final ScheduledExecutorService RECLAIM_EXECUTOR =
+            Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "feed-fanout-reclaimer"));
+
+    //回收线程XCLAIM过来的消息 由推送线程优先处理，回收线程不自己推送
+    private final BlockingQueue<MapRecord<String, Object, Object>> reclaimed = new LinkedBlockingQueue<>();
+
+    private volatile boolean running = true;
+
+    //统计 延迟从写入stream算到推送完最后一页
+    private final LongAdder published = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder deadLettered = new LongAdder();
+    private final LongAdder resumed = new LongAdder();
+    private final LongAdder pages = new LongAdder();
+    private final LongAdder pushed = new LongAdder();
+    private final LongAdder latencyMillis = new LongAdder();
+    private final AtomicLong maxLatencyMillis = new AtomicLong();
+
+    //写入一条推送消息 XADD stream.feed * authorId .. blogId .. timestamp ..
+    public void submit(Long authorId, Long blogId, long timestamp) {
+        stringRedisTemplate.opsForStream().add(FEED_FANOUT_STREAM, Map.of(
+                "authorId", authorId.toString(),
+                "blogId", blogId.toString(),
+                "timestamp", String.valueOf(timestamp)));
+        published.increment();
+    }
+
+    private class FanoutHandler implements Runnable {
+        private final String consumerName;
+
+        FanoutHandler(String consumerName) {
+            this.consumerName = consumerName;
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    //1. 先处理回收过来的消息
+                    MapRecord<String, Object, Object> claimed = reclaimed.poll();
+                    if (claimed != null) {
+                        handle(claimed);
+                        continue;
+                    }
+                    //2. 一次只取一条 XREADGROUP GROUP g1 cx COUNT 1 BLOCK 2000 STREAMS stream.feed >
+                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                            Consumer.from(FEED_FANOUT_GROUP, consumerName),
+                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
+                            StreamOffset.create(FEED_FANOUT_STREAM, ReadOffset.lastConsumed())
+                    );
+                    if (list == null || list.isEmpty()) {
+                        continue;
+                    }
+                    //3. 推送 失败的消息留在pending list里交给回收线程
+                    handle(list.get(0));
+                } catch (Exception e) {
+                    if (!running) {
+                        break;
+                    }
+                    log.error("推送笔记异常", e);
+                }
+            }
+        }
+    }
+
+    //按粉丝的用户id分页推送 从记录的进度开始，每页写完更新进度，全部写完后ACK
+    private void handle(MapRecord<String, Object, Object> record) {
+        String recordId = record.getId().getValue();
+        Map<Object, Object> value = record.getValue();
+        Long authorId = Long.valueOf(value.get("authorId").toString());
+        byte[] blogId = value.get("blogId").toString().getBytes(StandardCharsets.UTF_8);
+        byte[] timestamp = value.get("timestamp").toString().getBytes(StandardCharsets.UTF_8);
+        byte[] maxSize = String.valueOf(inboxMaxSize).getBytes(StandardCharsets.UTF_8);
+        // 1.上次推送到的粉丝id
+        Object progress = stringRedisTemplate.opsForHash().get(FEED_FANOUT_PROGRESS_KEY, recordId);
+        long lastId = 0;
+        if (progress != null) {
+            lastId = Long.parseLong(progress.toString());
+            resumed.increment();
+        }
+        while (running) {
+            // where follow_user_id = ? and user_id > ? order by user_id，idx_follow_user覆盖
+            List<Follow> follows = followMapper.selectList(new QueryWrapper<Follow>()
+                    .select("user_id").eq("follow_user_id", authorId)
+                    .gt("user_id", lastId).orderByAsc("user_id").last("limit " + batchSize));
+            if (!follows.isEmpty()) {
+                // 2.一页粉丝的推送放在一个pipeline里 收件箱已过期的跳过
+                push(follows, timestamp, blogId, maxSize);
+                lastId = follows.get(follows.size() - 1).getUserId();
+                pages.increment();
+                pushed.add(follows.size());
+            }
+            if (follows.size() < batchSize) {
+                // 3.全部写完 先删进度再ACK，ACK前宕机只会从头重推，ZADD重复写入没有影响
+                stringRedisTemplate.opsForHash().delete(FEED_FANOUT_PROGRESS_KEY, recordId);
+                stringRedisTemplate.opsForStream().acknowledge(FEED_FANOUT_STREAM, FEED_FANOUT_GROUP, record.getId());
+                long latency = Math.max(0, System.currentTimeMillis() - record.getId().getTimestamp());
+                completed.increment();
+                latencyMillis.add(latency);
+                maxLatencyMillis.accumulateAndGet(latency, Math::max);
+                return;
+            }
+            // 4.记录进度
+            stringRedisTemplate.opsForHash().put(FEED_FANOUT_PROGRESS_KEY, recordId, String.valueOf(lastId));
+        }
+    }
+
+    //一页粉丝的EVALSHA放在一个pipeline里 只传脚本的sha1；Redis没有这个脚本（重启、SCRIPT FLUSH）时SCRIPT LOAD后重推这一页，ZADD重复写入没有影响
+    private void push(List<Follow> follows, byte[] timestamp, byte[] blogId, byte[] maxSize) {
+        try {
+            pushPipelined(follows, timestamp, blogId, maxSize);
+        } catch (RuntimeException e) {
+            if (!isNoScript(e)) {
+                throw e;
+            }
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.scriptingCommands()
+                    .scriptLoad(FEED_PUSH_SCRIPT.getScriptAsString().getBytes(StandardCharsets.UTF_8)));
+            pushPipelined(follows, timestamp, blogId, maxSize);
+        }
+    }
+
+    //pipeline中的错误包在RedisPipelineException的cause里
+    private static boolean isNoScript(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t.getMessage() != null && t.getMessage().contains("NOSCRIPT")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void pushPipelined(List<Follow> follows, byte[] timestamp, byte[] blogId, byte[] maxSize) {
+        String sha = FEED_PUSH_SCRIPT.getSha1();
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Follow follow : follows) {
+                connection.scriptingCommands().evalSha(sha, ReturnType.INTEGER, 1,
+                        (FEED_KEY + follow.getUserId()).getBytes(StandardCharsets.UTF_8), timestamp, blogId, maxSize);
+            }
+            return null;
+        });
+    }
+
+    //回收线程：XPENDING找出空闲太久的消息（推送线程挂了或者一直失败），XCLAIM过来交给推送线程从进度继续推送；
+    //投递次数超过上限的转入stream.feed.dlq，带上推送到的粉丝id，可以从那里重放。最后XTRIM MINID裁剪已处理的消息
+    private void reclaim() {
+        String consumerName = CONSUMER_PREFIX + "reclaimer";
+        PendingMessages pendingMessages = stringRedisTemplate.opsForStream()
+                .pending(FEED_FANOUT_STREAM, FEED_FANOUT_GROUP, Range.unbounded(), RECLAIM_SCAN_COUNT);
+        List<RecordId> toClaim = new ArrayList<>();
+        for (PendingMessage pendingMessage : pendingMessages) {
+            if (pendingMessage.getElapsedTimeSinceLastDelivery().toMillis() < reclaimIdleMillis) {
+                continue;
+            }
+            if (pendingMessage.getTotalDeliveryCount() > maxRetries) {
+                deadLetter(pendingMessage);
+            } else {
+                toClaim.add(pendingMessage.getId());
+            }
+        }
+        //上次回收的还没处理完时不再XCLAIM，否则排队中的消息空闲时间被重置，推送线程都忙时会反复回收
+        if (!toClaim.isEmpty() && reclaimed.isEmpty()) {
+            //XCLAIM 空闲时间再校验一次，避免和原消费者抢同一条消息
+            List<MapRecord<String, Object, Object>> claimed = stringRedisTemplate.opsForStream().claim(
+                    FEED_FANOUT_STREAM, FEED_FANOUT_GROUP, consumerName,
+                    Duration.ofMillis(reclaimIdleMillis), toClaim.toArray(new RecordId[0]));
+            if (claimed != null && !claimed.isEmpty()) {
+                reclaimed.addAll(claimed);
+                log.warn("回收{}条空闲超过{}ms的推送消息", claimed.size(), reclaimIdleMillis);
+            }
+        }
+        trimAcknowledged();
+        long backlog = backlog();
+        if (backlog > maxBacklog) {
+            log.warn("{}积压{}条推送消息，超过{}", FEED_FANOUT_STREAM, backlog, maxBacklog);
+        }
+    }
+
+    //XADD stream.feed.dlq * ... 之后再ACK，保证消息不会丢 progress为已推送到的粉丝id，重放时从它之后继续
+    private void deadLetter(PendingMessage pendingMessage) {
+        String recordId = pendingMessage.getIdAsString();
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(FEED_FANOUT_STREAM, Range.closed(recordId, recordId));
+        Map<String, String> fields = new HashMap<>();
+        if (records != null && !records.isEmpty()) {
+            records.get(0).getValue().forEach((k, v) -> fields.put(k.toString(), v.toString()));
+        }
+        Object progress = stringRedisTemplate.opsForHash().get(FEED_FANOUT_PROGRESS_KEY, recordId);
+        fields.put("sourceId", recordId);
+        fields.put("consumer", pendingMessage.getConsumerName());
+        fields.put("deliveries", String.valueOf(pendingMessage.getTotalDeliveryCount()));
+        fields.put("progress", progress == null ? "0" : progress.toString());
+        stringRedisTemplate.opsForStream().add(FEED_FANOUT_DLQ_STREAM, fields);
+        stringRedisTemplate.opsForStream().acknowledge(FEED_FANOUT_STREAM, FEED_FANOUT_GROUP, pendingMessage.getId());
+        stringRedisTemplate.opsForHash().delete(FEED_FANOUT_PROGRESS_KEY, recordId);
+        deadLettered.increment();
+        log.error("推送消息{}投递{}次仍失败，已转入{}", recordId, pendingMessage.getTotalDeliveryCount(), FEED_FANOUT_DLQ_STREAM);
+    }
+
+    //XTRIM stream.feed MINID ~ id  最小的未ACK消息之前的都已经处理完 查询和裁剪在一个脚本里，不会裁掉刚投递还没ACK的消息
+    private void trimAcknowledged() {
+        stringRedisTemplate.execute(STREAM_TRIM_SCRIPT, Collections.singletonList(FEED_FANOUT_STREAM), FEED_FANOUT_GROUP);
+    }
+
+    private String lastDeliveredId() {
+        return stringRedisTemplate.opsForStream().groups(FEED_FANOUT_STREAM).stream()
+                .filter(g -> FEED_FANOUT_GROUP.equals(g.groupName()))
+                .map(g -> g.lastDeliveredId())
+                .findFirst()
+                .orElse(null);
+    }
+
+    //还没投递的消息数
+    private long backlog() {
+        String lastDeliveredId = lastDeliveredId();
+        if (lastDeliveredId == null) {
+            return 0;
+        }
+        Long size = stringRedisTemplate.opsForStream().size(FEED_FANOUT_STREAM);
+        PendingMessagesSummary summary = stringRedisTemplate.opsForStream()
+                .pending(FEED_FANOUT_STREAM, FEED_FANOUT_GROUP);
+        long pending = summary == null ? 0 : summary.getTotalPendingMessages();
+        //裁剪后stream里只剩pending和没投递的消息 MINID ~ 可能多留一些，作为估算足够
+        return Math.max(0, (size == null ? 0 : size) - pending);
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> s = new LinkedHashMap<>();
+        long done = completed.sum();
+        s.put("workers", workerCount);
+        s.put("published", published.sum());
+        s.put("completed", done);
+        s.put("deadLettered", deadLettered.sum());
+        s.put("reclaimed", reclaimed.size());
+        s.put("resumed", resumed.sum());
+        s.put("pages", pages.sum());
+        s.put("pushed", pushed.sum());
+        s.put("avgLatencyMillis", done == 0 ? 0 : (double) latencyMillis.sum() / done);
+        s.put("maxLatencyMillis", maxLatencyMillis.get());
+        s.put("backlog", backlog());
+        //最早一条还没投递的消息，其id中的时间戳就是积压的时长
+        String lastDeliveredId = lastDeliveredId();
+        long lagMillis = 0;
+        if (lastDeliveredId != null) {
+            List<MapRecord<String, Object, Object>> next = stringRedisTemplate.opsForStream().range(FEED_FANOUT_STREAM,
+                    Range.rightUnbounded(Range.Bound.exclusive(lastDeliveredId)), Limit.limit().count(1));
+            if (next != null && !next.isEmpty()) {
+                lagMillis = Math.max(0, System.currentTimeMillis() - next.get(0).getId().getTimestamp());
+            }
+        }
+        s.put("lagMillis", lagMillis);
+        PendingMessagesSummary summary = stringRedisTemplate.opsForStream()
+                .pending(FEED_FANOUT_STREAM, FEED_FANOUT_GROUP);
+        s.put("pending", summary == null ? 0 : summary.getTotalPendingMessages());
+        return s;
+    }
+
+    //创建消费组 XGROUP CREATE stream.feed g1 0 MKSTREAM
+    private void createGroupIfAbsent() {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands().xGroupCreate(
+                    RedisSerializer.string().serialize(FEED_FANOUT_STREAM), FEED_FANOUT_GROUP, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            //BUSYGROUP 消费组已经存在
+            log.debug("消费组{}已存在", FEED_FANOUT_GROUP);
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        createGroupIfAbsent();
+        AtomicInteger threadIndex = new AtomicInteger();
+        FANOUT_EXECUTOR = Executors.newFixedThreadPool(workerCount,
+                r -> new Thread(r, "feed-fanout-" + threadIndex.getAndIncrement()));
+        for (int i = 0; i < workerCount; i++) {
+            FANOUT_EXECUTOR.submit(new FanoutHandler(CONSUMER_PREFIX + i));
+        }
+        RECLAIM_EXECUTOR.scheduleWithFixedDelay(() -> {
+            try {
+                reclaim();
+            } catch (Exception e) {
+                log.error("回收推送消息异常", e);
+            }
+        }, 5, 5, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        running = false;
+        RECLAIM_EXECUTOR.shutdown();
+        FANOUT_EXECUTOR.shutdown();
+        FANOUT_EXECUTOR.awaitTermination(5, TimeUnit.SECONDS);
+    }
+}
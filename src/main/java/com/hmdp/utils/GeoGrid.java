@@ -0,0 +1,168 @@
+package com.hmdp.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongPredicate;
+
+/**
+ * 内存中的经纬度网格索引 只放id和坐标
+ * 按30位geohash（每格约1.1km x 0.6km）把点排序，id、经度、纬度各一个基本类型数组，
+ * 每个格子记录自己在数组中的起点。每个点占24字节加上格子的开销。
+ * 建好后不再修改，修改由调用方重建或在查询时覆盖。
+ */
+public class GeoGrid {
+
+    //经度、纬度各15位
+    private static final int BITS = 15;
+    private static final int STEPS = 1 << BITS;
+    private static final double LON_STEP = 360.0 / STEPS;
+    private static final double LAT_STEP = 180.0 / STEPS;
+    //和Redis GEO相同的地球半径
+    private static final double EARTH_RADIUS = 6372797.560856;
+
+    private final long[] ids;
+    private final double[] xs;
+    private final double[] ys;
+    //有点的格子 升序
+    private final int[] cells;
+    //cells[i]的点在数组中的范围 [cellStarts[i], cellStarts[i + 1])
+    private final int[] cellStarts;
+
+    public record Hit(long id, double distance) {
+    }
+
+    private GeoGrid(long[] ids, double[] xs, double[] ys, int[] cells, int[] cellStarts) {
+        this.ids = ids;
+        this.xs = xs;
+        this.ys = ys;
+        this.cells = cells;
+        this.cellStarts = cellStarts;
+    }
+
+    //前n个点建索引 传入的数组会被复制
+    public static GeoGrid build(long[] ids, double[] xs, double[] ys, int n) {
+        //1.算出每个点的格子 按格子排序
+        long[] keyed = new long[n];
+        for (int i = 0; i < n; i++) {
+            keyed[i] = ((long) cell(xs[i], ys[i]) << 32) | i;
+        }
+        Arrays.sort(keyed);
+        //2.按排序后的顺序复制坐标，记录每个格子的起点
+        long[] sortedIds = new long[n];
+        double[] sortedXs = new double[n];
+        double[] sortedYs = new double[n];
+        int[] cells = new int[n];
+        int[] starts = new int[n + 1];
+        int cellCount = 0;
+        for (int j = 0; j < n; j++) {
+            int i = (int) keyed[j];
+            int cell = (int) (keyed[j] >>> 32);
+            sortedIds[j] = ids[i];
+            sortedXs[j] = xs[i];
+            sortedYs[j] = ys[i];
+            if (cellCount == 0 || cells[cellCount - 1] != cell) {
+                cells[cellCount] = cell;
+                starts[cellCount] = j;
+                cellCount++;
+            }
+        }
+        starts[cellCount] = n;
+        return new GeoGrid(sortedIds, sortedXs, sortedYs,
+                Arrays.copyOf(cells, cellCount), Arrays.copyOf(starts, cellCount + 1));
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    //数组占用的字节数
+    public long memoryBytes() {
+        return ids.length * 24L + cells.length * 8L;
+    }
+
+    //距离不超过radius米的点 按距离从近到远，skip返回true的id跳过
+    public List<Hit> withinRadius(double x, double y, double radius, LongPredicate skip) {
+        List<Hit> hits = new ArrayList<>();
+        if (ids.length == 0) {
+            return hits;
+        }
+        //1.半径外接矩形覆盖的格子
+        double dLat = Math.toDegrees(radius / EARTH_RADIUS);
+        double cosLat = Math.max(Math.cos(Math.toRadians(y)), 1e-6);
+        double dLon = Math.min(180, dLat / cosLat);
+        int lonFrom = lonIndex(x - dLon), lonTo = lonIndex(x + dLon);
+        int latFrom = latIndex(y - dLat), latTo = latIndex(y + dLat);
+        long cellsInBox = (long) (lonTo - lonFrom + 1) * (latTo - latFrom + 1);
+        if (cellsInBox > cells.length) {
+            //矩形比有点的格子还多 直接扫所有点
+            scan(0, ids.length, x, y, radius, skip, hits);
+        } else {
+            for (int lon = lonFrom; lon <= lonTo; lon++) {
+                for (int lat = latFrom; lat <= latTo; lat++) {
+                    int c = Arrays.binarySearch(cells, interleave(lon, lat));
+                    if (c >= 0) {
+                        scan(cellStarts[c], cellStarts[c + 1], x, y, radius, skip, hits);
+                    }
+                }
+            }
+        }
+        hits.sort((a, b) -> Double.compare(a.distance(), b.distance()));
+        return hits;
+    }
+
+    //最近的k个点 距离不超过maxRadius米，按距离从近到远
+    //从一个格子大小的半径开始每次翻倍，半径内够k个时，最近的k个一定都在半径内
+    public List<Hit> nearest(double x, double y, int k, double maxRadius, LongPredicate skip) {
+        double radius = Math.min(maxRadius, LAT_STEP * Math.PI / 180 * EARTH_RADIUS);
+        while (true) {
+            List<Hit> hits = withinRadius(x, y, radius, skip);
+            if (hits.size() >= k || radius >= maxRadius) {
+                return hits.size() > k ? new ArrayList<>(hits.subList(0, k)) : hits;
+            }
+            radius = Math.min(maxRadius, radius * 2);
+        }
+    }
+
+    private void scan(int from, int to, double x, double y, double radius, LongPredicate skip, List<Hit> hits) {
+        for (int i = from; i < to; i++) {
+            if (skip != null && skip.test(ids[i])) {
+                continue;
+            }
+            double d = distance(x, y, xs[i], ys[i]);
+            if (d <= radius) {
+                hits.add(new Hit(ids[i], d));
+            }
+        }
+    }
+
+    //两点的球面距离 米
+    public static double distance(double x1, double y1, double x2, double y2) {
+        double lat1 = Math.toRadians(y1), lat2 = Math.toRadians(y2);
+        double u = Math.sin((lat2 - lat1) / 2);
+        double v = Math.sin(Math.toRadians(x2 - x1) / 2);
+        return 2 * EARTH_RADIUS * Math.asin(Math.sqrt(u * u + Math.cos(lat1) * Math.cos(lat2) * v * v));
+    }
+
+    private static int cell(double x, double y) {
+        return interleave(lonIndex(x), latIndex(y));
+    }
+
+    private static int lonIndex(double x) {
+        return Math.max(0, Math.min(STEPS - 1, (int) ((x + 180) / LON_STEP)));
+    }
+
+    private static int latIndex(double y) {
+        return Math.max(0, Math.min(STEPS - 1, (int) ((y + 90) / LAT_STEP)));
+    }
+
+    //经度、纬度的位交替排列 和geohash一致，相邻的格子大多排在一起
+    private static int interleave(int lon, int lat) {
+        int r = 0;
+        for (int i = BITS - 1; i >= 0; i--) {
+            r = (r << 1) | ((lon >>> i) & 1);
+            r = (r << 1) | ((lat >>> i) & 1);
+        }
+        return r;
+    }
+}
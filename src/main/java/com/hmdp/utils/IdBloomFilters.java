@@ -0,0 +1,238 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.hmdp.mapper.BlogMapper;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.mapper.UserMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_ADD_CHANNEL;
+
+/**
+ * 店铺、笔记、用户id的布隆过滤器 防止用不存在的id刷缓存和数据库
+ * 启动时从数据库按id分页加载，加载完之前不拦截。新增的id通过Redis发布订阅同步到其他节点。
+ * 发布订阅可能丢消息（重启、断线），所以定时从数据库重建；两次重建之间，比加载时最大id大一点的id
+ * 判断不存在时再查库确认，查到了补进过滤器，不会把刚新增的数据当成不存在。
+ */
+@Slf4j
+@Component
+public class IdBloomFilters {
+
+    public static final String SHOP = "shop";
+    public static final String BLOG = "blog";
+    public static final String USER = "user";
+
+    //每次从数据库取的id个数
+    private static final int LOAD_BATCH = 10000;
+    //比加载时最大id小这么多以内的id也要确认 自增id分配后晚提交的事务可能在加载之后才可见
+    private static final long CONFIRM_MARGIN = 1000;
+
+    @Autowired
+    private ShopMapper shopMapper;
+
+    @Autowired
+    private BlogMapper blogMapper;
+
+    @Autowired
+    private UserMapper userMapper;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    //预计的id个数 超过后误判率会高于fpp
+    @Value("${hmdp.bloom.expected-insertions:1000000}")
+    private long expectedInsertions;
+
+    @Value("${hmdp.bloom.fpp:0.01}")
+    private double fpp;
+
+    //多久从数据库重建一次
+    @Value("${hmdp.bloom.rebuild-minutes:60}")
+    private long rebuildMinutes;
+
+    //加载时最大id之后多大范围内的id 判断不存在时查库确认
+    @Value("${hmdp.bloom.confirm-window:100000}")
+    private long confirmWindow;
+
+    private final Map<String, Guard> guards = new LinkedHashMap<>();
+
+    //加载完成前ready为false 全部放行
+    private static class Guard {
+        final BaseMapper<?> mapper;
+        volatile BloomFilter filter;
+        //重建中的过滤器 重建期间新增的id两边都加
+        volatile BloomFilter building;
+        volatile boolean ready;
+        //上次加载到的最大id
+        volatile long maxId;
+        final LongAdder confirmed = new LongAdder();
+        final LongAdder confirmedMissing = new LongAdder();
+
+        Guard(BaseMapper<?> mapper, BloomFilter filter) {
+            this.mapper = mapper;
+            this.filter = filter;
+        }
+
+        void put(long id) {
+            //先读building再读filter 和重建时先换filter再清building的顺序配合，不会两边都漏掉
+            BloomFilter b = building;
+            filter.put(id);
+            if (b != null) {
+                b.put(id);
+            }
+        }
+    }
+
+    private final ScheduledExecutorService LOAD_EXECUTOR =
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "bloom-filter-loader");
+                t.setDaemon(true);
+                return t;
+            });
+
+    @PostConstruct
+    private void init() {
+        //加载前就创建好 加载期间新增的id也能加进来
+        guards.put(SHOP, new Guard(shopMapper, new BloomFilter(expectedInsertions, fpp)));
+        guards.put(BLOG, new Guard(blogMapper, new BloomFilter(expectedInsertions, fpp)));
+        guards.put(USER, new Guard(userMapper, new BloomFilter(expectedInsertions, fpp)));
+        //其他节点新增的id
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            int i = body.indexOf(':');
+            Guard guard = guards.get(body.substring(0, i));
+            if (guard != null) {
+                guard.put(Long.parseLong(body.substring(i + 1)));
+            }
+        }, new ChannelTopic(BLOOM_ADD_CHANNEL));
+        //不阻塞启动 后台加载，之后定时重建
+        LOAD_EXECUTOR.scheduleWithFixedDelay(() -> guards.forEach(this::load), 0, rebuildMinutes, TimeUnit.MINUTES);
+    }
+
+    private void load(String name, Guard guard) {
+        try {
+            //第一次加载直接往空的过滤器里加 之后每次建新的再整体替换
+            BloomFilter filter = guard.ready ? new BloomFilter(expectedInsertions, fpp) : guard.filter;
+            if (guard.ready) {
+                guard.building = filter;
+            }
+            long lastId = 0;
+            while (true) {
+                List<Object> ids = selectIds(guard.mapper, lastId);
+                for (Object id : ids) {
+                    filter.put(((Number) id).longValue());
+                }
+                if (!ids.isEmpty()) {
+                    lastId = ((Number) ids.get(ids.size() - 1)).longValue();
+                }
+                if (ids.size() < LOAD_BATCH) {
+                    break;
+                }
+            }
+            guard.filter = filter;
+            guard.building = null;
+            guard.maxId = lastId;
+            guard.ready = true;
+            if (filter.insertions() > expectedInsertions) {
+                log.warn("{}的id个数超过hmdp.bloom.expected-insertions，误判率会变高", name);
+            }
+            log.info("{}布隆过滤器加载完成，{}个id，{}KB", name, filter.insertions(), filter.bitSize() / 8 / 1024);
+        } catch (Exception e) {
+            //第一次加载失败不拦截 退回空值缓存；重建失败继续用原来的过滤器
+            guard.building = null;
+            log.error("{}布隆过滤器加载失败", name, e);
+        }
+    }
+
+    //按id分页 select id from ... where id > lastId order by id limit LOAD_BATCH
+    private <T> List<Object> selectIds(BaseMapper<T> mapper, long lastId) {
+        return mapper.selectObjs(new QueryWrapper<T>()
+                .select("id").gt("id", lastId).orderByAsc("id").last("limit " + LOAD_BATCH));
+    }
+
+    //false表示一定不存在
+    public boolean mightContain(String name, Long id) {
+        if (id == null) {
+            return false;
+        }
+        Guard guard = guards.get(name);
+        if (guard == null || !guard.ready || guard.filter.mightContain(id)) {
+            return true;
+        }
+        //加载之后才新增、又没收到通知的id只会在最大id附近 查库确认，存在就补进过滤器
+        if (id <= guard.maxId - CONFIRM_MARGIN || id > guard.maxId + confirmWindow) {
+            return false;
+        }
+        if (exists(guard.mapper, id)) {
+            guard.put(id);
+            guard.confirmed.increment();
+            return true;
+        }
+        guard.confirmedMissing.increment();
+        return false;
+    }
+
+    private <T> boolean exists(BaseMapper<T> mapper, Long id) {
+        return mapper.selectCount(new QueryWrapper<T>().eq("id", id)) > 0;
+    }
+
+    public Predicate<Long> guard(String name) {
+        return id -> mightContain(name, id);
+    }
+
+    //新增数据后调用 同时通知其他节点
+    public void add(String name, Long id) {
+        Guard guard = guards.get(name);
+        if (guard != null) {
+            guard.put(id);
+        }
+        stringRedisTemplate.convertAndSend(BLOOM_ADD_CHANNEL, name + ":" + id);
+    }
+
+    //各个过滤器的元素个数、内存和估算的误判率
+    public Map<String, Map<String, Object>> stats() {
+        Map<String, Map<String, Object>> result = new LinkedHashMap<>();
+        guards.forEach((name, guard) -> {
+            Map<String, Object> s = new LinkedHashMap<>();
+            BloomFilter filter = guard.filter;
+            s.put("ready", guard.ready);
+            s.put("insertions", filter.insertions());
+            s.put("bits", filter.bitSize());
+            s.put("hashes", filter.hashCount());
+            s.put("memoryBytes", filter.bitSize() / 8);
+            s.put("expectedFpp", filter.expectedFpp());
+            s.put("maxId", guard.maxId);
+            s.put("confirmedByDb", guard.confirmed.sum());
+            s.put("confirmedMissing", guard.confirmedMissing.sum());
+            result.put(name, s);
+        });
+        return result;
+    }
+
+    @PreDestroy
+    private void destroy() {
+        LOAD_EXECUTOR.shutdown();
+    }
+}
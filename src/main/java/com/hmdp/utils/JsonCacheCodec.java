@@ -0,0 +1,31 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.convert.Convert;
+import cn.hutool.core.util.ClassUtil;
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+//原来的格式 Hutool的JSON字符串
+//Long、LocalDate这类简单值Hutool会当成bean写成{}，直接存字符串
+public class JsonCacheCodec implements CacheCodec {
+
+    @Override
+    public byte[] encode(Object value) {
+        String s = value != null && ClassUtil.isSimpleValueType(value.getClass())
+                ? Convert.toStr(value) : JSONUtil.toJsonStr(value);
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, Class<R> type) {
+        String s = new String(bytes, StandardCharsets.UTF_8);
+        return ClassUtil.isSimpleValueType(type) ? Convert.convert(type, s) : JSONUtil.toBean(s, type);
+    }
+
+    @Override
+    public <R> List<R> decodeList(byte[] bytes, Class<R> type) {
+        return JSONUtil.toList(new String(bytes, StandardCharsets.UTF_8), type);
+    }
+}
@@ -0,0 +1,194 @@
+package com.hmdp.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.LongPredicate;
+
+/**
+ * 店铺名称的n-gram倒排索引 适合不分词的中文名称
+ * 每个名称按单字和相邻两个字建倒排表，倒排表里是文档下标的int数组。
+ * 查询时对关键字的每个二元组求交集，再用contains校验，结果和LIKE '%关键字%'一致。
+ * 建好后不再修改，修改由调用方重建或在查询时覆盖。
+ */
+public class NgramIndex {
+
+    //匹配程度 越小越靠前
+    private static final int EXACT = 0;
+    private static final int PREFIX = 1;
+    private static final int CONTAINS = 2;
+    //score = 匹配程度 * LENGTH_LIMIT + 名称长度，名称越短越靠前
+    private static final int LENGTH_LIMIT = 1000;
+
+    private final long[] ids;
+    private final String[] names;
+    private final Map<Integer, int[]> postings;
+
+    public record Hit(long id, int score) {
+    }
+
+    private NgramIndex(long[] ids, String[] names, Map<Integer, int[]> postings) {
+        this.ids = ids;
+        this.names = names;
+        this.postings = postings;
+    }
+
+    //前n个名称建索引
+    public static NgramIndex build(long[] ids, String[] names, int n) {
+        String[] normalized = new String[n];
+        Map<Integer, IntList> lists = new HashMap<>();
+        for (int doc = 0; doc < n; doc++) {
+            String name = normalize(names[doc]);
+            normalized[doc] = name;
+            //同一个名称里重复的gram只记一次 文档按下标递增加入，倒排表天然有序
+            for (int gram : grams(name, false)) {
+                IntList list = lists.computeIfAbsent(gram, k -> new IntList());
+                if (list.size == 0 || list.values[list.size - 1] != doc) {
+                    list.add(doc);
+                }
+            }
+        }
+        Map<Integer, int[]> postings = new HashMap<>(lists.size() * 2);
+        lists.forEach((gram, list) -> postings.put(gram, Arrays.copyOf(list.values, list.size)));
+        return new NgramIndex(Arrays.copyOf(ids, n), normalized, postings);
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    //倒排表和id数组的字节数 不含名称字符串
+    public long memoryBytes() {
+        long bytes = ids.length * 8L;
+        for (int[] list : postings.values()) {
+            bytes += list.length * 4L + 16;
+        }
+        return bytes;
+    }
+
+    //名称包含关键字的所有店铺 按score、id排序，skip返回true的id跳过
+    public List<Hit> search(String keyword, LongPredicate skip) {
+        String query = normalize(keyword);
+        List<Hit> hits = new ArrayList<>();
+        if (query.isEmpty()) {
+            return hits;
+        }
+        //1.关键字的每个gram的倒排表 从最短的开始求交集
+        int[] grams = grams(query, true);
+        int[][] lists = new int[grams.length][];
+        for (int i = 0; i < grams.length; i++) {
+            lists[i] = postings.get(grams[i]);
+            if (lists[i] == null) {
+                return hits;
+            }
+        }
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.length, b.length));
+        int[] candidates = lists[0];
+        for (int i = 1; i < lists.length && candidates.length > 0; i++) {
+            candidates = intersect(candidates, lists[i]);
+        }
+        //2.二元组都在不代表连续出现 用contains校验
+        for (int doc : candidates) {
+            if (skip != null && skip.test(ids[doc])) {
+                continue;
+            }
+            int score = score(names[doc], query);
+            if (score >= 0) {
+                hits.add(new Hit(ids[doc], score));
+            }
+        }
+        hits.sort(NgramIndex::compare);
+        return hits;
+    }
+
+    //单个名称的score 不包含关键字时返回-1 名称和关键字都已经normalize
+    public static int score(String name, String query) {
+        int tier;
+        if (name.equals(query)) {
+            tier = EXACT;
+        } else if (name.startsWith(query)) {
+            tier = PREFIX;
+        } else if (name.contains(query)) {
+            tier = CONTAINS;
+        } else {
+            return -1;
+        }
+        return tier * LENGTH_LIMIT + Math.min(name.length(), LENGTH_LIMIT - 1);
+    }
+
+    public static int compare(Hit a, Hit b) {
+        int c = Integer.compare(a.score(), b.score());
+        return c != 0 ? c : Long.compare(a.id(), b.id());
+    }
+
+    //去掉空白、转小写
+    public static String normalize(String s) {
+        if (s == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                sb.append(c);
+            }
+        }
+        return sb.toString().toLowerCase(Locale.ROOT);
+    }
+
+    //建索引时取所有单字和二元组；查询时只取二元组，关键字只有一个字时取单字
+    private static int[] grams(String s, boolean query) {
+        if (query && s.length() > 1) {
+            int[] grams = new int[s.length() - 1];
+            for (int i = 0; i + 1 < s.length(); i++) {
+                grams[i] = bigram(s.charAt(i), s.charAt(i + 1));
+            }
+            return grams;
+        }
+        int[] grams = new int[query ? 1 : Math.max(0, 2 * s.length() - 1)];
+        for (int i = 0; i < s.length(); i++) {
+            grams[i] = s.charAt(i);
+            if (!query && i + 1 < s.length()) {
+                grams[s.length() + i] = bigram(s.charAt(i), s.charAt(i + 1));
+            }
+        }
+        return grams;
+    }
+
+    //单字的key小于65536，二元组的key第一个字不为0，不会重复
+    private static int bigram(char a, char b) {
+        return (a << 16) | b;
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] r = new int[Math.min(a.length, b.length)];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                r[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(r, n);
+    }
+
+    private static class IntList {
+        int[] values = new int[4];
+        int size;
+
+        void add(int v) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = v;
+        }
+    }
+}
@@ -12,13 +12,49 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String BLOOM_ADD_CHANNEL = "bloom:add";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    public static final String LOCK_CACHE_KEY = "lock:";
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_SHARDS_KEY = "seckill:shards:";
+    public static final String SECKILL_PENDING_KEY = "seckill:pending:";
+    public static final String SECKILL_TRANSFER_KEY = "seckill:transfer:";
+    public static final String SECKILL_TRANSFER_APPLIED_KEY = "seckill:transfer:applied:";
+    public static final String SECKILL_GATE_CHANNEL = "seckill:gate";
+    public static final String SECKILL_LIMIT_KEY = "seckill:limit:";
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    public static final String SECKILL_ORDER_DLQ_STREAM = "stream.orders.dlq";
+    public static final String SECKILL_ORDER_ERROR_KEY = "stream.orders:error:";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
+    public static final String BLOG_LIKED_DELTA_KEY = "blog:liked:delta";
+    public static final String BLOG_LIKED_FLUSHING_KEY = "blog:liked:delta:flushing";
+    //flushing中的批次id和已写入数据库的批次id 两者相同时数据库的liked已包含这一批
+    public static final String BLOG_LIKED_BATCH_FIELD = "__batch";
+    public static final String BLOG_LIKED_APPLIED_FIELD = "__applied";
+    public static final String BLOG_HOT_KEY = "blog:hot";
+    public static final String LOCK_BLOG_HOT_KEY = "lock:blog:hot";
+    public static final String LOCK_SIGN_ARCHIVE_KEY = "lock:sign:archive";
     public static final String FEED_KEY = "feed:";
+    public static final String FEED_OUTBOX_KEY = "feed:out:";
+    public static final String FEED_CELEBRITY_KEY = "feed:celebrities";
+    public static final String FOLLOWS_KEY = "follows:";
+    public static final String FEED_FANOUT_STREAM = "stream.feed";
+    public static final String FEED_FANOUT_GROUP = "g1";
+    public static final String FEED_FANOUT_PROGRESS_KEY = "stream.feed:progress";
+    public static final String FEED_FANOUT_DLQ_STREAM = "stream.feed.dlq";
+    public static final String ID_WORKER_KEY = "id:worker:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
+    public static final String SHOP_GEO_CHANNEL = "shop:geo:update";
+    public static final String SHOP_NAME_CHANNEL = "shop:name:update";
     public static final String USER_SIGN_KEY = "sign:";
+    public static final String UV_DAU_KEY = "uv:dau:";
+    public static final String UV_SHOP_KEY = "uv:shop:";
 }
@@ -1,13 +1,34 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.util.RandomUtil;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Component;
 
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+@Slf4j
 @Component
 public class RedisIdWorker {
 
@@ -15,10 +36,67 @@ public class RedisIdWorker {
     //序列号位数
     private static final int COUNT_BITS = 32;
 
+    //号段的最小、最大长度
+    private static final long MIN_STEP = 100;
+    private static final long MAX_STEP = 100_000;
+    //希望一个号段能用多久 用得太快就加大步长，太慢就减小
+    private static final long SEGMENT_TARGET_MILLIS = 5_000;
+    //号段剩余20%时预取下一个号段
+    private static final double PREFETCH_RATIO = 0.2;
+
+    //workerId租约时长和续期间隔
+    private static final long WORKER_LEASE_SECONDS = 30;
+    private static final long WORKER_HEARTBEAT_SECONDS = 10;
+    //本地认为租约有效的时长 比Redis的过期时间少一个续期间隔，留出时钟误差和GC停顿的余量
+    private static final long WORKER_LEASE_VALID_MILLIS =
+            TimeUnit.SECONDS.toMillis(WORKER_LEASE_SECONDS - WORKER_HEARTBEAT_SECONDS);
+    //当前实例标识 租约的值
+    private static final String INSTANCE_ID = UUID.randomUUID().toString(true);
+
+    private static final DefaultRedisScript<Long> LEASE_RENEW_SCRIPT;
+    private static final DefaultRedisScript<Long> LEASE_RELEASE_SCRIPT;
+
+    static {
+        LEASE_RENEW_SCRIPT = new DefaultRedisScript<>();
+        LEASE_RENEW_SCRIPT.setLocation(new ClassPathResource("leaseRenew.lua"));
+        LEASE_RENEW_SCRIPT.setResultType(Long.class);
+        //和SimpleRedisLock一样 标识一致才删除
+        LEASE_RELEASE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_RELEASE_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        LEASE_RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
+    //incr：每个id一次INCR  segment：INCRBY一次取一段，在内存中分配  snowflake：本地生成，只在启动时租一个workerId
+    @Value("${hmdp.id.mode:incr}")
+    private String mode;
+
+    //租到workerId之前或者租约丢失时为null，退回incr模式
+    private volatile SnowflakeIdWorker snowflakeIdWorker;
+    //最近一次成功续期的命令发出前的时间 Redis里的租约不会早于它加租约时长过期
+    private volatile long leaseRenewedAt;
+
+    private ScheduledExecutorService WORKER_LEASE_EXECUTOR;
+
+    private final Map<String, SegmentBuffer> segmentBuffers = new ConcurrentHashMap<>();
+
+    private final ExecutorService SEGMENT_PREFETCH_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "id-segment-prefetch");
+        t.setDaemon(true);
+        return t;
+    });
+
     public long nextId(String keyPrefix) {
+        if ("snowflake".equals(mode)) {
+            SnowflakeIdWorker worker = snowflakeIdWorker;
+            if (worker != null && System.currentTimeMillis() - leaseRenewedAt < WORKER_LEASE_VALID_MILLIS) {
+                return worker.nextId();
+            }
+        }
         //1生成时间戳
         LocalDateTime now = LocalDateTime.now();
         long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
@@ -26,15 +104,200 @@ public class RedisIdWorker {
         //2生成序列号
         //要注意 同一个业务不能一直用一个key, 因为有可能会超上限。因此拼一个日期
         //获取当天日期
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        //会自动创建key 因此不会空指针
-        long count = stringRedisTemplate.opsForValue().increment("icar:" + keyPrefix + ":" + date);
+        String date = now.format(DATE_FORMATTER);
+        long count;
+        if ("segment".equals(mode)) {
+            //号段模式 序列号和incr模式共用一个key，两种模式的节点可以同时运行
+            count = segmentBuffers.computeIfAbsent(keyPrefix, SegmentBuffer::new).nextCount(date);
+        } else {
+            //会自动创建key 因此不会空指针
+            count = stringRedisTemplate.opsForValue().increment("icar:" + keyPrefix + ":" + date);
+        }
         //3拼接并返回
         //把时间戳往左移动32位2进制数
         long l = timeStamp << COUNT_BITS | count;
         return l;
     }
 
+    //号段 [cursor, max] 属于某一天的key，跨天后作废
+    private static class Segment {
+        final String date;
+        final long max;
+        final AtomicLong cursor;
+        //分配到这个序号时开始预取下一个号段
+        final long prefetchAt;
+        final long createdAt = System.currentTimeMillis();
+
+        Segment(String date, long min, long max) {
+            this.date = date;
+            this.max = max;
+            this.cursor = new AtomicLong(min);
+            this.prefetchAt = max - (long) ((max - min + 1) * PREFETCH_RATIO);
+        }
+    }
+
+    //一个业务前缀的号段缓冲 当前号段无锁分配，用完时加锁切换到预取好的号段
+    private class SegmentBuffer {
+        final String keyPrefix;
+        volatile Segment current;
+        volatile Segment next;
+        volatile long step = MIN_STEP;
+        final AtomicBoolean prefetching = new AtomicBoolean();
+
+        SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        long nextCount(String date) {
+            while (true) {
+                Segment segment = current;
+                if (segment != null && segment.date.equals(date)) {
+                    long count = segment.cursor.getAndIncrement();
+                    if (count <= segment.max) {
+                        if (count == segment.prefetchAt) {
+                            prefetch(date);
+                        }
+                        return count;
+                    }
+                }
+                switchSegment(segment, date);
+            }
+        }
+
+        private synchronized void switchSegment(Segment used, String date) {
+            if (current != used) {
+                //其他线程已经切换过了
+                return;
+            }
+            adaptStep(used);
+            Segment segment = next;
+            next = null;
+            if (segment == null || !segment.date.equals(date)) {
+                //没有预取到或者已经跨天 同步取一段
+                segment = allocate(date);
+            }
+            current = segment;
+        }
+
+        //按上一个号段用了多久调整步长
+        private void adaptStep(Segment used) {
+            if (used == null) {
+                return;
+            }
+            long cost = System.currentTimeMillis() - used.createdAt;
+            if (cost < SEGMENT_TARGET_MILLIS / 2) {
+                step = Math.min(step * 2, MAX_STEP);
+            } else if (cost > SEGMENT_TARGET_MILLIS * 2) {
+                step = Math.max(step / 2, MIN_STEP);
+            }
+        }
+
+        private void prefetch(String date) {
+            if (!prefetching.compareAndSet(false, true)) {
+                return;
+            }
+            SEGMENT_PREFETCH_EXECUTOR.submit(() -> {
+                try {
+                    Segment segment = allocate(date);
+                    synchronized (this) {
+                        if (next == null) {
+                            next = segment;
+                        }
+                    }
+                } catch (Exception e) {
+                    log.error("预取号段失败 {}", keyPrefix, e);
+                } finally {
+                    prefetching.set(false);
+                }
+            });
+        }
+
+        //INCRBY icar:prefix:date step 返回的是号段的最大值
+        private Segment allocate(String date) {
+            long s = step;
+            Long max = stringRedisTemplate.opsForValue().increment("icar:" + keyPrefix + ":" + date, s);
+            return new Segment(date, max - s + 1, max);
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        if (!"snowflake".equals(mode)) {
+            return;
+        }
+        leaseWorkerId();
+        WORKER_LEASE_EXECUTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "id-worker-lease");
+            t.setDaemon(true);
+            return t;
+        });
+        WORKER_LEASE_EXECUTOR.scheduleWithFixedDelay(this::renewWorkerId,
+                WORKER_HEARTBEAT_SECONDS, WORKER_HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    //从随机位置开始找一个没人用的workerId SET id:worker:{n} instanceId NX EX 30
+    private void leaseWorkerId() {
+        int start = RandomUtil.randomInt(SnowflakeIdWorker.MAX_WORKER_ID + 1);
+        for (int i = 0; i <= SnowflakeIdWorker.MAX_WORKER_ID; i++) {
+            int workerId = (start + i) % (SnowflakeIdWorker.MAX_WORKER_ID + 1);
+            //在发出命令前取时间 往返和停顿的时间算在租约里
+            long requestedAt = System.currentTimeMillis();
+            Boolean success = stringRedisTemplate.opsForValue().setIfAbsent(
+                    RedisConstants.ID_WORKER_KEY + workerId, INSTANCE_ID, WORKER_LEASE_SECONDS, TimeUnit.SECONDS);
+            if (BooleanUtil.isTrue(success)) {
+                long zoneOffsetMillis = ZoneId.systemDefault().getRules().getOffset(Instant.now()).getTotalSeconds() * 1000L;
+                leaseRenewedAt = requestedAt;
+                snowflakeIdWorker = new SnowflakeIdWorker(BEGIN_TIMESTAMP, zoneOffsetMillis, workerId);
+                log.info("租到workerId {}", workerId);
+                return;
+            }
+        }
+        log.error("没有可用的workerId，退回incr模式");
+    }
+
+    private void renewWorkerId() {
+        try {
+            SnowflakeIdWorker worker = snowflakeIdWorker;
+            if (worker == null) {
+                leaseWorkerId();
+                return;
+            }
+            long requestedAt = System.currentTimeMillis();
+            Long renewed = stringRedisTemplate.execute(
+                    LEASE_RENEW_SCRIPT,
+                    Collections.singletonList(RedisConstants.ID_WORKER_KEY + worker.getWorkerId()),
+                    INSTANCE_ID, String.valueOf(WORKER_LEASE_SECONDS));
+            if (renewed != null && renewed == 1) {
+                leaseRenewedAt = requestedAt;
+                return;
+            }
+            //租约已经过期被别人拿走了 换一个workerId
+            log.warn("workerId {}的租约已丢失，重新租用", worker.getWorkerId());
+            snowflakeIdWorker = null;
+            leaseWorkerId();
+        } catch (Exception e) {
+            log.error("workerId续期失败", e);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        SEGMENT_PREFETCH_EXECUTOR.shutdownNow();
+        if (WORKER_LEASE_EXECUTOR == null) {
+            return;
+        }
+        WORKER_LEASE_EXECUTOR.shutdownNow();
+        SnowflakeIdWorker worker = snowflakeIdWorker;
+        if (worker != null) {
+            //释放租约
+            snowflakeIdWorker = null;
+            stringRedisTemplate.execute(
+                    LEASE_RELEASE_SCRIPT,
+                    Collections.singletonList(RedisConstants.ID_WORKER_KEY + worker.getWorkerId()),
+                    INSTANCE_ID);
+        }
+    }
+
     public static void main(String[] args) {
         LocalDateTime localDateTime = LocalDateTime.of(2022, 1, 1, 0, 0, 0);
         long time = localDateTime.toEpochSecond(ZoneOffset.UTC);
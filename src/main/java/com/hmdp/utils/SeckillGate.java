@@ -0,0 +1,203 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import jakarta.annotation.PostConstruct;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_GATE_CHANNEL;
+
+/**
+ * 秒杀本地闸门
+ * 每张券在本地记录秒杀时间窗口和是否已卖完，未开始、已结束、已卖完的请求直接在JVM内拒绝，不用再访问Redis执行lua脚本。
+ * 卖完和券信息变化通过Redis发布订阅通知到所有节点。
+ */
+@Slf4j
+@Component
+public class SeckillGate implements MessageListener {
+
+    @Autowired
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    //卖完的标记过一段时间放一个请求去Redis确认一次，库存回补(取消订单、分片均衡)后可以恢复
+    private static final long SOLD_OUT_RECHECK_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    //本地最多记录的券数 券id来自请求路径，超过后淘汰
+    private static final long MAX_VOUCHERS = 10000;
+    //存在的券多久从数据库重新加载一次；不存在的券只记一小会儿，挡住重复的随机id又不会一直占着内存
+    private static final long EXIST_TTL_MINUTES = 10;
+    private static final long NOT_EXIST_TTL_SECONDS = 30;
+
+    private static final String SOLD_OUT = "soldout:";
+    //券新增或修改 SeckillStockShards也按它清掉本地的分片数
+    static final String RESET = "reset:";
+
+    @Getter
+    public enum State {
+        NOT_EXIST("秒杀券不存在"),
+        NOT_STARTED("秒杀尚未开始呢~"),
+        OPEN(null),
+        SOLD_OUT("库存不足"),
+        ENDED("秒杀已经结束惹~");
+
+        private final String message;
+
+        State(String message) {
+            this.message = message;
+        }
+    }
+
+    //券的本地状态
+    private static class VoucherState {
+        final boolean exist;
+        final long beginMillis;
+        final long endMillis;
+        //卖完的时间 0表示没卖完
+        volatile long soldOutAt;
+
+        VoucherState(boolean exist, long beginMillis, long endMillis) {
+            this.exist = exist;
+            this.beginMillis = beginMillis;
+            this.endMillis = endMillis;
+        }
+    }
+
+    //券id -> 本地状态 有上限，按写入时间过期
+    private final Cache<Long, VoucherState> states = Caffeine.newBuilder()
+            .maximumSize(MAX_VOUCHERS)
+            .expireAfter(new Expiry<Long, VoucherState>() {
+                @Override
+                public long expireAfterCreate(Long key, VoucherState s, long currentTime) {
+                    return s.exist ? TimeUnit.MINUTES.toNanos(EXIST_TTL_MINUTES) : TimeUnit.SECONDS.toNanos(NOT_EXIST_TTL_SECONDS);
+                }
+
+                @Override
+                public long expireAfterUpdate(Long key, VoucherState s, long currentTime, long currentDuration) {
+                    return expireAfterCreate(key, s, currentTime);
+                }
+
+                @Override
+                public long expireAfterRead(Long key, VoucherState s, long currentTime, long currentDuration) {
+                    return currentDuration;
+                }
+            })
+            .build();
+
+    public State state(Long voucherId) {
+        VoucherState s = states.get(voucherId, this::load);
+        if (!s.exist) {
+            return State.NOT_EXIST;
+        }
+        long now = System.currentTimeMillis();
+        if (now < s.beginMillis) {
+            return State.NOT_STARTED;
+        }
+        if (now > s.endMillis) {
+            return State.ENDED;
+        }
+        long soldOutAt = s.soldOutAt;
+        if (soldOutAt != 0) {
+            //到了复查时间 只放一个请求去Redis
+            if (now - soldOutAt < SOLD_OUT_RECHECK_MILLIS || !recheck(s, soldOutAt)) {
+                return State.SOLD_OUT;
+            }
+        }
+        return State.OPEN;
+    }
+
+    //lua脚本返回库存不足后调用 本地标记后通知其他节点
+    public void markSoldOut(Long voucherId) {
+        VoucherState s = states.getIfPresent(voucherId);
+        if (s == null) {
+            return;
+        }
+        boolean first = s.soldOutAt == 0;
+        s.soldOutAt = System.currentTimeMillis();
+        if (first) {
+            stringRedisTemplate.convertAndSend(SECKILL_GATE_CHANNEL, SOLD_OUT + voucherId);
+        }
+    }
+
+    //已结束或不存在 不触发卖完的复查
+    public boolean ended(Long voucherId) {
+        VoucherState s = states.get(voucherId, this::load);
+        return !s.exist || System.currentTimeMillis() > s.endMillis;
+    }
+
+    //复查时又抢到了 说明库存有回补，本节点恢复放行
+    public void markOpen(Long voucherId) {
+        VoucherState s = states.getIfPresent(voucherId);
+        if (s != null && s.soldOutAt != 0) {
+            s.soldOutAt = 0;
+        }
+    }
+
+    //券新增或修改后调用 各节点重新从数据库加载
+    public void reset(Long voucherId) {
+        stringRedisTemplate.convertAndSend(SECKILL_GATE_CHANNEL, RESET + voucherId);
+    }
+
+    private synchronized boolean recheck(VoucherState s, long soldOutAt) {
+        if (s.soldOutAt != soldOutAt) {
+            return false;
+        }
+        //顺延一个复查周期 这期间其他请求仍然直接拒绝
+        s.soldOutAt = System.currentTimeMillis();
+        return true;
+    }
+
+    private VoucherState load(Long voucherId) {
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        if (voucher == null || voucher.getBeginTime() == null || voucher.getEndTime() == null) {
+            return new VoucherState(false, 0, 0);
+        }
+        ZoneId zone = ZoneId.systemDefault();
+        return new VoucherState(true,
+                voucher.getBeginTime().atZone(zone).toInstant().toEpochMilli(),
+                voucher.getEndTime().atZone(zone).toInstant().toEpochMilli());
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            if (body.startsWith(SOLD_OUT)) {
+                Long voucherId = Long.valueOf(body.substring(SOLD_OUT.length()));
+                VoucherState s = states.getIfPresent(voucherId);
+                if (s != null && s.soldOutAt == 0) {
+                    s.soldOutAt = System.currentTimeMillis();
+                }
+            } else if (body.startsWith(RESET)) {
+                states.invalidate(Long.valueOf(body.substring(RESET.length())));
+            }
+        } catch (NumberFormatException e) {
+            log.error("无法解析秒杀闸门消息{}", body);
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_GATE_CHANNEL));
+    }
+}
@@ -0,0 +1,179 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_LIMIT_KEY;
+
+/**
+ * 秒杀限流
+ * 先按用户、再按券用本地令牌桶限流，可选再按券在Redis上做集群每秒总额度。
+ * 集群额度每次批量取一批放在本地用，不会每个请求都访问Redis。
+ */
+@Slf4j
+@Component
+public class SeckillLimiter {
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    //每张券每个节点每秒放行的请求数
+    @Value("${hmdp.seckill.limit.voucher-qps:1000}")
+    private double voucherQps;
+
+    @Value("${hmdp.seckill.limit.voucher-burst:2000}")
+    private double voucherBurst;
+
+    //每个用户每秒放行的请求数
+    @Value("${hmdp.seckill.limit.user-qps:1}")
+    private double userQps;
+
+    @Value("${hmdp.seckill.limit.user-burst:3}")
+    private double userBurst;
+
+    //每张券整个集群每秒放行的请求数 0表示不开启
+    @Value("${hmdp.seckill.limit.cluster-qps:0}")
+    private int clusterQps;
+
+    //每次从Redis取的集群额度
+    private static final int CLUSTER_CHUNK = 50;
+    //用户令牌桶多久不用就清理
+    private static final long USER_BUCKET_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    //按券的状态最多记录的券数、多久不用就清理 券id来自请求路径，不能无限增长
+    private static final long MAX_VOUCHERS = 10000;
+    private static final long VOUCHER_IDLE_MINUTES = 10;
+
+    private static final DefaultRedisScript<Long> LIMIT_TAKE_SCRIPT;
+
+    static {
+        LIMIT_TAKE_SCRIPT = new DefaultRedisScript<>();
+        LIMIT_TAKE_SCRIPT.setLocation(new ClassPathResource("limitTake.lua"));
+        LIMIT_TAKE_SCRIPT.setResultType(Long.class);
+    }
+
+    private final Cache<Long, TokenBucket> voucherBuckets = voucherCache();
+    private final Map<Long, TokenBucket> userBuckets = new ConcurrentHashMap<>();
+    private final Cache<Long, ClusterBudget> clusterBudgets = voucherCache();
+    private final Cache<Long, LimitStats> stats = voucherCache();
+
+    private static <V> Cache<Long, V> voucherCache() {
+        return Caffeine.newBuilder()
+                .maximumSize(MAX_VOUCHERS)
+                .expireAfterAccess(VOUCHER_IDLE_MINUTES, TimeUnit.MINUTES)
+                .build();
+    }
+
+    private final ScheduledExecutorService CLEAN_EXECUTOR =
+            Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "seckill-limiter-cleaner"));
+
+    //本节点当前这一秒从集群额度中取到、还没用完的令牌
+    private static class ClusterBudget {
+        long second;
+        int remaining;
+        //这一秒集群额度已经用完
+        boolean exhausted;
+    }
+
+    private static class LimitStats {
+        final LongAdder accepted = new LongAdder();
+        final LongAdder rejectedByUser = new LongAdder();
+        final LongAdder rejectedByVoucher = new LongAdder();
+        final LongAdder rejectedByCluster = new LongAdder();
+    }
+
+    public boolean tryAcquire(Long voucherId, Long userId) {
+        LimitStats s = stats.get(voucherId, k -> new LimitStats());
+        //1. 用户限流 防止一个用户刷接口占掉券的额度
+        if (!userBuckets.computeIfAbsent(userId, k -> new TokenBucket(userQps, userBurst)).tryAcquire()) {
+            s.rejectedByUser.increment();
+            return false;
+        }
+        //2. 券限流
+        if (!voucherBuckets.get(voucherId, k -> new TokenBucket(voucherQps, voucherBurst)).tryAcquire()) {
+            s.rejectedByVoucher.increment();
+            return false;
+        }
+        //3. 集群额度
+        if (clusterQps > 0 && !tryAcquireCluster(voucherId)) {
+            s.rejectedByCluster.increment();
+            return false;
+        }
+        s.accepted.increment();
+        return true;
+    }
+
+    private boolean tryAcquireCluster(Long voucherId) {
+        ClusterBudget budget = clusterBudgets.get(voucherId, k -> new ClusterBudget());
+        synchronized (budget) {
+            long second = System.currentTimeMillis() / 1000;
+            if (budget.second != second) {
+                budget.second = second;
+                budget.remaining = 0;
+                budget.exhausted = false;
+            }
+            if (budget.remaining == 0) {
+                if (budget.exhausted) {
+                    return false;
+                }
+                //本地用完了 去Redis再取一批
+                Long taken = stringRedisTemplate.execute(
+                        LIMIT_TAKE_SCRIPT,
+                        Collections.singletonList(SECKILL_LIMIT_KEY + voucherId + ":" + second),
+                        String.valueOf(CLUSTER_CHUNK),
+                        String.valueOf(clusterQps));
+                if (taken == null || taken <= 0) {
+                    budget.exhausted = true;
+                    return false;
+                }
+                budget.remaining = taken.intValue();
+            }
+            budget.remaining--;
+            return true;
+        }
+    }
+
+    //券id -> 放行、拒绝数
+    public Map<Long, Map<String, Long>> stats() {
+        Map<Long, Map<String, Long>> result = new LinkedHashMap<>();
+        stats.asMap().forEach((voucherId, s) -> {
+            Map<String, Long> counts = new LinkedHashMap<>();
+            counts.put("accepted", s.accepted.sum());
+            counts.put("rejectedByUser", s.rejectedByUser.sum());
+            counts.put("rejectedByVoucher", s.rejectedByVoucher.sum());
+            counts.put("rejectedByCluster", s.rejectedByCluster.sum());
+            result.put(voucherId, counts);
+        });
+        return result;
+    }
+
+    @PostConstruct
+    private void init() {
+        CLEAN_EXECUTOR.scheduleWithFixedDelay(() -> {
+            long now = System.currentTimeMillis();
+            userBuckets.values().removeIf(b -> now - b.getLastAccessMillis() > USER_BUCKET_IDLE_MILLIS);
+        }, 1, 1, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        CLEAN_EXECUTOR.shutdown();
+    }
+}
@@ -0,0 +1,398 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀库存分片
+ * 一张券的库存拆成N个分片 seckill:stock:{voucherId:i}，一人一单的集合也跟着分片 seckill:order:{voucherId:i}，
+ * 同一分片的key用同一个hash tag，集群下每个分片落在不同的slot上，每个脚本只访问一个分片。
+ * 用户按id固定落在一个分片，分片卖完后去其他分片扣库存；快卖完时后台线程把剩余库存挪到空分片上。
+ * 订单消息队列不在分片的slot上：扣库存时在分片里记一条待发送的订单，XADD之后删除；
+ * 挪库存时在来源分片记一条转移记录，目标分片加上之后删除。后台补偿任务处理中途挂掉留下的记录。
+ * 补偿和均衡只处理正在卖的券，每张券同一时间只有一个节点在做；卖完或结束、且没有留下记录的券不再处理，再有人下单时重新加入。
+ */
+@Slf4j
+@Component
+public class SeckillStockShards {
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private SeckillGate seckillGate;
+
+    @Autowired
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    //新建秒杀券的分片数
+    @Value("${hmdp.seckill.stock.shards:8}")
+    private int defaultShards;
+
+    //平均每个分片剩余库存低于这个值时开始均衡
+    @Value("${hmdp.seckill.stock.rebalance-threshold:10}")
+    private int rebalanceThreshold;
+
+    //返回3表示所属分片没有库存
+    private static final long SHARD_EMPTY = 3;
+    //待发送的订单、转移记录超过这么久还在 视为发起的节点挂了，由补偿任务处理
+    private static final long RECOVER_AFTER_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    //本地最多记录的券数 和SeckillGate一致
+    private static final long MAX_VOUCHERS = 10000;
+    //分片的券多久重新读一次分片数；没分片的券只记一小会儿
+    private static final long SHARDED_TTL_MINUTES = 10;
+    private static final long UNSHARDED_TTL_SECONDS = 30;
+    //每张券补偿、均衡的锁 只有拿到锁的节点处理
+    private static final long RECOVER_LOCK_SECONDS = 30;
+    private static final long REBALANCE_LOCK_SECONDS = 5;
+
+    private static final DefaultRedisScript<Long> SHARD_SCRIPT;
+    private static final DefaultRedisScript<Long> OVERFLOW_SCRIPT;
+    private static final DefaultRedisScript<Long> TAKE_SCRIPT;
+    private static final DefaultRedisScript<Long> GIVE_SCRIPT;
+
+    static {
+        SHARD_SCRIPT = new DefaultRedisScript<>();
+        SHARD_SCRIPT.setLocation(new ClassPathResource("seckillShard.lua"));
+        SHARD_SCRIPT.setResultType(Long.class);
+        OVERFLOW_SCRIPT = new DefaultRedisScript<>();
+        OVERFLOW_SCRIPT.setLocation(new ClassPathResource("seckillShardOverflow.lua"));
+        OVERFLOW_SCRIPT.setResultType(Long.class);
+        TAKE_SCRIPT = new DefaultRedisScript<>();
+        TAKE_SCRIPT.setLocation(new ClassPathResource("stockTake.lua"));
+        TAKE_SCRIPT.setResultType(Long.class);
+        GIVE_SCRIPT = new DefaultRedisScript<>();
+        GIVE_SCRIPT.setLocation(new ClassPathResource("stockGive.lua"));
+        GIVE_SCRIPT.setResultType(Long.class);
+    }
+
+    //券id -> 分片数 分片数创建后不会变，本地缓存避免每次查Redis；0表示没分片，同样缓存，不用每个请求都GET
+    private final Cache<Long, Integer> shardCounts = Caffeine.newBuilder()
+            .maximumSize(MAX_VOUCHERS)
+            .expireAfter(new Expiry<Long, Integer>() {
+                @Override
+                public long expireAfterCreate(Long key, Integer n, long currentTime) {
+                    return n > 0 ? TimeUnit.MINUTES.toNanos(SHARDED_TTL_MINUTES) : TimeUnit.SECONDS.toNanos(UNSHARDED_TTL_SECONDS);
+                }
+
+                @Override
+                public long expireAfterUpdate(Long key, Integer n, long currentTime, long currentDuration) {
+                    return expireAfterCreate(key, n, currentTime);
+                }
+
+                @Override
+                public long expireAfterRead(Long key, Integer n, long currentTime, long currentDuration) {
+                    return currentDuration;
+                }
+            })
+            .build();
+
+    //需要补偿和均衡的券 -> 分片数 下单时加入，卖完或结束且没有留下记录时移除
+    private final Map<Long, Integer> active = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService REBALANCE_EXECUTOR =
+            Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "seckill-stock-rebalancer"));
+
+    private final ScheduledExecutorService RECOVER_EXECUTOR =
+            Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "seckill-stock-recoverer"));
+
+    private volatile boolean shardsLoaded;
+
+    public static String stockKey(Long voucherId, int shard) {
+        return SECKILL_STOCK_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public static String orderKey(Long voucherId, int shard) {
+        return SECKILL_ORDER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public static String pendingKey(Long voucherId, int shard) {
+        return SECKILL_PENDING_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public static String transferKey(Long voucherId, int shard) {
+        return SECKILL_TRANSFER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public static String appliedKey(Long voucherId, int shard) {
+        return SECKILL_TRANSFER_APPLIED_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    //把库存平均分到各个分片
+    public void init(Long voucherId, int stock) {
+        int n = Math.max(1, Math.min(defaultShards, stock));
+        for (int i = 0; i < n; i++) {
+            int shardStock = stock / n + (i < stock % n ? 1 : 0);
+            stringRedisTemplate.opsForValue().set(stockKey(voucherId, i), String.valueOf(shardStock));
+        }
+        stringRedisTemplate.opsForValue().set(SECKILL_SHARDS_KEY + voucherId, String.valueOf(n));
+        shardCounts.put(voucherId, n);
+        active.put(voucherId, n);
+    }
+
+    //分片数 0表示这张券是分片之前创建的，只有一个seckill:stock:{voucherId}
+    public int shardCount(Long voucherId) {
+        return shardCounts.get(voucherId, this::loadShardCount);
+    }
+
+    private int loadShardCount(Long voucherId) {
+        String value = stringRedisTemplate.opsForValue().get(SECKILL_SHARDS_KEY + voucherId);
+        return value == null ? 0 : Integer.parseInt(value);
+    }
+
+    /**
+     * 扣减库存
+     * @return 0成功 1库存不足 2重复下单
+     */
+    public int tryAcquire(Long voucherId, Long userId, long orderId, String streamKey) {
+        int n = shardCount(voucherId);
+        active.putIfAbsent(voucherId, n);
+        String[] args = {userId.toString(), String.valueOf(orderId), String.valueOf(System.currentTimeMillis())};
+        //1. 先在用户所属分片扣库存
+        int home = Math.floorMod(userId, n);
+        Long result = stringRedisTemplate.execute(
+                SHARD_SCRIPT,
+                Arrays.asList(stockKey(voucherId, home), orderKey(voucherId, home), pendingKey(voucherId, home)),
+                (Object[]) args);
+        if (result == 0) {
+            sendOrder(voucherId, home, orderId, userId, streamKey);
+        }
+        if (result != SHARD_EMPTY) {
+            return result.intValue();
+        }
+        //2. 所属分片卖完了 依次去其他分片扣
+        for (int i = 1; i < n; i++) {
+            int shard = (home + i) % n;
+            Long r = stringRedisTemplate.execute(
+                    OVERFLOW_SCRIPT,
+                    Arrays.asList(stockKey(voucherId, shard), pendingKey(voucherId, shard)),
+                    (Object[]) args);
+            if (r == 0) {
+                sendOrder(voucherId, shard, orderId, userId, streamKey);
+                return 0;
+            }
+        }
+        //3. 全部卖完 释放在所属分片上的占位
+        stringRedisTemplate.opsForSet().remove(orderKey(voucherId, home), userId.toString());
+        return 1;
+    }
+
+    //XADD订单消息后删除待发送记录 补偿任务重复发送时由消费者按一人一单去重
+    private void sendOrder(Long voucherId, int shard, long orderId, Long userId, String streamKey) {
+        Map<String, String> fields = new HashMap<>();
+        fields.put("userId", userId.toString());
+        fields.put("voucherId", voucherId.toString());
+        fields.put("id", String.valueOf(orderId));
+        stringRedisTemplate.opsForStream().add(streamKey, fields);
+        stringRedisTemplate.opsForHash().delete(pendingKey(voucherId, shard), String.valueOf(orderId));
+    }
+
+    //剩余库存总数
+    public int remaining(Long voucherId) {
+        int n = shardCount(voucherId);
+        int total = 0;
+        for (int i = 0; i < n; i++) {
+            String value = stringRedisTemplate.opsForValue().get(stockKey(voucherId, i));
+            total += value == null ? 0 : Math.max(0, Integer.parseInt(value));
+        }
+        return total;
+    }
+
+    //快卖完时 把库存多的分片挪一半给空分片，减少用户在分片间来回找库存
+    private void rebalance(Long voucherId, int n) {
+        int[] stocks = new int[n];
+        int total = 0;
+        for (int i = 0; i < n; i++) {
+            String value = stringRedisTemplate.opsForValue().get(stockKey(voucherId, i));
+            stocks[i] = value == null ? 0 : Math.max(0, Integer.parseInt(value));
+            total += stocks[i];
+        }
+        if (total == 0 || total > n * rebalanceThreshold) {
+            return;
+        }
+        for (int i = 0; i < n; i++) {
+            if (stocks[i] > 0) {
+                continue;
+            }
+            //找库存最多的分片
+            int richest = 0;
+            for (int j = 1; j < n; j++) {
+                if (stocks[j] > stocks[richest]) {
+                    richest = j;
+                }
+            }
+            if (stocks[richest] < 2) {
+                return;
+            }
+            //来源分片扣减并记转移记录 -> 目标分片按记录加一次 -> 删除记录
+            String transferId = UUID.randomUUID().toString();
+            Long taken = stringRedisTemplate.execute(
+                    TAKE_SCRIPT,
+                    Arrays.asList(stockKey(voucherId, richest), transferKey(voucherId, richest)),
+                    String.valueOf(stocks[richest] / 2), transferId, String.valueOf(i),
+                    String.valueOf(System.currentTimeMillis()));
+            if (taken == null || taken <= 0) {
+                stocks[richest] = 0;
+                continue;
+            }
+            give(voucherId, richest, transferId, i, taken);
+            stocks[richest] -= taken;
+            stocks[i] += taken;
+            log.debug("券{}库存均衡 分片{} -> 分片{} {}个", voucherId, richest, i, taken);
+        }
+    }
+
+    private void give(Long voucherId, int from, String transferId, int to, long n) {
+        stringRedisTemplate.execute(
+                GIVE_SCRIPT,
+                Arrays.asList(stockKey(voucherId, to), appliedKey(voucherId, to)),
+                transferId, String.valueOf(n));
+        stringRedisTemplate.opsForHash().delete(transferKey(voucherId, from), transferId);
+    }
+
+    //补偿：超时还没发送的订单补发，超时还没完成的库存转移重新加到目标分片 返回是否还有没处理完的记录
+    private boolean recover(Long voucherId, int n, String streamKey) {
+        long expired = System.currentTimeMillis() - RECOVER_AFTER_MILLIS;
+        boolean left = false;
+        for (int shard = 0; shard < n; shard++) {
+            Map<Object, Object> pending = stringRedisTemplate.opsForHash().entries(pendingKey(voucherId, shard));
+            for (Map.Entry<Object, Object> e : pending.entrySet()) {
+                String[] value = e.getValue().toString().split(":");
+                if (Long.parseLong(value[1]) < expired) {
+                    log.warn("券{}分片{}的订单{}没有发送，补发", voucherId, shard, e.getKey());
+                    sendOrder(voucherId, shard, Long.parseLong(e.getKey().toString()), Long.valueOf(value[0]), streamKey);
+                } else {
+                    left = true;
+                }
+            }
+            Map<Object, Object> transfers = stringRedisTemplate.opsForHash().entries(transferKey(voucherId, shard));
+            for (Map.Entry<Object, Object> e : transfers.entrySet()) {
+                String[] value = e.getValue().toString().split(":");
+                if (Long.parseLong(value[2]) < expired) {
+                    log.warn("券{}分片{}的库存转移{}没有完成，重新加到分片{}", voucherId, shard, e.getKey(), value[0]);
+                    give(voucherId, shard, e.getKey().toString(), Integer.parseInt(value[0]), Long.parseLong(value[1]));
+                } else {
+                    left = true;
+                }
+            }
+        }
+        return left;
+    }
+
+    //补偿一张券 卖完或结束、且没有留下记录时不再处理
+    private void recoverVoucher(Long voucherId, int n) {
+        ILock lock = new SimpleRedisLock("seckill:recover:" + voucherId, stringRedisTemplate);
+        if (!lock.tryLock(RECOVER_LOCK_SECONDS)) {
+            return;
+        }
+        try {
+            boolean left = recover(voucherId, n, SECKILL_ORDER_STREAM);
+            if (!left && (seckillGate.ended(voucherId) || remaining(voucherId) == 0)) {
+                active.remove(voucherId);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //均衡一张券 多个节点同时挪同一张券的库存没有意义
+    private void rebalanceVoucher(Long voucherId, int n) {
+        ILock lock = new SimpleRedisLock("seckill:rebalance:" + voucherId, stringRedisTemplate);
+        if (!lock.tryLock(REBALANCE_LOCK_SECONDS)) {
+            return;
+        }
+        try {
+            rebalance(voucherId, n);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //启动时从Redis找出所有分片的券 重启前留下的记录也能补偿，没有记录的券第一次补偿后就移除
+    private void loadShardCounts() {
+        ScanOptions options = ScanOptions.scanOptions().match(SECKILL_SHARDS_KEY + "*").count(1000).build();
+        try (Cursor<String> cursor = stringRedisTemplate.scan(options)) {
+            while (cursor.hasNext()) {
+                Long voucherId = Long.valueOf(cursor.next().substring(SECKILL_SHARDS_KEY.length()));
+                int n = shardCount(voucherId);
+                if (n > 0) {
+                    active.put(voucherId, n);
+                }
+            }
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        //券新增或修改 重新读分片数，新建的券之前可能被记成了没分片
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            if (body.startsWith(SeckillGate.RESET)) {
+                try {
+                    shardCounts.invalidate(Long.valueOf(body.substring(SeckillGate.RESET.length())));
+                } catch (NumberFormatException e) {
+                    log.error("无法解析秒杀闸门消息{}", body);
+                }
+            }
+        }, new ChannelTopic(SECKILL_GATE_CHANNEL));
+        RECOVER_EXECUTOR.scheduleWithFixedDelay(() -> {
+            try {
+                if (!shardsLoaded) {
+                    loadShardCounts();
+                    shardsLoaded = true;
+                }
+                active.forEach((voucherId, n) -> {
+                    if (n > 0) {
+                        recoverVoucher(voucherId, n);
+                    } else {
+                        active.remove(voucherId);
+                    }
+                });
+            } catch (Exception e) {
+                log.error("秒杀分片补偿异常", e);
+            }
+        }, RECOVER_AFTER_MILLIS, RECOVER_AFTER_MILLIS, TimeUnit.MILLISECONDS);
+        REBALANCE_EXECUTOR.scheduleWithFixedDelay(() -> active.forEach((voucherId, n) -> {
+            if (n <= 1) {
+                return;
+            }
+            try {
+                rebalanceVoucher(voucherId, n);
+            } catch (Exception e) {
+                log.error("券{}库存均衡异常", voucherId, e);
+            }
+        }), 1, 1, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        REBALANCE_EXECUTOR.shutdown();
+        RECOVER_EXECUTOR.shutdown();
+    }
+}
@@ -0,0 +1,125 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.geo.Distance;
+import org.springframework.data.geo.GeoResult;
+import org.springframework.data.geo.GeoResults;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.domain.geo.GeoReference;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import static com.hmdp.utils.RedisConstants.SHOP_GEO_KEY;
+
+/**
+ * 按店铺类型的GEO索引 shop:geo:{typeId}，member为店铺id
+ * 启动时从数据库按id分页加载，新增、修改店铺时同步更新。
+ */
+@Slf4j
+@Component
+public class ShopGeoIndex {
+
+    //每次从数据库取的店铺数
+    private static final int LOAD_BATCH = 1000;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private ShopMapper shopMapper;
+
+    //附近店铺的搜索半径
+    @Value("${hmdp.shop.geo.radius-meters:5000}")
+    private double radiusMeters;
+
+    @PostConstruct
+    private void init() {
+        //不阻塞启动 后台加载
+        Thread loader = new Thread(this::load, "shop-geo-loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    //按id分页把所有店铺写入各自类型的GEO 一页一个pipeline
+    public void load() {
+        try {
+            long begin = System.currentTimeMillis();
+            long lastId = 0;
+            int total = 0;
+            while (true) {
+                List<Shop> shops = shopMapper.selectList(new QueryWrapper<Shop>()
+                        .select("id", "type_id", "x", "y").gt("id", lastId).orderByAsc("id").last("limit " + LOAD_BATCH));
+                if (shops.isEmpty()) {
+                    break;
+                }
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    for (Shop shop : shops) {
+                        if (hasLocation(shop)) {
+                            connection.geoCommands().geoAdd(key(shop.getTypeId()),
+                                    new Point(shop.getX(), shop.getY()), shop.getId().toString().getBytes(StandardCharsets.UTF_8));
+                        }
+                    }
+                    return null;
+                });
+                total += shops.size();
+                lastId = shops.get(shops.size() - 1).getId();
+            }
+            log.info("店铺GEO加载完成，{}家，耗时{}ms", total, System.currentTimeMillis() - begin);
+        } catch (Exception e) {
+            log.error("店铺GEO加载失败", e);
+        }
+    }
+
+    //新增或修改店铺后调用 old为修改前的店铺，类型变了要从原来的类型中删掉
+    public void update(Shop old, Shop shop) {
+        if (old != null && old.getTypeId() != null && !Objects.equals(old.getTypeId(), shop.getTypeId())) {
+            stringRedisTemplate.opsForGeo().remove(SHOP_GEO_KEY + old.getTypeId(), shop.getId().toString());
+        }
+        if (hasLocation(shop)) {
+            stringRedisTemplate.opsForGeo().add(SHOP_GEO_KEY + shop.getTypeId(),
+                    new Point(shop.getX(), shop.getY()), shop.getId().toString());
+        }
+    }
+
+    //按距离从近到远取第from到from + count - 1家 返回店铺id -> 距离(米)
+    //GEOSEARCH key FROMLONLAT x y BYRADIUS r m ASC COUNT from + count WITHDIST
+    public Map<Long, Double> search(Long typeId, double x, double y, int from, int count) {
+        GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo().search(
+                SHOP_GEO_KEY + typeId,
+                GeoReference.fromCoordinate(x, y),
+                new Distance(radiusMeters, RedisGeoCommands.DistanceUnit.METERS),
+                RedisGeoCommands.GeoSearchCommandArgs.newGeoSearchArgs().includeDistance().sortAscending().limit(from + count));
+        Map<Long, Double> distances = new LinkedHashMap<>();
+        if (results == null) {
+            return distances;
+        }
+        List<GeoResult<RedisGeoCommands.GeoLocation<String>>> list = results.getContent();
+        for (int i = from; i < list.size(); i++) {
+            GeoResult<RedisGeoCommands.GeoLocation<String>> result = list.get(i);
+            distances.put(Long.valueOf(result.getContent().getName()), result.getDistance().getValue());
+        }
+        return distances;
+    }
+
+    private static boolean hasLocation(Shop shop) {
+        return shop.getTypeId() != null && shop.getX() != null && shop.getY() != null;
+    }
+
+    private static byte[] key(Long typeId) {
+        return (SHOP_GEO_KEY + typeId).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,195 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SHOP_NAME_CHANNEL;
+
+/**
+ * 本地的店铺名称索引 替代LIKE '%关键字%'的全表扫描
+ * 后台按id分页从数据库重建NgramIndex后整体替换；两次重建之间新增、改名的店铺记在overrides里，查询时覆盖索引中的旧名称，
+ * 并通过Redis发布订阅通知其他节点。重建完成前返回null，由调用方退回数据库查询。
+ */
+@Slf4j
+@Component
+public class ShopNameIndex {
+
+    //每次从数据库取的店铺数
+    private static final int LOAD_BATCH = 10000;
+    //重建开始前这么久的修改才从overrides中删掉 避免重建读到修改提交前的数据
+    private static final long OVERRIDE_GRACE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    //本节点的名称 收到自己发的通知时跳过
+    private static final String NODE = ManagementFactory.getRuntimeMXBean().getName();
+
+    @Autowired
+    private ShopMapper shopMapper;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    //多久从数据库重建一次
+    @Value("${hmdp.shop.search.rebuild-minutes:30}")
+    private long rebuildMinutes;
+
+    private volatile NgramIndex index;
+
+    //上次重建之后修改过的店铺 name为null表示已删除
+    private final Map<Long, Renamed> overrides = new ConcurrentHashMap<>();
+
+    private volatile long lastRebuildMillis;
+
+    private record Renamed(String name, long updatedAt) {
+    }
+
+    private final ScheduledExecutorService REBUILD_EXECUTOR =
+            Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "shop-name-index-rebuilder"));
+
+    @PostConstruct
+    private void init() {
+        //其他节点修改的店铺 从数据库读最新的名称
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            int i = body.lastIndexOf(':');
+            if (!NODE.equals(body.substring(0, i))) {
+                long id = Long.parseLong(body.substring(i + 1));
+                put(id, shopMapper.selectById(id));
+            }
+        }, new ChannelTopic(SHOP_NAME_CHANNEL));
+        //启动时先建一次 之后定时重建
+        REBUILD_EXECUTOR.scheduleWithFixedDelay(() -> {
+            try {
+                rebuild();
+            } catch (Exception e) {
+                log.error("店铺名称索引重建失败", e);
+            }
+        }, 0, rebuildMinutes, TimeUnit.MINUTES);
+    }
+
+    //新增或改名后调用 同时通知其他节点
+    public void update(Shop shop) {
+        put(shop.getId(), shop);
+        stringRedisTemplate.convertAndSend(SHOP_NAME_CHANNEL, NODE + ":" + shop.getId());
+    }
+
+    private void put(long id, Shop shop) {
+        String name = shop == null ? null : NgramIndex.normalize(shop.getName());
+        overrides.put(id, new Renamed(name, System.currentTimeMillis()));
+    }
+
+    //按id分页读出所有店铺的名称 建好后整体替换
+    public void rebuild() {
+        long begin = System.currentTimeMillis();
+        long[] ids = new long[LOAD_BATCH];
+        String[] names = new String[LOAD_BATCH];
+        int total = 0;
+        long lastId = 0;
+        while (true) {
+            List<Shop> shops = shopMapper.selectList(new QueryWrapper<Shop>()
+                    .select("id", "name").gt("id", lastId).orderByAsc("id").last("limit " + LOAD_BATCH));
+            if (shops.isEmpty()) {
+                break;
+            }
+            if (total + shops.size() > ids.length) {
+                ids = Arrays.copyOf(ids, ids.length * 2);
+                names = Arrays.copyOf(names, names.length * 2);
+            }
+            for (Shop shop : shops) {
+                ids[total] = shop.getId();
+                names[total] = shop.getName();
+                total++;
+            }
+            lastId = shops.get(shops.size() - 1).getId();
+        }
+        index = NgramIndex.build(ids, names, total);
+        //重建已经包含的修改
+        overrides.values().removeIf(o -> o.updatedAt() < begin - OVERRIDE_GRACE_MILLIS);
+        lastRebuildMillis = System.currentTimeMillis() - begin;
+        log.info("店铺名称索引重建完成，{}家，{}KB，耗时{}ms", total, index.memoryBytes() / 1024, lastRebuildMillis);
+    }
+
+    //名称包含关键字的店铺 按score、id排序，取(lastScore, lastId)之后的count家，第一页两个都传null
+    //索引还没建好时返回null
+    public List<NgramIndex.Hit> search(String keyword, Integer lastScore, Long lastId, int count) {
+        NgramIndex current = index;
+        if (current == null) {
+            return null;
+        }
+        // 1.索引中的匹配 修改过的店铺跳过
+        List<NgramIndex.Hit> hits = current.search(keyword, overrides::containsKey);
+        // 2.修改过的店铺按最新的名称加进来
+        String query = NgramIndex.normalize(keyword);
+        boolean merged = false;
+        for (Map.Entry<Long, Renamed> e : overrides.entrySet()) {
+            String name = e.getValue().name();
+            int score = name == null || query.isEmpty() ? -1 : NgramIndex.score(name, query);
+            if (score >= 0) {
+                hits.add(new NgramIndex.Hit(e.getKey(), score));
+                merged = true;
+            }
+        }
+        if (merged) {
+            hits.sort(NgramIndex::compare);
+        }
+        // 3.跳过上一页最后一家及之前的
+        int from = 0;
+        if (lastScore != null && lastId != null) {
+            NgramIndex.Hit last = new NgramIndex.Hit(lastId, lastScore);
+            int lo = 0, hi = hits.size();
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (NgramIndex.compare(hits.get(mid), last) <= 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            from = lo;
+        }
+        return new ArrayList<>(hits.subList(from, Math.min(hits.size(), from + count)));
+    }
+
+    //店铺数、内存和重建情况
+    public Map<String, Object> stats() {
+        NgramIndex current = index;
+        long shops = current == null ? 0 : current.size();
+        long bytes = current == null ? 0 : current.memoryBytes();
+        Map<String, Object> s = new LinkedHashMap<>();
+        s.put("ready", current != null);
+        s.put("shops", shops);
+        s.put("memoryBytes", bytes);
+        s.put("bytesPerShop", shops == 0 ? 0 : (double) bytes / shops);
+        s.put("overrides", overrides.size());
+        s.put("lastRebuildMillis", lastRebuildMillis);
+        return s;
+    }
+
+    @PreDestroy
+    private void destroy() {
+        REBUILD_EXECUTOR.shutdown();
+    }
+}
@@ -0,0 +1,215 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SHOP_GEO_CHANNEL;
+
+/**
+ * 本地的附近店铺索引 每个类型一个GeoGrid，查询不访问Redis
+ * 后台按id分页从数据库重建后整体替换；两次重建之间新增、修改的店铺记在overrides里，查询时覆盖网格中的旧位置，
+ * 并通过Redis发布订阅通知其他节点。重建完成前返回null，由调用方退回Redis GEO。
+ */
+@Slf4j
+@Component
+public class ShopSpatialIndex {
+
+    //每次从数据库取的店铺数
+    private static final int LOAD_BATCH = 10000;
+    //重建开始前这么久的修改才从overrides中删掉 避免重建读到修改提交前的数据
+    private static final long OVERRIDE_GRACE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    //本节点的名称 收到自己发的通知时跳过
+    private static final String NODE = ManagementFactory.getRuntimeMXBean().getName();
+
+    @Autowired
+    private ShopMapper shopMapper;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    //附近店铺的搜索半径
+    @Value("${hmdp.shop.geo.radius-meters:5000}")
+    private double radiusMeters;
+
+    //多久从数据库重建一次
+    @Value("${hmdp.shop.geo.local.rebuild-minutes:30}")
+    private long rebuildMinutes;
+
+    //类型 -> 网格 重建后整体替换
+    private volatile Map<Long, GeoGrid> grids;
+
+    //上次重建之后修改过的店铺 typeId为null表示不在任何类型中
+    private final Map<Long, Moved> overrides = new ConcurrentHashMap<>();
+
+    private volatile long lastRebuildMillis;
+
+    private record Moved(Long typeId, double x, double y, long updatedAt) {
+    }
+
+    private final ScheduledExecutorService REBUILD_EXECUTOR =
+            Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "shop-spatial-index-rebuilder"));
+
+    @PostConstruct
+    private void init() {
+        //其他节点修改的店铺 从数据库读最新的位置
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            int i = body.lastIndexOf(':');
+            if (!NODE.equals(body.substring(0, i))) {
+                put(shopMapper.selectById(Long.parseLong(body.substring(i + 1))));
+            }
+        }, new ChannelTopic(SHOP_GEO_CHANNEL));
+        //启动时先建一次 之后定时重建
+        REBUILD_EXECUTOR.scheduleWithFixedDelay(() -> {
+            try {
+                rebuild();
+            } catch (Exception e) {
+                log.error("店铺空间索引重建失败", e);
+            }
+        }, 0, rebuildMinutes, TimeUnit.MINUTES);
+    }
+
+    //新增或修改店铺后调用 同时通知其他节点
+    public void update(Shop shop) {
+        put(shop);
+        stringRedisTemplate.convertAndSend(SHOP_GEO_CHANNEL, NODE + ":" + shop.getId());
+    }
+
+    private void put(Shop shop) {
+        if (shop == null) {
+            return;
+        }
+        boolean located = shop.getTypeId() != null && shop.getX() != null && shop.getY() != null;
+        overrides.put(shop.getId(), located
+                ? new Moved(shop.getTypeId(), shop.getX(), shop.getY(), System.currentTimeMillis())
+                : new Moved(null, 0, 0, System.currentTimeMillis()));
+    }
+
+    //按id分页读出所有店铺的类型和坐标 每个类型建一个网格后整体替换
+    public void rebuild() {
+        long begin = System.currentTimeMillis();
+        Map<Long, Points> points = new HashMap<>();
+        long lastId = 0;
+        int total = 0;
+        while (true) {
+            List<Shop> shops = shopMapper.selectList(new QueryWrapper<Shop>()
+                    .select("id", "type_id", "x", "y").gt("id", lastId).orderByAsc("id").last("limit " + LOAD_BATCH));
+            if (shops.isEmpty()) {
+                break;
+            }
+            for (Shop shop : shops) {
+                if (shop.getTypeId() != null && shop.getX() != null && shop.getY() != null) {
+                    points.computeIfAbsent(shop.getTypeId(), k -> new Points()).add(shop.getId(), shop.getX(), shop.getY());
+                }
+            }
+            total += shops.size();
+            lastId = shops.get(shops.size() - 1).getId();
+        }
+        Map<Long, GeoGrid> built = new HashMap<>(points.size() * 2);
+        points.forEach((typeId, p) -> built.put(typeId, GeoGrid.build(p.ids, p.xs, p.ys, p.size)));
+        grids = built;
+        //重建已经包含的修改
+        overrides.values().removeIf(o -> o.updatedAt() < begin - OVERRIDE_GRACE_MILLIS);
+        lastRebuildMillis = System.currentTimeMillis() - begin;
+        log.info("店铺空间索引重建完成，{}家，{}KB，耗时{}ms", total, memoryBytes() / 1024, lastRebuildMillis);
+    }
+
+    //按距离从近到远取第from到from + count - 1家 返回店铺id -> 距离(米)，索引还没建好时返回null
+    public Map<Long, Double> search(Long typeId, double x, double y, int from, int count) {
+        Map<Long, GeoGrid> current = grids;
+        if (current == null) {
+            return null;
+        }
+        // 1.网格中最近的from + count家 修改过的店铺跳过
+        GeoGrid grid = current.get(typeId);
+        List<GeoGrid.Hit> hits = grid == null ? new ArrayList<>()
+                : grid.nearest(x, y, from + count, radiusMeters, overrides::containsKey);
+        // 2.修改过的店铺按最新的位置加进来
+        overrides.forEach((id, o) -> {
+            if (typeId.equals(o.typeId())) {
+                double d = GeoGrid.distance(x, y, o.x(), o.y());
+                if (d <= radiusMeters) {
+                    hits.add(new GeoGrid.Hit(id, d));
+                }
+            }
+        });
+        hits.sort((a, b) -> Double.compare(a.distance(), b.distance()));
+        Map<Long, Double> distances = new LinkedHashMap<>();
+        for (int i = from; i < Math.min(hits.size(), from + count); i++) {
+            distances.put(hits.get(i).id(), hits.get(i).distance());
+        }
+        return distances;
+    }
+
+    private long memoryBytes() {
+        Map<Long, GeoGrid> current = grids;
+        return current == null ? 0 : current.values().stream().mapToLong(GeoGrid::memoryBytes).sum();
+    }
+
+    //店铺数、内存和重建情况
+    public Map<String, Object> stats() {
+        Map<Long, GeoGrid> current = grids;
+        long shops = current == null ? 0 : current.values().stream().mapToLong(GeoGrid::size).sum();
+        long bytes = memoryBytes();
+        Map<String, Object> s = new LinkedHashMap<>();
+        s.put("ready", current != null);
+        s.put("types", current == null ? 0 : current.size());
+        s.put("shops", shops);
+        s.put("memoryBytes", bytes);
+        s.put("bytesPerShop", shops == 0 ? 0 : (double) bytes / shops);
+        s.put("overrides", overrides.size());
+        s.put("lastRebuildMillis", lastRebuildMillis);
+        return s;
+    }
+
+    //一个类型的点 数组不够时翻倍
+    private static class Points {
+        long[] ids = new long[16];
+        double[] xs = new double[16];
+        double[] ys = new double[16];
+        int size;
+
+        void add(long id, double x, double y) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                xs = Arrays.copyOf(xs, size * 2);
+                ys = Arrays.copyOf(ys, size * 2);
+            }
+            ids[size] = id;
+            xs[size] = x;
+            ys[size] = y;
+            size++;
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        REBUILD_EXECUTOR.shutdown();
+    }
+}
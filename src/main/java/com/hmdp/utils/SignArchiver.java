@@ -0,0 +1,141 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.BooleanUtil;
+import com.hmdp.entity.SignMonth;
+import com.hmdp.mapper.SignMonthMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.BitFieldSubCommands;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.LOCK_SIGN_ARCHIVE_KEY;
+import static com.hmdp.utils.RedisConstants.USER_SIGN_KEY;
+
+/**
+ * 签到归档 把已经结束的月份从Redis的sign:{userId}:{yyyyMM}搬到tb_sign_month
+ * 每个用户每月一行，一个int存一个月每天是否签到。写入数据库后再删掉Redis中的key，重复归档按位或合并。
+ */
+@Slf4j
+@Component
+public class SignArchiver {
+
+    public static final DateTimeFormatter MONTH_FORMAT = DateTimeFormatter.ofPattern("yyyyMM");
+
+    //每批归档的key数
+    private static final int ARCHIVE_BATCH = 1000;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private SignMonthMapper signMonthMapper;
+
+    //多久检查一次有没有要归档的月份
+    @Value("${hmdp.sign.archive-hours:6}")
+    private long archiveHours;
+
+    private final ScheduledExecutorService ARCHIVE_EXECUTOR =
+            Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "sign-archiver"));
+
+    //sign:{userId}:{yyyyMM}
+    public static String key(Long userId, YearMonth month) {
+        return USER_SIGN_KEY + userId + ":" + month.format(MONTH_FORMAT);
+    }
+
+    //BITFIELD GET u{days} 0的结果第1天在最高位，转成第d天在第d-1位
+    public static long dayBits(long field, int days) {
+        return Long.reverse(field) >>> (64 - days);
+    }
+
+    //BITFIELD GET u{days} 0 一个月前days天的签到
+    public static BitFieldSubCommands firstDays(int days) {
+        return BitFieldSubCommands.create().get(BitFieldSubCommands.BitFieldType.unsigned(days)).valueAt(0);
+    }
+
+    @PostConstruct
+    private void init() {
+        ARCHIVE_EXECUTOR.scheduleWithFixedDelay(() -> {
+            try {
+                archive();
+            } catch (Exception e) {
+                log.error("签到归档失败", e);
+            }
+        }, 0, archiveHours, TimeUnit.HOURS);
+    }
+
+    //归档当月之前的所有签到
+    public void archive() {
+        //多个节点只需要一个归档 锁不主动释放，到期前其他节点都跳过
+        Boolean locked = stringRedisTemplate.opsForValue().setIfAbsent(
+                LOCK_SIGN_ARCHIVE_KEY, "1", Math.max(1, archiveHours * 3600 - 60), TimeUnit.SECONDS);
+        if (!BooleanUtil.isTrue(locked)) {
+            return;
+        }
+        long begin = System.currentTimeMillis();
+        String current = YearMonth.now().format(MONTH_FORMAT);
+        ScanOptions options = ScanOptions.scanOptions().match(USER_SIGN_KEY + "*").count(ARCHIVE_BATCH).build();
+        List<String> keys = new ArrayList<>();
+        List<SignMonth> rows = new ArrayList<>();
+        int total = 0;
+        try (Cursor<String> cursor = stringRedisTemplate.scan(options)) {
+            while (cursor.hasNext()) {
+                // 1.只要已经结束的月份 sign:{userId}:{yyyyMM}
+                String key = cursor.next();
+                String[] parts = key.split(":");
+                if (parts.length == 3 && parts[2].length() == 6 && parts[2].compareTo(current) < 0) {
+                    keys.add(key);
+                    rows.add(new SignMonth().setUserId(Long.valueOf(parts[1])).setMonth(Integer.valueOf(parts[2])));
+                }
+                if (keys.size() < ARCHIVE_BATCH && cursor.hasNext()) {
+                    continue;
+                }
+                if (keys.isEmpty()) {
+                    continue;
+                }
+                // 2.一批key的BITFIELD一个pipeline
+                List<Object> fields = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    for (int i = 0; i < keys.size(); i++) {
+                        int days = YearMonth.parse(rows.get(i).getMonth().toString(), MONTH_FORMAT).lengthOfMonth();
+                        connection.stringCommands().bitField(keys.get(i).getBytes(StandardCharsets.UTF_8), firstDays(days));
+                    }
+                    return null;
+                });
+                for (int i = 0; i < rows.size(); i++) {
+                    @SuppressWarnings("unchecked")
+                    List<Long> field = (List<Long>) fields.get(i);
+                    int days = YearMonth.parse(rows.get(i).getMonth().toString(), MONTH_FORMAT).lengthOfMonth();
+                    long value = field == null || field.isEmpty() || field.get(0) == null ? 0 : field.get(0);
+                    rows.get(i).setBits(dayBits(value, days));
+                }
+                // 3.先写数据库再删key 中途失败时下次重跑
+                signMonthMapper.upsert(rows);
+                stringRedisTemplate.unlink(keys);
+                total += keys.size();
+                keys.clear();
+                rows.clear();
+            }
+        }
+        log.info("签到归档完成，{}个月份，耗时{}ms", total, System.currentTimeMillis() - begin);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        ARCHIVE_EXECUTOR.shutdown();
+    }
+}
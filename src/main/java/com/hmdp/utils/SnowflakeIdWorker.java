@@ -0,0 +1,96 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 本地雪花id
+ * 高32位和RedisIdWorker一样是从BEGIN_TIMESTAMP开始的秒数，低32位为 1位标记 | 10位毫秒 | 9位workerId | 12位序号。
+ * 标记位为1，和incr模式下每天从1开始的序列号不会重复，两种id混在一起仍然按时间有序。
+ */
+@Slf4j
+public class SnowflakeIdWorker {
+
+    private static final int SEQUENCE_BITS = 12;
+    private static final int WORKER_BITS = 9;
+    private static final int MILLIS_BITS = 10;
+    private static final int COUNT_BITS = 32;
+
+    public static final int MAX_WORKER_ID = (1 << WORKER_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final long SNOWFLAKE_FLAG = 1L << (SEQUENCE_BITS + WORKER_BITS + MILLIS_BITS);
+
+    //开始时间戳 秒
+    private final long beginTimestamp;
+    //本地时区的偏移 毫秒 和RedisIdWorker一样按本地时间算秒数
+    private final long zoneOffsetMillis;
+    private final long workerId;
+
+    private long lastMillis = -1;
+    private long sequence;
+    //是否处在时钟回拨中 只在刚发现时打一次日志
+    private boolean clockBackward;
+
+    public SnowflakeIdWorker(long beginTimestamp, long zoneOffsetMillis, long workerId) {
+        if (workerId < 0 || workerId > MAX_WORKER_ID) {
+            throw new IllegalArgumentException("workerId超出范围：" + workerId);
+        }
+        this.beginTimestamp = beginTimestamp;
+        this.zoneOffsetMillis = zoneOffsetMillis;
+        this.workerId = workerId;
+    }
+
+    public long getWorkerId() {
+        return workerId;
+    }
+
+    public synchronized long nextId() {
+        long now = currentMillis();
+        //1. 时钟回拨 继续在上次的毫秒上分配序号，保证id不重复、不倒退
+        if (now < lastMillis) {
+            if (!clockBackward) {
+                log.warn("时钟回拨{}ms，继续使用上次的时间戳", lastMillis - now);
+                clockBackward = true;
+            }
+            now = lastMillis;
+        } else {
+            clockBackward = false;
+        }
+        //2. 同一毫秒内序号自增
+        if (now == lastMillis) {
+            sequence = (sequence + 1) & SEQUENCE_MASK;
+            if (sequence == 0) {
+                //这一毫秒的序号用完了 等下一毫秒
+                now = waitNextMillis(lastMillis);
+            }
+        } else {
+            sequence = 0;
+        }
+        lastMillis = now;
+        //3. 拼接 秒 | 标记 | 毫秒 | workerId | 序号
+        long localMillis = now + zoneOffsetMillis;
+        long second = localMillis / 1000 - beginTimestamp;
+        long millis = localMillis % 1000;
+        return second << COUNT_BITS
+                | SNOWFLAKE_FLAG
+                | millis << (SEQUENCE_BITS + WORKER_BITS)
+                | workerId << SEQUENCE_BITS
+                | sequence;
+    }
+
+    private long waitNextMillis(long last) {
+        long now = currentMillis();
+        if (now < last) {
+            //还在回拨中 直接借用下一毫秒
+            return last + 1;
+        }
+        while (now <= last) {
+            Thread.onSpinWait();
+            now = currentMillis();
+        }
+        return now;
+    }
+
+    protected long currentMillis() {
+        return System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,41 @@
+package com.hmdp.utils;
+
+/**
+ * 本地令牌桶 按固定速率补充令牌，最多攒capacity个，允许短时间的突发
+ */
+public class TokenBucket {
+
+    private final double capacity;
+    //每纳秒补充的令牌数
+    private final double tokensPerNano;
+    private double tokens;
+    private long lastRefillNanos;
+    //最近一次使用的时间 用于清理长时间不用的桶
+    private volatile long lastAccessMillis;
+
+    public TokenBucket(double permitsPerSecond, double capacity) {
+        this.capacity = capacity;
+        this.tokensPerNano = permitsPerSecond / 1_000_000_000D;
+        this.tokens = capacity;
+        this.lastRefillNanos = System.nanoTime();
+        this.lastAccessMillis = System.currentTimeMillis();
+    }
+
+    public synchronized boolean tryAcquire() {
+        long now = System.nanoTime();
+        //1. 按流逝的时间补充令牌
+        tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * tokensPerNano);
+        lastRefillNanos = now;
+        lastAccessMillis = System.currentTimeMillis();
+        //2. 令牌不够 拒绝
+        if (tokens < 1) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+
+    public long getLastAccessMillis() {
+        return lastAccessMillis;
+    }
+}
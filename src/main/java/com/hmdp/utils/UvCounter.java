@@ -0,0 +1,187 @@
+package com.hmdp.utils;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.UV_DAU_KEY;
+import static com.hmdp.utils.RedisConstants.UV_SHOP_KEY;
+
+/**
+ * 日活和店铺UV 每天一个HyperLogLog，不管多少访客每个key最多约12KB
+ * uv:dau:{yyyyMMdd}记登录用户的id，uv:shop:{shopId}:{yyyyMMdd}记访客（登录用户的id或者ip）。
+ * 请求线程只把访问放进本地队列，不访问Redis；后台每隔一段时间取出一批，同一个key的访客去重后一个pipeline PFADD。
+ * 队列满时丢弃，只影响计数的精度。
+ */
+@Slf4j
+@Component
+public class UvCounter {
+
+    public static final DateTimeFormatter DAY_FORMAT = DateTimeFormatter.BASIC_ISO_DATE;
+
+    //每次最多取出的访问数
+    private static final int FLUSH_BATCH = 10000;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    //本地队列的长度
+    @Value("${hmdp.uv.queue-capacity:100000}")
+    private int queueCapacity;
+
+    //多久写一次Redis
+    @Value("${hmdp.uv.flush-millis:1000}")
+    private long flushMillis;
+
+    //每天的key保留多久 要覆盖按月合并的范围
+    @Value("${hmdp.uv.retention-days:62}")
+    private long retentionDays;
+
+    private BlockingQueue<Visit> queue;
+
+    private record Visit(String key, String visitor) {
+    }
+
+    private final LongAdder recorded = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder pfAdds = new LongAdder();
+    private volatile long lastFlushMillis;
+
+    private final ScheduledExecutorService FLUSH_EXECUTOR =
+            Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "uv-flusher"));
+
+    @PostConstruct
+    private void init() {
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        FLUSH_EXECUTOR.scheduleWithFixedDelay(() -> {
+            try {
+                //积压多时连续写 直到队列取空
+                while (flush() == FLUSH_BATCH) {
+                }
+            } catch (Exception e) {
+                log.error("UV写入Redis失败", e);
+            }
+        }, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    //登录用户的访问 计入当天的日活
+    public void recordUser(Long userId) {
+        offer(UV_DAU_KEY + LocalDate.now().format(DAY_FORMAT), userId.toString());
+    }
+
+    //店铺详情的访问 visitor为登录用户的id或者ip
+    public void recordShop(Long shopId, String visitor) {
+        offer(UV_SHOP_KEY + shopId + ":" + LocalDate.now().format(DAY_FORMAT), visitor);
+    }
+
+    private void offer(String key, String visitor) {
+        if (queue.offer(new Visit(key, visitor))) {
+            recorded.increment();
+        } else {
+            dropped.increment();
+        }
+    }
+
+    //取出一批访问 按key去重后PFADD，返回取出的个数
+    private int flush() {
+        List<Visit> visits = new ArrayList<>(Math.min(queue.size(), FLUSH_BATCH));
+        queue.drainTo(visits, FLUSH_BATCH);
+        if (visits.isEmpty()) {
+            return 0;
+        }
+        long begin = System.currentTimeMillis();
+        Map<String, Set<String>> byKey = new HashMap<>();
+        for (Visit visit : visits) {
+            byKey.computeIfAbsent(visit.key(), k -> new HashSet<>()).add(visit.visitor());
+        }
+        //每个key一个PFADD，过期时间跟着刷新
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            byKey.forEach((key, visitors) -> {
+                byte[] k = key.getBytes(StandardCharsets.UTF_8);
+                byte[][] values = visitors.stream().map(v -> v.getBytes(StandardCharsets.UTF_8)).toArray(byte[][]::new);
+                connection.hyperLogLogCommands().pfAdd(k, values);
+                connection.keyCommands().expire(k, TimeUnit.DAYS.toSeconds(retentionDays));
+            });
+            return null;
+        });
+        flushes.increment();
+        pfAdds.add(byKey.size());
+        lastFlushMillis = System.currentTimeMillis() - begin;
+        return visits.size();
+    }
+
+    //日活 从from到to（含）的去重用户数
+    public long countUsers(LocalDate from, LocalDate to) {
+        return count(UV_DAU_KEY, from, to);
+    }
+
+    //店铺UV 从from到to（含）的去重访客数
+    public long countShop(Long shopId, LocalDate from, LocalDate to) {
+        return count(UV_SHOP_KEY + shopId + ":", from, to);
+    }
+
+    //一天直接PFCOUNT；多天时PFCOUNT多个key，Redis在临时的HyperLogLog中合并后计数，不改动每天的key
+    private long count(String prefix, LocalDate from, LocalDate to) {
+        List<String> keys = new ArrayList<>();
+        for (LocalDate day = from; !day.isAfter(to); day = day.plusDays(1)) {
+            keys.add(prefix + day.format(DAY_FORMAT));
+        }
+        if (keys.isEmpty()) {
+            return 0;
+        }
+        Long count = stringRedisTemplate.opsForHyperLogLog().size(keys.toArray(new String[0]));
+        return count == null ? 0 : count;
+    }
+
+    //队列积压、写入次数和今天日活key的内存
+    public Map<String, Object> stats() {
+        String today = UV_DAU_KEY + LocalDate.now().format(DAY_FORMAT);
+        Long bytes = stringRedisTemplate.execute((RedisCallback<Long>) connection ->
+                (Long) connection.execute("MEMORY", "USAGE".getBytes(StandardCharsets.UTF_8),
+                        today.getBytes(StandardCharsets.UTF_8)));
+        Map<String, Object> s = new LinkedHashMap<>();
+        s.put("recorded", recorded.sum());
+        s.put("dropped", dropped.sum());
+        s.put("queued", queue.size());
+        s.put("flushes", flushes.sum());
+        s.put("pfAdds", pfAdds.sum());
+        s.put("lastFlushMillis", lastFlushMillis);
+        s.put("todayDauMemoryBytes", bytes == null ? 0 : bytes);
+        return s;
+    }
+
+    @PreDestroy
+    private void destroy() {
+        FLUSH_EXECUTOR.shutdown();
+        //停止前把队列里剩下的写进去
+        try {
+            while (flush() > 0) {
+            }
+        } catch (Exception e) {
+            log.error("UV写入Redis失败", e);
+        }
+    }
+}
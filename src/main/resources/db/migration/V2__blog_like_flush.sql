@@ -0,0 +1,6 @@
+-- 已写回数据库的点赞数增量批次 写回前插入，重复的批次跳过
+CREATE TABLE IF NOT EXISTS `tb_blog_like_flush`  (
+  `batch_id` bigint(20) NOT NULL COMMENT '已写回数据库的点赞数增量批次id',
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '写回时间',
+  PRIMARY KEY (`batch_id`) USING BTREE
+) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
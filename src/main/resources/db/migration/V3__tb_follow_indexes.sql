@@ -0,0 +1,9 @@
+-- 同一对关注关系只保留最早的一条 否则唯一索引建不起来
+DELETE f1 FROM `tb_follow` f1
+  JOIN `tb_follow` f2 ON f1.`user_id` = f2.`user_id` AND f1.`follow_user_id` = f2.`follow_user_id` AND f1.`id` > f2.`id`;
+
+-- 是否关注、取关、关注列表：where user_id = ? [and follow_user_id = ?]
+-- 粉丝列表、推送笔记、粉丝数：where follow_user_id = ? and user_id > ? order by user_id，索引覆盖
+ALTER TABLE `tb_follow`
+  ADD UNIQUE INDEX `uk_user_follow`(`user_id`, `follow_user_id`) USING BTREE,
+  ADD INDEX `idx_follow_user`(`follow_user_id`, `user_id`) USING BTREE;
@@ -0,0 +1,8 @@
+-- 已归档的签到 每个用户每月一行，第d天签到时bits的第d-1位为1
+-- 当月的签到在Redis的sign:{userId}:{yyyyMM}里，月份结束后归档到这里
+CREATE TABLE IF NOT EXISTS `tb_sign_month`  (
+  `user_id` bigint(20) UNSIGNED NOT NULL COMMENT '用户id',
+  `month` int(6) UNSIGNED NOT NULL COMMENT '签到的年月 yyyyMM',
+  `bits` int(10) UNSIGNED NOT NULL DEFAULT 0 COMMENT '每天是否签到',
+  PRIMARY KEY (`user_id`, `month`) USING BTREE
+) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
@@ -0,0 +1,2 @@
+-- 点赞数写回的批次记录保留1天 按create_time定期删除
+ALTER TABLE `tb_blog_like_flush` ADD INDEX `idx_create_time`(`create_time`) USING BTREE;
@@ -0,0 +1,16 @@
+-- 1 参数列表
+-- 1.1 粉丝的收件箱 feed:{userId}
+local inboxKey = KEYS[1]
+local timestamp = ARGV[1]
+local blogId = ARGV[2]
+-- 1.2 收件箱最多保留的笔记数
+local maxSize = tonumber(ARGV[3])
+
+-- 2 收件箱不存在（长期不活跃已过期） 不推送，下次读取时重建
+if redis.call('exists', inboxKey) == 0 then
+    return 0
+end
+-- 3 推送 并只保留最新的maxSize篇
+redis.call('zadd', inboxKey, timestamp, blogId)
+redis.call('zremrangebyrank', inboxKey, 0, -maxSize - 1)
+return 1
@@ -0,0 +1,6 @@
+-- 只更新已在排行里的笔记 判断和ZINCRBY在一个脚本里，不会把校准时刚裁掉的笔记按增量重新加回去
+if redis.call('zscore', KEYS[1], ARGV[1]) then
+    redis.call('zincrby', KEYS[1], ARGV[2], ARGV[1])
+    return 1
+end
+return 0
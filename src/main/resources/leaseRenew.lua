@@ -0,0 +1,11 @@
+-- 续期workerId租约 只有租约还属于自己时才续期
+local key = KEYS[1]
+-- 当前实例标识
+local owner = ARGV[1]
+-- 租约时长 秒
+local ttl = ARGV[2]
+
+if redis.call('get', key) == owner then
+    return redis.call('expire', key, ttl)
+end
+return 0
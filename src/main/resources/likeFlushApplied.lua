@@ -0,0 +1,6 @@
+-- 标记这一批已写入数据库 只标记自己这一批
+-- 其他节点已经删掉这一批时不能HSET，否则会重新创建一个只有__applied的flushing，之后再也换不出新批次
+if redis.call('hget', KEYS[1], '__batch') == ARGV[1] then
+    return redis.call('hset', KEYS[1], '__applied', ARGV[1])
+end
+return 0
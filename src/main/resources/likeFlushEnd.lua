@@ -0,0 +1,5 @@
+-- 只删除自己写完的那一批 防止删掉其他节点刚换出来的新批次
+if redis.call('hget', KEYS[1], '__batch') == ARGV[1] then
+    return redis.call('del', KEYS[1])
+end
+return 0
@@ -0,0 +1,24 @@
+-- 1 参数列表
+-- 1.1 点赞数增量 blog:liked:delta
+local deltaKey = KEYS[1]
+-- 1.2 正在写回数据库的增量 blog:liked:delta:flushing
+local flushingKey = KEYS[2]
+-- 1.3 本批次id
+local batchId = ARGV[1]
+
+-- 2 上一批还没写完（写回中途宕机） 继续写上一批
+-- 没有__batch的flushing不是完整的一批（如迟到的__applied标记） 删掉后换出新批次
+if redis.call('exists', flushingKey) == 1 then
+    if redis.call('hexists', flushingKey, '__batch') == 1 then
+        return 0
+    end
+    redis.call('del', flushingKey)
+end
+-- 3 没有新的增量
+if redis.call('exists', deltaKey) == 0 then
+    return -1
+end
+-- 4 把当前增量整体换成新的一批 之后的点赞写到新的delta里
+redis.call('rename', deltaKey, flushingKey)
+redis.call('hset', flushingKey, '__batch', batchId)
+return 1
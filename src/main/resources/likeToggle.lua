@@ -0,0 +1,19 @@
+-- 1 参数列表
+-- 1.1 笔记的点赞用户zset blog:liked:{blogId}
+local likedKey = KEYS[1]
+-- 1.2 还没写回数据库的点赞数增量 hash blogId -> delta
+local deltaKey = KEYS[2]
+local blogId = ARGV[1]
+local userId = ARGV[2]
+local now = ARGV[3]
+
+-- 2 没点过赞 点赞，增量+1
+if redis.call('zscore', likedKey, userId) == false then
+    redis.call('zadd', likedKey, now, userId)
+    redis.call('hincrby', deltaKey, blogId, 1)
+    return 1
+end
+-- 3 点过赞 取消点赞，增量-1
+redis.call('zrem', likedKey, userId)
+redis.call('hincrby', deltaKey, blogId, -1)
+return -1
@@ -0,0 +1,16 @@
+-- 从集群每秒的总额度中取一批令牌，返回实际取到的数量
+-- KEYS[1] seckill:limit:{voucherId}:{秒}
+local key = KEYS[1]
+-- 想取的数量
+local want = tonumber(ARGV[1])
+-- 每秒总额度
+local limit = tonumber(ARGV[2])
+
+local used = tonumber(redis.call('get', key) or '0')
+if used >= limit then
+    return 0
+end
+local n = math.min(want, limit - used)
+redis.call('incrby', key, n)
+redis.call('expire', key, 2)
+return n
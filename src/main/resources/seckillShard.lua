@@ -0,0 +1,37 @@
+-- 分片库存秒杀脚本 只访问同一个分片hash tag {voucherId:shard}下的key，可以在Redis Cluster中执行
+-- 订单消息不在脚本里发：stream.orders不在这个slot上。扣库存的同时记一条待发送的订单，
+-- 由调用方XADD后删除；调用方挂掉时由SeckillStockShards的补偿任务补发
+-- 1 参数列表
+-- 1.1 用户所属分片的库存key seckill:stock:{voucherId:shard}
+local stockKey = KEYS[1]
+-- 1.2 用户所属分片的订单key seckill:order:{voucherId:shard}
+local orderKey = KEYS[2]
+-- 1.3 本分片待发送的订单 seckill:pending:{voucherId:shard}
+local pendingKey = KEYS[3]
+-- 1.4 用户id
+local userId = ARGV[1]
+-- 1.5 订单id
+local orderId = ARGV[2]
+-- 1.6 当前时间戳 毫秒
+local now = ARGV[3]
+
+-- 2 脚本业务
+-- 2.1 判断用户是否下过单 一个用户只会落在自己的分片上
+if redis.call('sismember', orderKey, userId) == 1 then
+    -- 存在 为重复下单 返回2
+    return 2
+end
+-- 2.2 判断本分片库存是否充足
+local stock = tonumber(redis.call('get', stockKey))
+if stock == nil or stock <= 0 then
+    -- 本分片没有库存 先占住一人一单的位置，再去其他分片扣库存 返回3
+    redis.call('sadd', orderKey, userId)
+    return 3
+end
+-- 2.3 扣库存
+redis.call('incrby', stockKey, -1)
+-- 2.4 下单 保存用户
+redis.call('sadd', orderKey, userId)
+-- 2.5 记录待发送的订单 orderId -> userId:时间戳
+redis.call('hset', pendingKey, orderId, userId .. ':' .. now)
+return 0
@@ -0,0 +1,24 @@
+-- 用户所属分片没有库存时，到其他分片扣库存 一人一单已经在所属分片占位
+-- 只访问其他分片hash tag下的key，订单消息由调用方发送
+-- 1 参数列表
+-- 1.1 其他分片的库存key
+local stockKey = KEYS[1]
+-- 1.2 其他分片待发送的订单
+local pendingKey = KEYS[2]
+-- 1.3 用户id
+local userId = ARGV[1]
+-- 1.4 订单id
+local orderId = ARGV[2]
+-- 1.5 当前时间戳 毫秒
+local now = ARGV[3]
+
+-- 2 判断库存是否充足
+local stock = tonumber(redis.call('get', stockKey))
+if stock == nil or stock <= 0 then
+    -- 库存不足 返回1
+    return 1
+end
+-- 3 扣库存 记录待发送的订单
+redis.call('incrby', stockKey, -1)
+redis.call('hset', pendingKey, orderId, userId .. ':' .. now)
+return 0
@@ -0,0 +1,14 @@
+-- 把转移记录的库存加到目标分片 同一条转移记录只加一次，补偿任务重复执行不会多加
+-- 加过的记录保留1小时，不主动删除，避免删除后补偿任务又加一次
+local stockKey = KEYS[1]
+local appliedKey = KEYS[2]
+local transferId = ARGV[1]
+local n = tonumber(ARGV[2])
+
+local added = redis.call('sadd', appliedKey, transferId)
+redis.call('expire', appliedKey, 3600)
+if added == 0 then
+    return 0
+end
+redis.call('incrby', stockKey, n)
+return n
@@ -0,0 +1,18 @@
+-- 从分片中最多取出ARGV[1]个库存，返回实际取出的数量
+-- 取出的同时在本分片记一条转移记录，目标分片加上之后再删除；中途挂掉时由补偿任务重新加
+local stockKey = KEYS[1]
+local transferKey = KEYS[2]
+local want = tonumber(ARGV[1])
+local transferId = ARGV[2]
+local target = ARGV[3]
+local now = ARGV[4]
+
+local stock = tonumber(redis.call('get', stockKey))
+if stock == nil or stock <= 0 then
+    return 0
+end
+local n = math.min(stock, want)
+redis.call('incrby', stockKey, -n)
+-- transferId -> 目标分片:数量:时间戳
+redis.call('hset', transferKey, transferId, target .. ':' .. n .. ':' .. now)
+return n
@@ -0,0 +1,35 @@
+-- 1 参数列表
+-- 1.1 stream的key
+local stream = KEYS[1]
+-- 1.2 消费组
+local group = ARGV[1]
+
+if redis.call('exists', stream) == 0 then
+    return 0
+end
+-- 2 最小的未ACK消息之前的都已经处理完 没有pending时到最后投递的消息为止
+-- 读pending和最后投递的id在同一个脚本里，中间不会有消费者读走新消息，不会裁掉刚投递还没ACK的消息
+local minId
+local pending = redis.call('xpending', stream, group)
+if pending[1] > 0 then
+    minId = pending[2]
+else
+    for _, g in ipairs(redis.call('xinfo', 'groups', stream)) do
+        local name, lastId
+        for i = 1, #g, 2 do
+            if g[i] == 'name' then
+                name = g[i + 1]
+            elseif g[i] == 'last-delivered-id' then
+                lastId = g[i + 1]
+            end
+        end
+        if name == group then
+            minId = lastId
+        end
+    end
+end
+if not minId or minId == '0-0' then
+    return 0
+end
+-- 3 XTRIM stream MINID ~ id
+return redis.call('xtrim', stream, 'MINID', '~', minId)
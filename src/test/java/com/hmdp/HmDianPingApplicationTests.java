@@ -1,17 +1,54 @@
 package com.hmdp;
 
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
 import com.hmdp.entity.Shop;
+import com.hmdp.entity.User;
+import com.hmdp.service.IBlogService;
 import com.hmdp.service.IShopService;
+import com.hmdp.service.IUserService;
 import com.hmdp.service.impl.ShopServiceImpl;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.ShopGeoIndex;
+import com.hmdp.utils.UvCounter;
+import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.UserHolder;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
 
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_SHARDS_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SHOP_GEO_KEY;
+import static com.hmdp.utils.RedisConstants.UV_DAU_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @SpringBootTest
 class HmDianPingApplicationTests {
@@ -22,6 +59,27 @@ class HmDianPingApplicationTests {
     @Autowired
     private RedisIdWorker redisIdWorker;
 
+    @Autowired
+    private SeckillStockShards seckillStockShards;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private IBlogService blogService;
+
+    @Autowired
+    private IUserService userService;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private ShopGeoIndex shopGeoIndex;
+
+    @Autowired
+    private UvCounter uvCounter;
+
     @Test
     void testSaveShop() {
         shopService.saveShop2Redis(1L, 10);
@@ -52,4 +110,270 @@ class HmDianPingApplicationTests {
         System.out.println("time="+(end-begin));
     }
 
+
+    //分片库存压测 不超卖，并和单key脚本比较每秒成功下单数
+    //单key用不发消息的seckill.lua，分片脚本的消息发到单独的stream，不会被订单消费者处理
+    @Test
+    void testSeckillStockShards() throws InterruptedException {
+        int stock = 2000;
+        int users = 10000;
+        long singleVoucherId = 900000001L;
+        long shardedVoucherId = 900000002L;
+        String testStream = "stream.orders.test";
+
+        //1. 单key
+        DefaultRedisScript<Long> singleScript = new DefaultRedisScript<>();
+        singleScript.setLocation(new ClassPathResource("seckill.lua"));
+        singleScript.setResultType(Long.class);
+        stringRedisTemplate.delete(SECKILL_ORDER_KEY + singleVoucherId);
+        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + singleVoucherId, String.valueOf(stock));
+        AtomicInteger singleSuccess = new AtomicInteger();
+        long singleTime = runConcurrently(users, userId -> {
+            Long r = stringRedisTemplate.execute(singleScript, Collections.emptyList(),
+                    String.valueOf(singleVoucherId), String.valueOf(userId));
+            if (r == 0) {
+                singleSuccess.incrementAndGet();
+            }
+        });
+
+        //2. 分片
+        seckillStockShards.init(shardedVoucherId, stock);
+        AtomicInteger shardedSuccess = new AtomicInteger();
+        long shardedTime = runConcurrently(users, userId -> {
+            if (seckillStockShards.tryAcquire(shardedVoucherId, (long) userId, userId, testStream) == 0) {
+                shardedSuccess.incrementAndGet();
+            }
+        });
+
+        System.out.println("single: success=" + singleSuccess.get() + " time=" + singleTime
+                + " qps=" + users * 1000L / Math.max(1, singleTime));
+        System.out.println("sharded: success=" + shardedSuccess.get() + " time=" + shardedTime
+                + " qps=" + users * 1000L / Math.max(1, shardedTime));
+        assertEquals(stock, singleSuccess.get());
+        assertEquals(stock, shardedSuccess.get());
+        assertEquals(0, seckillStockShards.remaining(shardedVoucherId));
+        //每个成功的订单都发到了stream 没有留下待发送的记录
+        assertEquals(stock, stringRedisTemplate.opsForStream().size(testStream));
+
+        //3. 清理
+        int n = seckillStockShards.shardCount(shardedVoucherId);
+        for (int i = 0; i < n; i++) {
+            stringRedisTemplate.delete(SeckillStockShards.stockKey(shardedVoucherId, i));
+            assertEquals(0, stringRedisTemplate.opsForHash().size(SeckillStockShards.pendingKey(shardedVoucherId, i)));
+            stringRedisTemplate.delete(SeckillStockShards.orderKey(shardedVoucherId, i));
+            stringRedisTemplate.delete(SeckillStockShards.pendingKey(shardedVoucherId, i));
+        }
+        stringRedisTemplate.delete(SECKILL_SHARDS_KEY + shardedVoucherId);
+        stringRedisTemplate.delete(SECKILL_STOCK_KEY + singleVoucherId);
+        stringRedisTemplate.delete(SECKILL_ORDER_KEY + singleVoucherId);
+        stringRedisTemplate.delete(testStream);
+    }
+
+    //users个用户并发下单，返回耗时
+    private long runConcurrently(int users, IntConsumer purchase) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(users);
+        long begin = System.currentTimeMillis();
+        for (int i = 1; i <= users; i++) {
+            int userId = i;
+            es.submit(() -> {
+                try {
+                    purchase.accept(userId);
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        return System.currentTimeMillis() - begin;
+    }
+
+    //一页10篇热门笔记的耗时 逐篇查用户和ZSCORE 对比 批量查用户加pipeline
+    @Test
+    void testBlogPageLatency() {
+        UserDTO me = new UserDTO();
+        me.setId(1L);
+        UserHolder.saveUser(me);
+        try {
+            int rounds = 200;
+            //预热
+            for (int i = 0; i < 20; i++) {
+                blogPageOneByOne();
+                blogService.queryHotBlog(1);
+            }
+            long begin = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                blogPageOneByOne();
+            }
+            long before = (System.nanoTime() - begin) / rounds;
+            begin = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                blogService.queryHotBlog(1);
+            }
+            long after = (System.nanoTime() - begin) / rounds;
+            System.out.println("one by one: " + before / 1000 + "us/page, batched: " + after / 1000 + "us/page");
+        } finally {
+            UserHolder.removeUser();
+        }
+    }
+
+    //改动前的做法 每篇笔记一次getById、一次ZSCORE
+    private List<Blog> blogPageOneByOne() {
+        List<Blog> blogs = blogService.query().orderByDesc("liked")
+                .page(new Page<>(1, SystemConstants.MAX_PAGE_SIZE)).getRecords();
+        for (Blog blog : blogs) {
+            User user = userService.getById(blog.getUserId());
+            blog.setName(user.getNickName());
+            blog.setIcon(user.getIcon());
+            Double score = stringRedisTemplate.opsForZSet().score(BLOG_LIKED_KEY + blog.getId(), "1");
+            blog.setIsLike(score != null);
+        }
+        return blogs;
+    }
+
+    //tb_follow上的查询都要走索引 EXPLAIN的type为ALL（全表扫描）或index（全索引扫描）时失败
+    @Test
+    void testFollowQueriesUseIndex() {
+        List<String> sqls = List.of(
+                //是否关注、取关
+                "SELECT COUNT(*) FROM tb_follow WHERE user_id = 1 AND follow_user_id = 2",
+                //预热关注集合
+                "SELECT follow_user_id FROM tb_follow WHERE user_id = 1",
+                //关注列表
+                "SELECT follow_user_id FROM tb_follow WHERE user_id = 1 AND follow_user_id > 0 ORDER BY follow_user_id LIMIT 10",
+                //粉丝列表、推送笔记
+                "SELECT user_id FROM tb_follow WHERE follow_user_id = 1 AND user_id > 0 ORDER BY user_id LIMIT 1000",
+                //粉丝数
+                "SELECT COUNT(*) FROM tb_follow WHERE follow_user_id = 1");
+        for (String sql : sqls) {
+            for (Map<String, Object> row : jdbcTemplate.queryForList("EXPLAIN " + sql)) {
+                Object type = row.get("type");
+                System.out.println(type + " " + row.get("key") + " " + sql);
+                assertFalse("ALL".equals(type) || "index".equals(type), "全表扫描：" + sql);
+            }
+        }
+    }
+
+    //附近店铺 GEOSEARCH对比MySQL按距离排序 100万家店铺随机分布在杭州周边
+    //临时表tb_shop_geo_bench和shop:geo:-1测完删除
+    @Test
+    void benchmarkShopGeoVsMysql() {
+        int total = 1_000_000;
+        int batch = 10_000;
+        int rounds = 100;
+        String geoKey = SHOP_GEO_KEY + "-1";
+        Random random = new Random(1);
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS tb_shop_geo_bench (id BIGINT PRIMARY KEY, x DOUBLE NOT NULL, y DOUBLE NOT NULL)");
+        try {
+            for (int from = 0; from < total; from += batch) {
+                List<Object[]> rows = new ArrayList<>(batch);
+                for (int i = from; i < from + batch; i++) {
+                    rows.add(new Object[]{i + 1L, 119.8 + random.nextDouble() * 0.8, 30.0 + random.nextDouble() * 0.6});
+                }
+                jdbcTemplate.batchUpdate("INSERT INTO tb_shop_geo_bench (id, x, y) VALUES (?, ?, ?)", rows);
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    for (Object[] row : rows) {
+                        connection.geoCommands().geoAdd(geoKey.getBytes(StandardCharsets.UTF_8),
+                                new Point((Double) row[1], (Double) row[2]), row[0].toString().getBytes(StandardCharsets.UTF_8));
+                    }
+                    return null;
+                });
+            }
+            double x = 120.149192, y = 30.316078;
+            long begin = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                jdbcTemplate.queryForList("SELECT id, ST_Distance_Sphere(POINT(x, y), POINT(?, ?)) AS d " +
+                        "FROM tb_shop_geo_bench ORDER BY d LIMIT " + SystemConstants.DEFAULT_PAGE_SIZE, x, y);
+            }
+            long mysqlMicros = (System.nanoTime() - begin) / rounds / 1000;
+            begin = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                shopGeoIndex.search(-1L, x, y, 0, SystemConstants.DEFAULT_PAGE_SIZE);
+            }
+            long geoMicros = (System.nanoTime() - begin) / rounds / 1000;
+            System.out.println("mysql order by distance: " + mysqlMicros + "us/query, geosearch: " + geoMicros + "us/query");
+        } finally {
+            jdbcTemplate.execute("DROP TABLE IF EXISTS tb_shop_geo_bench");
+            stringRedisTemplate.delete(geoKey);
+        }
+    }
+
+    //一周每天20万个用户，相邻两天一半重复 每天的key不超过约12KB，按周合并的误差在2%以内
+    @Test
+    void testDauHyperLogLog() {
+        int perDay = 200_000;
+        LocalDate from = LocalDate.of(2000, 1, 3);
+        List<String> keys = new ArrayList<>();
+        try {
+            for (int d = 0; d < 7; d++) {
+                String key = UV_DAU_KEY + from.plusDays(d).format(UvCounter.DAY_FORMAT);
+                keys.add(key);
+                int first = d * perDay / 2;
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    for (int i = first; i < first + perDay; i += 1000) {
+                        byte[][] users = new byte[1000][];
+                        for (int j = 0; j < 1000; j++) {
+                            users[j] = String.valueOf(i + j).getBytes(StandardCharsets.UTF_8);
+                        }
+                        connection.hyperLogLogCommands().pfAdd(key.getBytes(StandardCharsets.UTF_8), users);
+                    }
+                    return null;
+                });
+                Long bytes = stringRedisTemplate.execute((RedisCallback<Long>) connection ->
+                        (Long) connection.execute("MEMORY", "USAGE".getBytes(StandardCharsets.UTF_8),
+                                key.getBytes(StandardCharsets.UTF_8)));
+                assertTrue(bytes != null && bytes < 13 * 1024, "memory " + bytes);
+            }
+            long expected = 4L * perDay;
+            long week = uvCounter.countUsers(from, from.plusDays(6));
+            System.out.println("week uv: " + week + ", expected: " + expected);
+            assertTrue(Math.abs(week - expected) < expected * 0.02);
+        } finally {
+            stringRedisTemplate.delete(keys);
+        }
+    }
+
+    private static DefaultRedisScript<Long> script(String location) {
+        DefaultRedisScript<Long> script = new DefaultRedisScript<>();
+        script.setLocation(new ClassPathResource(location));
+        script.setResultType(Long.class);
+        return script;
+    }
+
+    //两个节点写回同一批 A标记并删除后B的标记迟到，不能留下没有__batch的flushing，之后还能换出新批次
+    @Test
+    void testTwoLikeFlushersOnSameBatch() {
+        DefaultRedisScript<Long> start = script("likeFlushStart.lua");
+        DefaultRedisScript<Long> applied = script("likeFlushApplied.lua");
+        DefaultRedisScript<Long> end = script("likeFlushEnd.lua");
+        String deltaKey = "test:blog:liked:delta";
+        String flushingKey = deltaKey + ":flushing";
+        List<String> keys = List.of(deltaKey, flushingKey);
+        try {
+            stringRedisTemplate.delete(keys);
+            stringRedisTemplate.opsForHash().increment(deltaKey, "1", 3);
+            // 1.A换出批次1 B看到flushing已存在，继续写同一批
+            assertEquals(1L, stringRedisTemplate.execute(start, keys, "1"));
+            assertEquals(0L, stringRedisTemplate.execute(start, keys, "2"));
+            // 2.A标记并删除
+            assertEquals(1L, stringRedisTemplate.execute(applied, Collections.singletonList(flushingKey), "1"));
+            assertEquals(1L, stringRedisTemplate.execute(end, Collections.singletonList(flushingKey), "1"));
+            // 3.B的标记和删除迟到 不再创建flushing
+            assertEquals(0L, stringRedisTemplate.execute(applied, Collections.singletonList(flushingKey), "1"));
+            assertEquals(0L, stringRedisTemplate.execute(end, Collections.singletonList(flushingKey), "1"));
+            assertFalse(Boolean.TRUE.equals(stringRedisTemplate.hasKey(flushingKey)));
+            // 4.新的增量还能换出新批次
+            stringRedisTemplate.opsForHash().increment(deltaKey, "1", 1);
+            assertEquals(1L, stringRedisTemplate.execute(start, keys, "3"));
+            assertEquals("3", stringRedisTemplate.opsForHash().get(flushingKey, "__batch"));
+            // 5.旧版本留下的只有__applied的flushing 换批次时删掉
+            stringRedisTemplate.delete(flushingKey);
+            stringRedisTemplate.opsForHash().put(flushingKey, "__applied", "3");
+            stringRedisTemplate.opsForHash().increment(deltaKey, "1", 1);
+            assertEquals(1L, stringRedisTemplate.execute(start, keys, "4"));
+            assertEquals("4", stringRedisTemplate.opsForHash().get(flushingKey, "__batch"));
+            assertNull(stringRedisTemplate.opsForHash().get(flushingKey, "__applied"));
+        } finally {
+            stringRedisTemplate.delete(keys);
+        }
+    }
 }
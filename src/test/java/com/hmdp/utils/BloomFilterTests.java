@@ -0,0 +1,42 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BloomFilterTests {
+
+    //加进去的id一定能查到
+    @Test
+    void testNoFalseNegative() {
+        BloomFilter filter = new BloomFilter(10000, 0.01);
+        for (long id = 1; id <= 10000; id++) {
+            filter.put(id);
+        }
+        for (long id = 1; id <= 10000; id++) {
+            assertTrue(filter.mightContain(id));
+        }
+    }
+
+    //一百万个连续id 实测误判率和内存
+    @Test
+    void testFalsePositiveRatePerMillion() {
+        int n = 1_000_000;
+        for (double fpp : new double[]{0.01, 0.001}) {
+            BloomFilter filter = new BloomFilter(n, fpp);
+            for (long id = 1; id <= n; id++) {
+                filter.put(id);
+            }
+            int falsePositives = 0;
+            for (long id = n + 1; id <= 2L * n; id++) {
+                if (filter.mightContain(id)) {
+                    falsePositives++;
+                }
+            }
+            double rate = (double) falsePositives / n;
+            System.out.printf("fpp=%s 实测误判率=%.5f 估算=%.5f 内存=%dKB 哈希次数=%d%n",
+                    fpp, rate, filter.expectedFpp(), filter.bitSize() / 8 / 1024, filter.hashCount());
+            assertTrue(rate < fpp * 1.5);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CacheCodecTests {
+
+    private final BinaryCacheCodec binaryCodec = new BinaryCacheCodec(1024);
+    private final JsonCacheCodec jsonCodec = new JsonCacheCodec();
+
+    private static Shop shop(long id) {
+        Shop shop = new Shop();
+        shop.setId(id);
+        shop.setName("103茶餐厅");
+        shop.setTypeId(1L);
+        shop.setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg");
+        shop.setArea("大关");
+        shop.setAddress("金华路锦昌文华苑29号");
+        shop.setX(120.149192);
+        shop.setY(30.316078);
+        shop.setAvgPrice(80L);
+        shop.setSold(4215);
+        shop.setComments(3035);
+        shop.setScore(37);
+        shop.setOpenHours("10:00-22:00");
+        shop.setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39));
+        shop.setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19, 123000000));
+        return shop;
+    }
+
+    @Test
+    void testRoundTrip() {
+        Shop shop = shop(1);
+        //不写入的字段保持null
+        shop.setDistance(null);
+        byte[] bytes = binaryCodec.encode(shop);
+        assertTrue(BinaryCacheCodec.isBinary(bytes));
+        assertEquals(shop, binaryCodec.decode(bytes, Shop.class));
+    }
+
+    @Test
+    void testListRoundTripAndCompression() {
+        List<Shop> shops = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            shops.add(shop(i));
+        }
+        byte[] bytes = binaryCodec.encode(shops);
+        //50个相似的店铺超过阈值会被压缩，比不压缩小得多
+        byte[] uncompressed = new BinaryCacheCodec(Integer.MAX_VALUE).encode(shops);
+        assertTrue(bytes.length < uncompressed.length / 2);
+        assertEquals(shops, binaryCodec.decodeList(bytes, Shop.class));
+        assertEquals(shops, binaryCodec.decodeList(uncompressed, Shop.class));
+    }
+
+    //以前写入的JSON缓存仍然能读
+    @Test
+    void testReadsJson() {
+        ShopType type = new ShopType().setId(1L).setName("美食").setIcon("/types/ms.png").setSort(1);
+        byte[] json = jsonCodec.encode(List.of(type));
+        assertEquals(List.of(type), binaryCodec.decodeList(json, ShopType.class));
+    }
+
+    //schema不一致 由CacheClient当作未命中
+    @Test
+    void testSchemaMismatch() {
+        byte[] bytes = binaryCodec.encode(shop(1));
+        assertThrows(IllegalStateException.class, () -> binaryCodec.decode(bytes, ShopType.class));
+        assertThrows(IllegalStateException.class, () -> binaryCodec.decodeList(bytes, Shop.class));
+    }
+
+    //不支持的字段类型退回JSON
+    @Test
+    void testFallbackToJson() {
+        RedisData data = new RedisData();
+        data.setExpireTime(LocalDateTime.now());
+        byte[] bytes = binaryCodec.encode(data);
+        assertTrue(!BinaryCacheCodec.isBinary(bytes));
+        assertNull(binaryCodec.decode(bytes, RedisData.class).getData());
+    }
+
+    //JDK模块里的值类型不能反射访问字段 退回JSON，不抛异常
+    @Test
+    void testBoxedLongFallsBackToJson() {
+        byte[] bytes = binaryCodec.encode(42L);
+        assertTrue(!BinaryCacheCodec.isBinary(bytes));
+        assertEquals(42L, binaryCodec.decode(bytes, Long.class));
+        LocalDate day = LocalDate.of(2024, 2, 29);
+        assertEquals(day, binaryCodec.decode(binaryCodec.encode(day), LocalDate.class));
+    }
+
+    //对比每次命中的解码耗时和存储的字节数
+    @Test
+    void benchmarkJsonVsBinary() {
+        Shop shop = shop(1);
+        byte[] json = jsonCodec.encode(shop);
+        byte[] binary = binaryCodec.encode(shop);
+        int rounds = 200_000;
+        for (int i = 0; i < rounds; i++) {
+            //预热
+            jsonCodec.decode(json, Shop.class);
+            binaryCodec.decode(binary, Shop.class);
+        }
+        long begin = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            jsonCodec.decode(json, Shop.class);
+        }
+        long jsonNanos = (System.nanoTime() - begin) / rounds;
+        begin = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            binaryCodec.decode(binary, Shop.class);
+        }
+        long binaryNanos = (System.nanoTime() - begin) / rounds;
+        System.out.println("json:   " + json.length + " bytes, " + jsonNanos + " ns/hit");
+        System.out.println("binary: " + binary.length + " bytes, " + binaryNanos + " ns/hit");
+        assertTrue(binary.length < json.length);
+    }
+}
@@ -0,0 +1,82 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GeoGridTests {
+
+    //n个点随机分布在杭州周边
+    private static GeoGrid grid(int n, long[] ids, double[] xs, double[] ys) {
+        Random random = new Random(1);
+        for (int i = 0; i < n; i++) {
+            ids[i] = i + 1;
+            xs[i] = 119.8 + random.nextDouble() * 0.8;
+            ys[i] = 30.0 + random.nextDouble() * 0.6;
+        }
+        return GeoGrid.build(ids, xs, ys, n);
+    }
+
+    //和逐个计算距离的结果一致
+    @Test
+    void testSameAsBruteForce() {
+        int n = 100_000;
+        long[] ids = new long[n];
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        GeoGrid grid = grid(n, ids, xs, ys);
+        Random random = new Random(2);
+        for (int round = 0; round < 20; round++) {
+            double x = 119.8 + random.nextDouble() * 0.8;
+            double y = 30.0 + random.nextDouble() * 0.6;
+            List<GeoGrid.Hit> all = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                all.add(new GeoGrid.Hit(ids[i], GeoGrid.distance(x, y, xs[i], ys[i])));
+            }
+            all.sort(Comparator.comparingDouble(GeoGrid.Hit::distance));
+            //最近的10个
+            assertEquals(all.subList(0, 10), grid.nearest(x, y, 10, 5000, null));
+            //半径1km内的
+            long within = all.stream().filter(h -> h.distance() <= 1000).count();
+            assertEquals(within, grid.withinRadius(x, y, 1000, null).size());
+        }
+    }
+
+    //跳过的id不返回
+    @Test
+    void testSkip() {
+        long[] ids = {1, 2, 3};
+        double[] xs = {120.1, 120.1001, 120.1002};
+        double[] ys = {30.3, 30.3, 30.3};
+        GeoGrid grid = GeoGrid.build(ids, xs, ys, 3);
+        List<GeoGrid.Hit> hits = grid.nearest(120.1, 30.3, 2, 5000, id -> id == 1);
+        assertEquals(List.of(2L, 3L), hits.stream().map(GeoGrid.Hit::id).toList());
+    }
+
+    //一百万个点 每个点的内存和每次查询的耗时
+    @Test
+    void benchmarkMillionShops() {
+        int n = 1_000_000;
+        GeoGrid grid = grid(n, new long[n], new double[n], new double[n]);
+        double bytesPerShop = (double) grid.memoryBytes() / n;
+        Random random = new Random(3);
+        int rounds = 10_000;
+        for (int i = 0; i < rounds; i++) {
+            //预热
+            grid.nearest(119.8 + random.nextDouble() * 0.8, 30.0 + random.nextDouble() * 0.6, 10, 5000, null);
+        }
+        long begin = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            grid.nearest(119.8 + random.nextDouble() * 0.8, 30.0 + random.nextDouble() * 0.6, 10, 5000, null);
+        }
+        long micros = (System.nanoTime() - begin) / rounds / 1000;
+        System.out.printf("%.1f bytes/shop, %d us/query%n", bytesPerShop, micros);
+        assertTrue(bytesPerShop < 64);
+    }
+}
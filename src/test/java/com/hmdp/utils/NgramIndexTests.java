@@ -0,0 +1,115 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class NgramIndexTests {
+
+    private static final String[] PREFIXES = {"老", "小", "大", "新", "阿", "川", "湘", "粤", "东北", "西湖", "江南", "海底"};
+    private static final String[] WORDS = {"张", "王", "李", "记", "家", "味", "香", "鲜", "福", "顺", "兴", "隆", "源", "春", "里", "坊"};
+    private static final String[] SUFFIXES = {"火锅", "烧烤", "面馆", "茶餐厅", "奶茶", "咖啡", "KTV", "酒吧", "小吃", "烤肉", "饺子馆", "甜品店"};
+
+    //随机拼出的店铺名称 如"老张记火锅(文三路店)"
+    private static String[] names(int n) {
+        Random random = new Random(1);
+        String[] names = new String[n];
+        for (int i = 0; i < n; i++) {
+            StringBuilder sb = new StringBuilder(PREFIXES[random.nextInt(PREFIXES.length)]);
+            for (int j = random.nextInt(3); j >= 0; j--) {
+                sb.append(WORDS[random.nextInt(WORDS.length)]);
+            }
+            sb.append(SUFFIXES[random.nextInt(SUFFIXES.length)]);
+            if (random.nextBoolean()) {
+                sb.append("(").append(WORDS[random.nextInt(WORDS.length)]).append(i % 1000).append("路店)");
+            }
+            names[i] = sb.toString();
+        }
+        return names;
+    }
+
+    private static long[] ids(int n) {
+        long[] ids = new long[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = i + 1;
+        }
+        return ids;
+    }
+
+    //逐个名称contains 相当于LIKE '%关键字%'的全表扫描
+    private static List<NgramIndex.Hit> scan(long[] ids, String[] names, String keyword) {
+        String query = NgramIndex.normalize(keyword);
+        List<NgramIndex.Hit> hits = new ArrayList<>();
+        for (int i = 0; i < names.length; i++) {
+            int score = NgramIndex.score(NgramIndex.normalize(names[i]), query);
+            if (score >= 0) {
+                hits.add(new NgramIndex.Hit(ids[i], score));
+            }
+        }
+        hits.sort(NgramIndex::compare);
+        return hits;
+    }
+
+    //和逐个contains的结果一致
+    @Test
+    void testSameAsScan() {
+        int n = 100_000;
+        long[] ids = ids(n);
+        String[] names = names(n);
+        NgramIndex index = NgramIndex.build(ids, names, n);
+        for (String keyword : new String[]{"火锅", "老张", "张记火", "ktv", "茶", "西湖李", "12路店", "不存在", "湖 福"}) {
+            assertEquals(scan(ids, names, keyword), index.search(keyword, null), keyword);
+        }
+    }
+
+    //完全匹配、前缀匹配排在前面 名称短的排在前面
+    @Test
+    void testRank() {
+        long[] ids = {1, 2, 3, 4};
+        String[] names = {"老张记火锅", "火锅", "火锅城", "张记火锅"};
+        NgramIndex index = NgramIndex.build(ids, names, 4);
+        List<Long> ranked = index.search("火锅", null).stream().map(NgramIndex.Hit::id).toList();
+        assertEquals(List.of(2L, 3L, 4L, 1L), ranked);
+        //跳过的id不返回
+        assertEquals(List.of(3L), index.search("火锅城", id -> id == 2).stream().map(NgramIndex.Hit::id).toList());
+    }
+
+    //一百万家店铺 倒排表的内存和每次查询的耗时，对比逐个contains
+    @Test
+    void benchmarkMillionShops() {
+        int n = 1_000_000;
+        long[] ids = ids(n);
+        String[] names = names(n);
+        long begin = System.nanoTime();
+        NgramIndex index = NgramIndex.build(ids, names, n);
+        long buildMillis = (System.nanoTime() - begin) / 1_000_000;
+        double bytesPerShop = (double) index.memoryBytes() / n;
+        //选择性不同的关键字 从几十家到几十万家
+        String[] keywords = {"老张记火锅", "西湖福", "春坊", "饺子馆", "火锅"};
+        for (String keyword : keywords) {
+            for (int i = 0; i < 20; i++) {
+                //预热
+                index.search(keyword, null);
+            }
+            int rounds = 50;
+            begin = System.nanoTime();
+            int hits = 0;
+            for (int i = 0; i < rounds; i++) {
+                hits = index.search(keyword, null).size();
+            }
+            long indexMicros = (System.nanoTime() - begin) / rounds / 1000;
+            begin = System.nanoTime();
+            int scanned = scan(ids, names, keyword).size();
+            long scanMicros = (System.nanoTime() - begin) / 1000;
+            assertEquals(scanned, hits);
+            System.out.printf("%s: %d hits, index %d us/query, scan %d us/query%n", keyword, hits, indexMicros, scanMicros);
+        }
+        System.out.printf("build %d ms, %.1f bytes/shop%n", buildMillis, bytesPerShop);
+        assertTrue(bytesPerShop < 256);
+    }
+}
@@ -0,0 +1,20 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SignArchiverTests {
+
+    //BITFIELD GET u{days} 0第1天在最高位 转换后第d天在第d-1位
+    @Test
+    void testDayBits() {
+        //30天的月份 签了第1、2、30天
+        long field = (1L << 29) | (1L << 28) | 1L;
+        long bits = SignArchiver.dayBits(field, 30);
+        assertEquals(1L | (1L << 1) | (1L << 29), bits);
+        //31天全签
+        assertEquals((1L << 31) - 1, SignArchiver.dayBits((1L << 31) - 1, 31));
+        assertEquals(0, SignArchiver.dayBits(0, 28));
+    }
+}
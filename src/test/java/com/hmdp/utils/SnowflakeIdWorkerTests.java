@@ -0,0 +1,102 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SnowflakeIdWorkerTests {
+
+    private static final long BEGIN_TIMESTAMP = 1640995200L;
+
+    //多线程、多个workerId同时生成 不能重复
+    @Test
+    void testUniqueAcrossThreadsAndWorkers() throws InterruptedException {
+        SnowflakeIdWorker[] workers = {
+                new SnowflakeIdWorker(BEGIN_TIMESTAMP, 0, 1),
+                new SnowflakeIdWorker(BEGIN_TIMESTAMP, 0, 2)
+        };
+        int threads = 16;
+        int perThread = 50000;
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        ExecutorService es = Executors.newFixedThreadPool(threads);
+        CountDownLatch latch = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            SnowflakeIdWorker worker = workers[i % workers.length];
+            es.submit(() -> {
+                for (int j = 0; j < perThread; j++) {
+                    ids.add(worker.nextId());
+                }
+                latch.countDown();
+            });
+        }
+        latch.await();
+        es.shutdown();
+        assertEquals(threads * perThread, ids.size());
+    }
+
+    //同一个worker生成的id递增，时钟回拨时也不倒退、不重复
+    @Test
+    void testClockBackward() {
+        long[] clock = {1700000000000L};
+        SnowflakeIdWorker worker = new SnowflakeIdWorker(BEGIN_TIMESTAMP, 0, 3) {
+            @Override
+            protected long currentMillis() {
+                return clock[0];
+            }
+        };
+        long last = worker.nextId();
+        for (int i = 0; i < 20000; i++) {
+            //每100个id把时钟往回拨1秒
+            if (i % 100 == 0) {
+                clock[0] -= 1000;
+            }
+            long id = worker.nextId();
+            assertTrue(id > last);
+            last = id;
+        }
+    }
+
+    //一毫秒内超过4096个 等到下一毫秒继续递增
+    @Test
+    void testSequenceExhausted() {
+        long[] calls = {0};
+        SnowflakeIdWorker worker = new SnowflakeIdWorker(BEGIN_TIMESTAMP, 0, 4) {
+            @Override
+            protected long currentMillis() {
+                //每读10000次时钟才走1毫秒
+                return 1700000000000L + calls[0]++ / 10000;
+            }
+        };
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        long last = 0;
+        for (int i = 0; i < 10000; i++) {
+            long id = worker.nextId();
+            assertTrue(id > last);
+            last = id;
+            ids.add(id);
+        }
+        assertEquals(10000, ids.size());
+    }
+
+    //和incr模式的id共用高32位的秒数
+    @Test
+    void testSameSecondLayoutAsIncrMode() {
+        long millis = (BEGIN_TIMESTAMP + 12345) * 1000 + 678;
+        SnowflakeIdWorker worker = new SnowflakeIdWorker(BEGIN_TIMESTAMP, 0, 5) {
+            @Override
+            protected long currentMillis() {
+                return millis;
+            }
+        };
+        long id = worker.nextId();
+        assertEquals(12345, id >>> 32);
+        assertTrue((id & (1L << 31)) != 0);
+    }
+}